@@ -0,0 +1,252 @@
+/**
+ * A* search over a SearchGrid that does not allocate while searching.
+ *
+ * All of the per-cell bookkeeping lives in primitive arrays indexed by x + y * width. Instead of clearing
+ * those arrays between searches, every search gets a new generation number, and a cell only counts as
+ * opened or closed if its stamp matches the current generation.
+ * The open set is an indexed binary heap keyed on f-score, so decrease-key is O(log n).
+ */
+public class AStarSearch {
+	public static final float HEURISTIC_STEP_COST = 0.01f;
+
+	private final int width;
+	private final int height;
+
+	private final float[] g;
+	private final float[] f;
+	private final int[] parent;
+	private final int[] openStamp;   // generation in which the cell's g-score was set
+	private final int[] closedStamp; // generation in which the cell was expanded
+	private int generation = 0;
+
+	private final int[] heap;
+	private final int[] heapIndex;
+	private int heapSize;
+
+	private final int[] path;
+	private int pathLength;
+
+	private int expanded;
+	private int openPeak;
+
+	public AStarSearch(int width, int height) {
+		this.width = width;
+		this.height = height;
+		int cells = width * height;
+		g           = new float[cells];
+		f           = new float[cells];
+		parent      = new   int[cells];
+		openStamp   = new   int[cells];
+		closedStamp = new   int[cells];
+		heap        = new   int[cells];
+		heapIndex   = new   int[cells];
+		path        = new   int[cells];
+	}
+
+	/**
+	 * Finds the path with the lowest total cost from start to goal.
+	 * The path can be read back with getPathLength and getPathX/getPathY.
+	 * @param grid
+	 * @param startX
+	 * @param startY
+	 * @param goalX
+	 * @param goalY
+	 * @return The number of steps in the path, or -1 if the goal is unreachable
+	 */
+	public int search(SearchGrid grid, int startX, int startY, int goalX, int goalY) {
+		nextGeneration();
+		heapSize = 0;
+		pathLength = 0;
+		expanded = 0;
+		openPeak = 0;
+
+		int start = startX + startY * width;
+		int goal = goalX + goalY * width;
+
+		g[start] = 0;
+		parent[start] = -1;
+		openStamp[start] = generation;
+		push(start, heuristic(startX, startY, goalX, goalY));
+
+		while (heapSize > 0) {
+			int current = pop();
+			if (current == goal) {
+				buildPath(start, goal);
+				return pathLength;
+			}
+			closedStamp[current] = generation;
+			expanded++;
+
+			int cx = current % width;
+			int cy = current / width;
+			float currentG = g[current];
+			for (int i = -1; i <= 1; i++) {
+				int x = cx + i;
+				if (x < 0 || x >= width) {
+					continue;
+				}
+				for (int j = -1; j <= 1; j++) {
+					int y = cy + j;
+					if ((i == 0 && j == 0) || y < 0 || y >= height) {
+						continue;
+					}
+					int neighbor = x + y * width;
+					if (closedStamp[neighbor] == generation || !grid.isPassable(x, y)) {
+						continue;
+					}
+
+					float newG = currentG + grid.getCost(x, y);
+					if (openStamp[neighbor] != generation) {
+						openStamp[neighbor] = generation;
+						g[neighbor] = newG;
+						parent[neighbor] = current;
+						push(neighbor, newG + heuristic(x, y, goalX, goalY));
+					} else if (newG < g[neighbor]) {
+						g[neighbor] = newG;
+						parent[neighbor] = current;
+						decreaseKey(neighbor, newG + heuristic(x, y, goalX, goalY));
+					}
+				}
+			}
+		}
+
+		return -1;
+	}
+
+	public int getPathLength() {
+		return pathLength;
+	}
+
+	/**
+	 * @param step 0 is the first square to move to, getPathLength() - 1 is the goal
+	 * @return The x coordinate of that step
+	 */
+	public int getPathX(int step) {
+		return path[step] % width;
+	}
+
+	public int getPathY(int step) {
+		return path[step] / width;
+	}
+
+	/**
+	 * @return The number of nodes expanded by the last search
+	 */
+	public int getExpanded() {
+		return expanded;
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @return True if the last search expanded the square, i.e. looked at whether its neighbors are passable
+	 */
+	public boolean isExpanded(int x, int y) {
+		return closedStamp[x + y * width] == generation;
+	}
+
+	/**
+	 * @return The largest size of the open set during the last search
+	 */
+	public int getOpenPeak() {
+		return openPeak;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	private void nextGeneration() {
+		generation++;
+		if (generation == Integer.MAX_VALUE) { // stamps would wrap around, so start over
+			java.util.Arrays.fill(openStamp, 0);
+			java.util.Arrays.fill(closedStamp, 0);
+			generation = 1;
+		}
+	}
+
+	private static float heuristic(int x, int y, int goalX, int goalY) {
+		int cost = Math.max(Math.abs(x - goalX), Math.abs(y - goalY));
+		return (float)cost * HEURISTIC_STEP_COST;
+	}
+
+	private void buildPath(int start, int goal) {
+		int length = 0;
+		for (int cell = goal; cell != start; cell = parent[cell]) {
+			length++;
+		}
+		pathLength = length;
+		for (int cell = goal; cell != start; cell = parent[cell]) {
+			path[--length] = cell;
+		}
+	}
+
+	private void push(int cell, float cost) {
+		f[cell] = cost;
+		heap[heapSize] = cell;
+		heapIndex[cell] = heapSize;
+		heapSize++;
+		siftUp(heapSize - 1);
+		if (heapSize > openPeak) {
+			openPeak = heapSize;
+		}
+	}
+
+	private void decreaseKey(int cell, float cost) {
+		f[cell] = cost;
+		siftUp(heapIndex[cell]);
+	}
+
+	private int pop() {
+		int top = heap[0];
+		heapSize--;
+		if (heapSize > 0) {
+			heap[0] = heap[heapSize];
+			heapIndex[heap[0]] = 0;
+			siftDown(0);
+		}
+		return top;
+	}
+
+	private void siftUp(int index) {
+		int cell = heap[index];
+		float cost = f[cell];
+		while (index > 0) {
+			int parentIndex = (index - 1) >> 1;
+			int parentCell = heap[parentIndex];
+			if (f[parentCell] <= cost) {
+				break;
+			}
+			heap[index] = parentCell;
+			heapIndex[parentCell] = index;
+			index = parentIndex;
+		}
+		heap[index] = cell;
+		heapIndex[cell] = index;
+	}
+
+	private void siftDown(int index) {
+		int cell = heap[index];
+		float cost = f[cell];
+		int half = heapSize >> 1;
+		while (index < half) {
+			int child = 2 * index + 1;
+			int right = child + 1;
+			if (right < heapSize && f[heap[right]] < f[heap[child]]) {
+				child = right;
+			}
+			if (cost <= f[heap[child]]) {
+				break;
+			}
+			heap[index] = heap[child];
+			heapIndex[heap[index]] = index;
+			index = child;
+		}
+		heap[index] = cell;
+		heapIndex[cell] = index;
+	}
+}
@@ -0,0 +1,349 @@
+/**
+ * ARA* planner for one peasant heading to one destination, with a limit on how long it may search.
+ *
+ * The search runs backwards from the destination as a weighted A*: it first finds a path quickly with an inflated
+ * heuristic, then lowers the inflation step by step, reusing the previous search each time, until the path is the
+ * cheapest one. When it runs out of time it stops where it is, and the next call carries on from there, so while
+ * the board stays the same the path keeps improving over the turns. Any change in the hit field's change log starts
+ * the search over.
+ *
+ * The cost of stepping onto a square is its cost in the SearchGrid plus STEP_COST. The step cost keeps the heuristic,
+ * STEP_COST per step, from overestimating where the board has been explored and the risk is close to zero, so the
+ * path found with no inflation left is the cheapest one and getBound holds.
+ *
+ * Like RiskFlowField, the search ignores the peasants (update is given a grid without them) and only the
+ * choice of the next step looks at them.
+ */
+public class AnytimePlanner {
+	private static final float INFINITY = Float.POSITIVE_INFINITY;
+	private static final float STEP_COST = AStarSearch.HEURISTIC_STEP_COST; // added to every step, so that among equally safe paths the shortest wins
+	private static final float INITIAL_EPSILON = 3f;
+	private static final float EPSILON_STEP = 0.5f;
+	private static final int CLOCK_INTERVAL = 64; // expansions between looks at the clock
+
+	private final int width;
+	private final int height;
+
+	private final float[] g;
+	private final float[] cost; // cost of stepping onto each square when the search started
+	private final float[] key;
+	private final int[] heap;
+	private final int[] heapIndex;
+	private int heapSize;
+	private final int[] closed; // iteration in which each square was expanded
+	private final int[] incons; // iteration in which each square was put on the inconsistent list
+	private final int[] inconsList;
+	private int inconsCount;
+	private int iteration;
+
+	private int goal = -1;
+	private int start;
+	private float epsilon;
+	private float bound = INFINITY;
+	private long changeMark;
+	private int expanded;
+
+	public AnytimePlanner(int width, int height) {
+		this.width = width;
+		this.height = height;
+		int cells = width * height;
+		g          = new float[cells];
+		cost       = new float[cells];
+		key        = new float[cells];
+		heap       = new   int[cells];
+		heapIndex  = new   int[cells];
+		closed     = new   int[cells];
+		incons     = new   int[cells];
+		inconsList = new   int[cells];
+	}
+
+	/**
+	 * Improves the path from start to goal until it is the cheapest one or the deadline passes
+	 * @param grid Passability without the peasants
+	 * @param field Tells the planner whether the board changed since the last call
+	 * @param startX
+	 * @param startY
+	 * @param goalX
+	 * @param goalY
+	 * @param deadline System.nanoTime() after which to stop searching
+	 * @param minExpansions How many squares to expand even if the deadline has passed
+	 */
+	public void update(SearchGrid grid, HitProbabilityField field, int startX, int startY, int goalX, int goalY,
+			long deadline, int minExpansions) {
+		expanded = 0;
+		int newGoal = goalX + goalY * width;
+		int newStart = startX + startY * width;
+		if (newGoal != goal || field.getChangeMark() != changeMark) {
+			restart(grid, field, newStart, newGoal);
+		} else if (newStart != start) {
+			// the costs to the goal still hold, but the queue has to be ordered for the new start
+			start = newStart;
+			bound = INFINITY;
+			for (int i = 0; i < heapSize; i++) {
+				key[heap[i]] = g[heap[i]] + epsilon * heuristic(heap[i]);
+			}
+			heapify();
+		}
+
+		while (true) {
+			if (!improvePath(deadline, minExpansions)) {
+				return;
+			}
+			if (g[start] == INFINITY) {
+				return; // unreachable
+			}
+			bound = Math.min(epsilon, g[start] / lowestUninflatedKey());
+			if (epsilon <= 1) {
+				return;
+			}
+
+			// search again with less inflation, starting from every square whose cost to the goal went down
+			epsilon = Math.max(1, epsilon - EPSILON_STEP);
+			iteration++;
+			for (int i = 0; i < inconsCount; i++) {
+				int cell = inconsList[i];
+				if (heapIndex[cell] < 0) {
+					heap[heapSize] = cell;
+					heapIndex[cell] = heapSize;
+					heapSize++;
+				}
+			}
+			inconsCount = 0;
+			for (int i = 0; i < heapSize; i++) {
+				key[heap[i]] = g[heap[i]] + epsilon * heuristic(heap[i]);
+			}
+			heapify();
+		}
+	}
+
+	/**
+	 * Picks the free neighbor with the cheapest path found so far onwards to the destination.
+	 * If the search has not reached the start yet, picks the free neighbor closest to the destination.
+	 * @param grid Passability including the peasants
+	 * @param x
+	 * @param y
+	 * @return The square (x + y * width) to move to, or -1 if there is none or the goal is unreachable
+	 */
+	public int nextStep(SearchGrid grid, int x, int y) {
+		// with nothing left to expand, every square that can reach the goal has a cost
+		boolean reached = g[start] != INFINITY;
+		if (!reached && heapSize == 0) {
+			return -1;
+		}
+
+		int best = -1;
+		float bestCost = INFINITY;
+		int bestDistance = Integer.MAX_VALUE;
+		for (int i = -1; i <= 1; i++) {
+			for (int j = -1; j <= 1; j++) {
+				int nx = x + i;
+				int ny = y + j;
+				if ((i == 0 && j == 0) || nx < 0 || nx >= width || ny < 0 || ny >= height || !grid.isPassable(nx, ny)) {
+					continue;
+				}
+				int cell = nx + ny * width;
+				if (reached) {
+					float total = cost[cell] + g[cell];
+					if (total < bestCost) {
+						bestCost = total;
+						best = cell;
+					}
+				} else {
+					int distance = Math.max(Math.abs(nx - goal % width), Math.abs(ny - goal / width));
+					if (distance < bestDistance || (distance == bestDistance && cost[cell] < bestCost)) {
+						bestDistance = distance;
+						bestCost = cost[cell];
+						best = cell;
+					}
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return How far the current path may be from the cheapest one, as a factor of its cost.
+	 * Infinite if no search for this start has finished yet.
+	 */
+	public float getBound() {
+		return bound;
+	}
+
+	public float getEpsilon() {
+		return epsilon;
+	}
+
+	/**
+	 * @return The cost of the best path found so far from the start, infinite if there is none yet
+	 */
+	public float getPathCost() {
+		return g[start];
+	}
+
+	/**
+	 * @return The number of squares expanded by the last call to update
+	 */
+	public int getExpanded() {
+		return expanded;
+	}
+
+	public int getGoal() {
+		return goal;
+	}
+
+	private void restart(SearchGrid grid, HitProbabilityField field, int newStart, int newGoal) {
+		goal = newGoal;
+		start = newStart;
+		changeMark = field.getChangeMark();
+		epsilon = INITIAL_EPSILON;
+		bound = INFINITY;
+		heapSize = 0;
+		inconsCount = 0;
+		iteration++;
+		for (int cell = 0; cell < g.length; cell++) {
+			g[cell] = INFINITY;
+			heapIndex[cell] = -1;
+			int x = cell % width;
+			int y = cell / width;
+			cost[cell] = grid.isPassable(x, y) ? grid.getCost(x, y) + STEP_COST : INFINITY;
+		}
+		g[goal] = 0;
+		key[goal] = epsilon * heuristic(goal);
+		push(goal);
+	}
+
+	/**
+	 * Expands squares until the start's cost cannot be improved with this inflation
+	 * @return False if it ran out of time first
+	 */
+	private boolean improvePath(long deadline, int minExpansions) {
+		while (heapSize > 0 && key[heap[0]] < g[start]) {
+			if (expanded >= minExpansions && expanded % CLOCK_INTERVAL == 0 && System.nanoTime() > deadline) {
+				return false;
+			}
+			int current = pop();
+			closed[current] = iteration;
+			expanded++;
+
+			// anything that steps onto current pays its cost
+			float viaCurrent = cost[current] + g[current];
+			if (viaCurrent == INFINITY) {
+				continue;
+			}
+			int cx = current % width;
+			int cy = current / width;
+			for (int i = -1; i <= 1; i++) {
+				for (int j = -1; j <= 1; j++) {
+					int x = cx + i;
+					int y = cy + j;
+					if ((i == 0 && j == 0) || x < 0 || x >= width || y < 0 || y >= height) {
+						continue;
+					}
+					int neighbor = x + y * width;
+					if (viaCurrent >= g[neighbor] || (cost[neighbor] == INFINITY && neighbor != start)) {
+						continue;
+					}
+					g[neighbor] = viaCurrent;
+					if (closed[neighbor] != iteration) {
+						key[neighbor] = viaCurrent + epsilon * heuristic(neighbor);
+						if (heapIndex[neighbor] >= 0) {
+							siftUp(heapIndex[neighbor]);
+						} else {
+							push(neighbor);
+						}
+					} else if (incons[neighbor] != iteration) {
+						incons[neighbor] = iteration;
+						inconsList[inconsCount++] = neighbor;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The lowest g + h over the queue and the inconsistent list, which no path to the start can beat
+	 */
+	private float lowestUninflatedKey() {
+		float lowest = g[start];
+		for (int i = 0; i < heapSize; i++) {
+			lowest = Math.min(lowest, g[heap[i]] + heuristic(heap[i]));
+		}
+		for (int i = 0; i < inconsCount; i++) {
+			lowest = Math.min(lowest, g[inconsList[i]] + heuristic(inconsList[i]));
+		}
+		return lowest;
+	}
+
+	private float heuristic(int cell) {
+		int dx = Math.abs(cell % width - start % width);
+		int dy = Math.abs(cell / width - start / width);
+		return (float)Math.max(dx, dy) * STEP_COST;
+	}
+
+	private void heapify() {
+		for (int i = 0; i < heapSize; i++) {
+			heapIndex[heap[i]] = i;
+		}
+		for (int i = (heapSize >> 1) - 1; i >= 0; i--) {
+			siftDown(i);
+		}
+	}
+
+	private void push(int cell) {
+		heap[heapSize] = cell;
+		heapIndex[cell] = heapSize;
+		heapSize++;
+		siftUp(heapSize - 1);
+	}
+
+	private int pop() {
+		int top = heap[0];
+		heapIndex[top] = -1;
+		heapSize--;
+		if (heapSize > 0) {
+			heap[0] = heap[heapSize];
+			heapIndex[heap[0]] = 0;
+			siftDown(0);
+		}
+		return top;
+	}
+
+	private void siftUp(int index) {
+		int cell = heap[index];
+		float value = key[cell];
+		while (index > 0) {
+			int parentIndex = (index - 1) >> 1;
+			int parentCell = heap[parentIndex];
+			if (key[parentCell] <= value) {
+				break;
+			}
+			heap[index] = parentCell;
+			heapIndex[parentCell] = index;
+			index = parentIndex;
+		}
+		heap[index] = cell;
+		heapIndex[cell] = index;
+	}
+
+	private void siftDown(int index) {
+		int cell = heap[index];
+		float value = key[cell];
+		int half = heapSize >> 1;
+		while (index < half) {
+			int child = 2 * index + 1;
+			int right = child + 1;
+			if (right < heapSize && key[heap[right]] < key[heap[child]]) {
+				child = right;
+			}
+			if (value <= key[heap[child]]) {
+				break;
+			}
+			heap[index] = heap[child];
+			heapIndex[heap[index]] = index;
+			index = child;
+		}
+		heap[index] = cell;
+		heapIndex[cell] = index;
+	}
+}
@@ -0,0 +1,208 @@
+/**
+ * Bayesian update of the tower probabilities around the peasants after they were (or were not) hit.
+ *
+ * Every unseen cell's likelihood depends on the product of the survival terms of every other cell in the
+ * window. Instead of recomputing that product for each cell, the window's total is summed once in log space
+ * and each leave-one-out term is derived from it. Zero factors are counted separately so they never end up in a log.
+ *
+ * The evidence from each observation is added to a cell's log-odds (GameBoard.addTowerEvidence) rather than
+ * multiplied into its probability, so a cell that many peasants walked past without being hit does not underflow
+ * to a probability of exactly 0 and stop moving.
+ *
+ * A turn's observations are applied together. Observations whose windows overlap are grouped, the group's
+ * bounding box is snapshotted once, and every observation's likelihood is computed against that same snapshot,
+ * so the result does not depend on the order the observations were made in.
+ */
+public class BeliefUpdater {
+	private final int towerRange;
+	private final float accuracy;
+
+	// per group: snapshot of the old probabilities, log survival factors and the accumulated log likelihood ratios
+	private float[] window = new float[0];
+	private double[] logFactor = new double[0];
+	private double[] logRatio = new double[0];
+	private boolean[] updated = new boolean[0];
+
+	private int[] group = new int[0];
+
+	public BeliefUpdater(int towerRange, float towerAccuracy) {
+		this.towerRange = towerRange;
+		this.accuracy = towerAccuracy;
+	}
+
+	/**
+	 * Updates the probability map for tower locations with every observation made this turn
+	 * @param board
+	 * @param batch
+	 */
+	public void apply(GameBoard board, ObservationBatch batch) {
+		int size = batch.size();
+		if (size == 0) {
+			return;
+		}
+		batch.sort();
+
+		// group the observations whose windows overlap
+		if (group.length < size) {
+			group = new int[size];
+		}
+		for (int i = 0; i < size; i++) {
+			group[i] = i;
+		}
+		for (int i = 0; i < size; i++) {
+			for (int j = i + 1; j < size; j++) {
+				if (Math.abs(batch.getX(i) - batch.getX(j)) < 2 * towerRange
+						&& Math.abs(batch.getY(i) - batch.getY(j)) < 2 * towerRange) {
+					union(i, j);
+				}
+			}
+		}
+
+		for (int root = 0; root < size; root++) {
+			if (find(root) == root) {
+				applyGroup(board, batch, root);
+			}
+		}
+	}
+
+	private void applyGroup(GameBoard board, ObservationBatch batch, int root) {
+		int size = batch.size();
+
+		// bounding box of every window in the group
+		int fromX = Integer.MAX_VALUE, toX = Integer.MIN_VALUE;
+		int fromY = Integer.MAX_VALUE, toY = Integer.MIN_VALUE;
+		for (int i = 0; i < size; i++) {
+			if (find(i) != root) {
+				continue;
+			}
+			fromX = Math.min(fromX, Math.max(batch.getX(i) - towerRange, 0));
+			toX   = Math.max(toX,   Math.min(board.getWidth(), batch.getX(i) + towerRange));
+			fromY = Math.min(fromY, Math.max(batch.getY(i) - towerRange, 0));
+			toY   = Math.max(toY,   Math.min(board.getHeight(), batch.getY(i) + towerRange));
+		}
+		if (fromX >= toX || fromY >= toY) {
+			return;
+		}
+		int columns = toX - fromX;
+		int cells = columns * (toY - fromY);
+		ensureCapacity(cells);
+
+		// one snapshot for the whole group
+		board.readWindow(fromX, fromY, toX, toY, window);
+		for (int k = 0; k < cells; k++) {
+			float p = window[k];
+			// P(S) = P(N)+(P(T)*(1-P(H)))
+			float factor = (1f - p) + (p * (1f - accuracy));
+			logFactor[k] = factor == 0 ? 0 : Math.log(factor);
+			logRatio[k] = 0;
+			updated[k] = false;
+		}
+
+		for (int i = 0; i < size; i++) {
+			if (find(i) == root) {
+				accumulate(board, batch.getX(i), batch.getY(i), batch.getHit(i), fromX, fromY, columns);
+			}
+		}
+
+		for (int c = fromY; c < toY; c++) {
+			for (int r = fromX; r < toX; r++) {
+				int k = (c - fromY) * columns + (r - fromX);
+				if (updated[k]) {
+					// P(T|H) = P(H|T)*P(T)/(P(H|T)*P(T)+P(H|N)*P(N)), as log-odds: log(P(T)/P(N)) + log(P(H|T)/P(H|N))
+					board.addTowerEvidence(r, c, logRatio[k]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Multiplies the likelihood of one observation into every out-of-view cell of its window
+	 */
+	private void accumulate(GameBoard board, int x, int y, boolean hit, int groupX, int groupY, int columns) {
+		int fromX = Math.max(x - towerRange, 0);
+		int toX   = Math.min(board.getWidth(), x + towerRange);
+		int fromY = Math.max(y - towerRange, 0);
+		int toY   = Math.min(board.getHeight(), y + towerRange);
+
+		double logTotal = 0;
+		int zeros = 0;
+		for (int c = fromY; c < toY; c++) {
+			for (int r = fromX; r < toX; r++) {
+				int k = (c - groupY) * columns + (r - groupX);
+				if (logFactor[k] == 0 && isZeroFactor(window[k])) {
+					zeros++;
+				} else {
+					logTotal += logFactor[k];
+				}
+			}
+		}
+
+		for (int c = fromY; c < toY; c++) {
+			for (int r = fromX; r < toX; r++) {
+				if (board.getSeen(r, c) // Only need to update out-of-view cells.
+						|| (r - x) * (r - x) + (c - y) * (c - y) <= towerRange * towerRange) { // tower has circular range
+					continue;
+				}
+				int k = (c - groupY) * columns + (r - groupX);
+
+				// product of every other cell's survival factor
+				float others;
+				if (zeros == 0) {
+					others = (float)Math.exp(logTotal - logFactor[k]);
+				} else if (zeros == 1 && isZeroFactor(window[k])) {
+					others = (float)Math.exp(logTotal);
+				} else {
+					others = 0;
+				}
+
+				float phn, pht;
+				if (hit) {
+					// P(H|N) = 1 - P(S|N)
+					phn = 1f - others;
+					// P(H|T) simplifies to 1-((1-P(H|N))*P(M)) since tower existing is given.
+					pht = 1f - (others * (1f - accuracy));
+				} else {
+					// P(S|N) = P(S)
+					phn = others;
+					// P(S|T) simplifies to P(S|N)*P(M) since tower existing is given.
+					pht = others * (1f - accuracy);
+				}
+
+				if (pht == 0 && phn == 0) {
+					continue; // impossible either way, so it says nothing
+				}
+				logRatio[k] += Math.log(pht) - Math.log(phn);
+				updated[k] = true;
+			}
+		}
+	}
+
+	private boolean isZeroFactor(float p) {
+		return (1f - p) + (p * (1f - accuracy)) == 0;
+	}
+
+	private void ensureCapacity(int cells) {
+		if (window.length < cells) {
+			window            = new   float[cells];
+			logFactor         = new  double[cells];
+			logRatio          = new  double[cells];
+			updated           = new boolean[cells];
+		}
+	}
+
+	private int find(int i) {
+		while (group[i] != i) {
+			group[i] = group[group[i]];
+			i = group[i];
+		}
+		return i;
+	}
+
+	private void union(int i, int j) {
+		int a = find(i);
+		int b = find(j);
+		if (a != b) {
+			group[Math.max(a, b)] = Math.min(a, b);
+		}
+	}
+}
@@ -0,0 +1,424 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Combines the saved boards of many runs on the same map into one board, to be used as the prior of the next runs.
+ *
+ * The boards are streamed: they are memory mapped BATCH_SIZE at a time and read one tile at a time, in the order
+ * BoardStore writes them, and each merged tile is written out before the next one is read. What the boards of one
+ * batch add up to goes to a temporary evidence file, which the next batch reads tile by tile alongside its own boards,
+ * so neither the memory used nor the number of open files and mappings grows with the number of boards. Boards that
+ * still have a journal, or that are in the first (flat) format, are first rewritten to a temporary file one at a
+ * time; the inputs themselves are never changed.
+ *
+ * Cells are combined as:
+ *   seen and tree flags: set if any run set them
+ *   visits and hits: summed
+ *   tower probability: 1 if any run confirmed a tower there, otherwise 0 if any run ruled one out, otherwise every
+ *   run's evidence relative to its prior, log(p / (1 - p)) - log(prior / (1 - prior)), is added to the prior of the
+ *   merged board in log-odds. The runs are taken to be independent, so boards that were started from one another
+ *   should not be merged with each other.
+ *
+ * Usage: java BoardMerger output board... (a directory stands for every board in it)
+ */
+public class BoardMerger {
+	public static final int BATCH_SIZE = 64;
+
+	private final List<File> inputs = new ArrayList<File>();
+	private final List<File> temporaryFiles = new ArrayList<File>();
+	private int batchSize = BATCH_SIZE;
+
+	/**
+	 * @param file A board file, or a directory of them
+	 */
+	public void add(File file) {
+		if (file.isDirectory()) {
+			File[] files = file.listFiles();
+			if (files != null) {
+				java.util.Arrays.sort(files);
+				for (File child : files) {
+					String name = child.getName();
+					if (child.isFile() && !name.endsWith(".journal") && !name.endsWith(".tmp")) {
+						inputs.add(child);
+					}
+				}
+			}
+		} else {
+			inputs.add(file);
+		}
+	}
+
+	/**
+	 * @param batchSize How many boards to have mapped at once
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Merges every board added so far into a new board file
+	 * @param output Written to a temporary file first and then renamed, so it may be one of the inputs
+	 * @return The number of boards merged
+	 * @throws IOException If a board cannot be read, or the boards are not of the same map
+	 */
+	public int merge(File output) throws IOException {
+		if (inputs.isEmpty()) {
+			throw new IOException("No boards to merge");
+		}
+		int count = inputs.size();
+		File temporary = new File(output.getPath() + ".tmp");
+		File evidence = null; // what the batches so far add up to
+		GameBoard shape = null;
+		float prior = 0;
+		long version = 0;
+		try {
+			for (int from = 0; from < count; from += batchSize) {
+				int size = Math.min(batchSize, count - from);
+				MappedByteBuffer[] mapped = new MappedByteBuffer[size];
+				ByteBuffer[] bodies = new ByteBuffer[size];
+				float[] priors = new float[size];
+				DataInputStream previous = null;
+				try {
+					for (int i = 0; i < size; i++) {
+						File input = inputs.get(from + i);
+						FileChannel channel = FileChannel.open(normalize(input).toPath(), StandardOpenOption.READ);
+						long fileSize;
+						try {
+							fileSize = channel.size();
+							mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+						} finally {
+							channel.close(); // the mapping stays valid
+						}
+						GameBoard header = BoardStore.readHeader(mapped[i], input);
+						if (shape == null) {
+							shape = header;
+							prior = header.getTowerDensity();
+						} else if (header.getWidth() != shape.getWidth() || header.getHeight() != shape.getHeight()) {
+							throw new IOException(input + " is " + header.getWidth() + "x" + header.getHeight()
+									+ ", not " + shape.getWidth() + "x" + shape.getHeight());
+						}
+						priors[i] = header.getTowerDensity();
+						version = Math.max(version, mapped[i].getLong(20));
+						bodies[i] = checkedBody(mapped[i], fileSize, input);
+					}
+					if (evidence != null) {
+						previous = new DataInputStream(new BufferedInputStream(new FileInputStream(evidence)));
+					}
+
+					if (from + size < count) {
+						File next = File.createTempFile("merge", ".evidence");
+						DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(next)));
+						try {
+							writeEvidence(out, shape, previous, bodies, priors);
+						} catch (IOException e) {
+							out.close();
+							next.delete();
+							throw e;
+						}
+						out.close();
+						if (previous != null) {
+							previous.close();
+							previous = null;
+							evidence.delete();
+						}
+						evidence = next;
+					} else {
+						FileChannel out = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+						try {
+							writeMerged(out, shape, version, prior, previous, bodies, priors);
+						} finally {
+							out.close();
+						}
+					}
+				} finally {
+					if (previous != null) {
+						previous.close();
+					}
+					for (MappedByteBuffer buffer : mapped) {
+						if (buffer != null) {
+							BoardStore.unmap(buffer);
+						}
+					}
+					for (File file : temporaryFiles) {
+						file.delete();
+					}
+					temporaryFiles.clear();
+				}
+			}
+		} finally {
+			if (evidence != null) {
+				evidence.delete();
+			}
+		}
+		Files.move(temporary.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		// a journal next to the output belongs to the board that was replaced, and must not be replayed onto the merge
+		if (Files.deleteIfExists(new File(output.getPath() + ".journal").toPath())) {
+			System.out.println("Removed the old journal of " + output);
+		}
+		return count;
+	}
+
+	/**
+	 * @return The board file itself if it can be streamed as it is, otherwise a temporary copy in the current
+	 * format with its journal folded in
+	 */
+	private File normalize(File file) throws IOException {
+		File journal = new File(file.getPath() + ".journal");
+		boolean flat;
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(BoardStore.HEADER_SIZE);
+			while (header.hasRemaining() && channel.read(header) >= 0) {
+			}
+			header.flip();
+			BoardStore.readHeader(header, file);
+			flat = header.getInt(4) == BoardStore.FLAT_FORMAT_VERSION;
+		} finally {
+			channel.close();
+		}
+		if (!flat && journal.length() == 0) {
+			return file;
+		}
+
+		System.out.println("Rewriting " + file + (flat ? " in the tiled format" : " with its journal"));
+		// another run may still be writing the journal, so an unfinished record is skipped rather than cut off
+		GameBoard board = new BoardStore(file.getAbsoluteFile().getParentFile(), file.getName()).loadReadOnly();
+		File copy = File.createTempFile("merge", ".board");
+		temporaryFiles.add(copy);
+		BoardStore.write(board, copy);
+		return copy;
+	}
+
+	/**
+	 * @return The body of a mapped board file, after checking its size and checksum
+	 */
+	private static ByteBuffer checkedBody(MappedByteBuffer mapped, long fileSize, File file) throws IOException {
+		long bodySize = mapped.getLong(28);
+		if (BoardStore.HEADER_SIZE + bodySize > fileSize) {
+			throw new IOException(file + " is truncated");
+		}
+		ByteBuffer body = mapped.duplicate();
+		body.position(BoardStore.HEADER_SIZE);
+		body.limit((int)(BoardStore.HEADER_SIZE + bodySize));
+		CRC32 crc = new CRC32();
+		crc.update(body.duplicate());
+		if ((int)crc.getValue() != mapped.getInt(36)) {
+			throw new IOException(file + " is damaged, its checksum does not match");
+		}
+		return body;
+	}
+
+	/**
+	 * Writes what the earlier batches and this batch's boards add up to, tile by tile, for the next batch to read
+	 */
+	private static void writeEvidence(DataOutputStream out, GameBoard shape, DataInputStream previous,
+			ByteBuffer[] bodies, float[] priors) throws IOException {
+		TileSum sum = new TileSum();
+		int tiles = shape.getTilesX() * shape.getTilesY();
+		for (int t = 0; t < tiles; t++) {
+			sum.add(previous, bodies, priors);
+			sum.write(out);
+		}
+	}
+
+	/**
+	 * Writes the header with a placeholder size and checksum, then every merged tile, then the real header
+	 */
+	private static void writeMerged(FileChannel out, GameBoard shape, long version, float prior,
+			DataInputStream previous, ByteBuffer[] bodies, float[] priors) throws IOException {
+		TileSum sum = new TileSum();
+		ByteBuffer record = ByteBuffer.allocate(1 + GameBoard.TILE_RECORD_SIZE);
+		CRC32 crc = new CRC32();
+		long bodySize = 0;
+
+		out.position(BoardStore.HEADER_SIZE);
+		int tiles = shape.getTilesX() * shape.getTilesY();
+		for (int t = 0; t < tiles; t++) {
+			sum.add(previous, bodies, priors);
+			record.clear();
+			sum.write(record, prior);
+			record.flip();
+			crc.update(record.array(), 0, record.limit());
+			bodySize += record.limit();
+			while (record.hasRemaining()) {
+				out.write(record);
+			}
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(BoardStore.HEADER_SIZE);
+		header.putInt(BoardStore.MAGIC);
+		header.putInt(BoardStore.FORMAT_VERSION);
+		header.putInt(shape.getWidth());
+		header.putInt(shape.getHeight());
+		header.putFloat(prior);
+		header.putLong(version);
+		header.putLong(bodySize);
+		header.putInt((int)crc.getValue());
+		header.flip();
+		long position = 0;
+		while (header.hasRemaining()) {
+			position += out.write(header, position);
+		}
+		out.force(true);
+	}
+
+	/**
+	 * One tile of the merge. The evidence is kept as log-odds in doubles between batches, so that merging in batches
+	 * adds it up in the same order, and to the same result, as merging every board at once.
+	 */
+	private static class TileSum {
+		private final int cells = GameBoard.TILE_CELLS;
+		private final int words = GameBoard.TILE_WORDS;
+		private boolean present;
+		private final int[] certain = new int[cells]; // 1 for a confirmed tower, -1 for ruled out, 0 if neither
+		private final long[] visits = new long[cells];
+		private final long[] hits = new long[cells];
+		private final long[] seen = new long[words];
+		private final long[] hasTree = new long[words];
+		private final double[] evidence = new double[cells];
+
+		/**
+		 * Starts over with the next tile of the earlier batches' evidence, if any, and adds the next tile of every body
+		 */
+		void add(DataInputStream previous, ByteBuffer[] bodies, float[] priors) throws IOException {
+			present = false;
+			java.util.Arrays.fill(evidence, 0);
+			java.util.Arrays.fill(certain, 0);
+			java.util.Arrays.fill(visits, 0);
+			java.util.Arrays.fill(hits, 0);
+			java.util.Arrays.fill(seen, 0);
+			java.util.Arrays.fill(hasTree, 0);
+			if (previous != null && previous.readBoolean()) {
+				present = true;
+				for (int c = 0; c < cells; c++) {
+					certain[c] = previous.readByte();
+					evidence[c] = previous.readDouble();
+					visits[c] = previous.readLong();
+					hits[c] = previous.readLong();
+				}
+				for (int w = 0; w < words; w++) {
+					seen[w] = previous.readLong();
+					hasTree[w] = previous.readLong();
+				}
+			}
+
+			for (int i = 0; i < bodies.length; i++) {
+				ByteBuffer body = bodies[i];
+				byte marker = body.get();
+				if (marker == 0) {
+					continue; // the run learned nothing here
+				} else if (marker != 1) {
+					throw new IOException("Unknown tile marker " + marker);
+				}
+				present = true;
+				double inputPrior = logOdds(priors[i]);
+				int start = body.position();
+				for (int c = 0; c < cells; c++) {
+					float p = body.getFloat(start + 4 * c);
+					if (p >= 1) {
+						certain[c] = 1;
+					} else if (p <= 0) {
+						if (certain[c] == 0) {
+							certain[c] = -1;
+						}
+					} else {
+						evidence[c] += logOdds(p) - inputPrior;
+					}
+					visits[c] += body.getInt(start + 4 * cells + 8 * c);
+					hits[c] += body.getInt(start + 4 * cells + 8 * c + 4);
+				}
+				for (int w = 0; w < words; w++) {
+					seen[w] |= body.getLong(start + 12 * cells + 8 * w);
+					hasTree[w] |= body.getLong(start + 12 * cells + 8 * words + 8 * w);
+				}
+				body.position(start + GameBoard.TILE_RECORD_SIZE);
+			}
+		}
+
+		/**
+		 * Writes the sum as it is, for the next batch
+		 */
+		void write(DataOutputStream out) throws IOException {
+			out.writeBoolean(present);
+			if (!present) {
+				return;
+			}
+			for (int c = 0; c < cells; c++) {
+				out.writeByte(certain[c]);
+				out.writeDouble(evidence[c]);
+				out.writeLong(visits[c]);
+				out.writeLong(hits[c]);
+			}
+			for (int w = 0; w < words; w++) {
+				out.writeLong(seen[w]);
+				out.writeLong(hasTree[w]);
+			}
+		}
+
+		/**
+		 * Writes the sum as a tile of a board file
+		 */
+		void write(ByteBuffer record, float prior) {
+			if (!present) {
+				record.put((byte)0);
+				return;
+			}
+			double priorLogOdds = logOdds(prior);
+			record.put((byte)1);
+			for (int c = 0; c < cells; c++) {
+				float p;
+				if (certain[c] != 0) {
+					p = certain[c] > 0 ? 1 : 0;
+				} else if (evidence[c] == 0) {
+					p = prior;
+				} else {
+					p = (float)(1 / (1 + Math.exp(-(priorLogOdds + evidence[c]))));
+				}
+				record.putFloat(p);
+			}
+			for (int c = 0; c < cells; c++) {
+				record.putInt((int)Math.min(Integer.MAX_VALUE, visits[c]));
+				record.putInt((int)Math.min(Integer.MAX_VALUE, hits[c]));
+			}
+			for (int w = 0; w < words; w++) {
+				record.putLong(seen[w]);
+			}
+			for (int w = 0; w < words; w++) {
+				record.putLong(hasTree[w]);
+			}
+		}
+	}
+
+	private static double logOdds(float p) {
+		return Math.log(p) - Math.log1p(-p);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: java BoardMerger output board...");
+			return;
+		}
+		BoardMerger merger = new BoardMerger();
+		for (int i = 1; i < args.length; i++) {
+			merger.add(new File(args[i]));
+		}
+		long start = System.nanoTime();
+		int merged = merger.merge(new File(args[0]));
+		System.out.printf("Merged %d boards into %s (%.1f ms)%n", merged, args[0], (System.nanoTime() - start) / 1e6);
+	}
+}
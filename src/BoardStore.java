@@ -0,0 +1,341 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Saves a GameBoard as a binary file plus an append-only journal of the cells that changed each turn.
+ *
+ * The board file is a fixed header followed by the board's tiles:
+ *   magic, format version, width, height (ints), tower density (float), board version (long),
+ *   length and CRC32 of the body, then the tiles as written by GameBoard.writeCells. Tiles that were never
+ *   written take a single byte, so the file grows with what the peasants have learned rather than with the map.
+ * It is memory mapped when loaded, copied into the board's tiles and unmapped again straight away, so that the file
+ * can be replaced by the next compaction even where a mapped file cannot be (Windows). Files of the first format,
+ * which held the whole board as flat arrays, can still be read.
+ *
+ * The journal holds one record per turn: a marker, the number of cells, the board version, every changed
+ * cell as written by GameBoard.writeCell, and a CRC32 of the record. Records hold whole cells rather than
+ * differences, so replaying a record twice does no harm, and a record cut short by the process dying is
+ * dropped when the journal is replayed. Every COMPACT_INTERVAL turns the journal is folded into a new board
+ * file, which replaces the old one in a single rename.
+ */
+public class BoardStore {
+	public static final int MAGIC = 0x50524f42; // "PROB"
+	public static final int FORMAT_VERSION = 2;
+	public static final int FLAT_FORMAT_VERSION = 1; // whole-board arrays, read only
+	public static final int HEADER_SIZE = 40;
+	private static final int RECORD_MARKER = 0x5455524e; // "TURN"
+	private static final int RECORD_HEADER_SIZE = 16;
+	private static final int COMPACT_INTERVAL = 500;
+
+	private final File boardFile;
+	private final File journalFile;
+	private FileChannel journal;
+	private ByteBuffer recordBuffer = ByteBuffer.allocate(1024);
+	private int journaledTurns = 0;
+
+	/**
+	 * @param directory Where the board is kept, created if needed
+	 * @param name The board's file name; the journal is kept next to it
+	 */
+	public BoardStore(File directory, String name) {
+		directory.mkdirs();
+		boardFile = new File(directory, name);
+		journalFile = new File(directory, name + ".journal");
+	}
+
+	/**
+	 * Loads the saved board and replays its journal, cutting off an unfinished record at the end of the journal
+	 * @return The board, or null if nothing has been saved yet
+	 * @throws IOException If the board file is damaged or not a board
+	 */
+	public GameBoard load() throws IOException {
+		return load(true);
+	}
+
+	/**
+	 * Loads the saved board and replays its journal without changing either file, e.g. to read another run's board
+	 * @return The board, or null if nothing has been saved yet
+	 * @throws IOException If the board file is damaged or not a board
+	 */
+	public GameBoard loadReadOnly() throws IOException {
+		return load(false);
+	}
+
+	private GameBoard load(boolean repair) throws IOException {
+		if (!boardFile.exists() && !journalFile.exists()) {
+			System.out.println("No existing board to load");
+			return null;
+		}
+		GameBoard board = boardFile.exists() ? read(boardFile) : null;
+		if (journalFile.exists()) {
+			board = replayJournal(board, repair);
+		}
+		if (board != null) {
+			System.out.println("Loaded previous board");
+		}
+		return board;
+	}
+
+	/**
+	 * Appends every cell that changed since the last call to the journal, and compacts the journal from time to time.
+	 * The board has to be tracking its changes.
+	 * @param board
+	 * @throws IOException
+	 */
+	public void appendTurn(GameBoard board) throws IOException {
+		if (journal == null) {
+			// a new journal starts from a board file, so that it always has something to be replayed onto
+			if (!boardFile.exists()) {
+				compact(board);
+				return;
+			}
+			journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		}
+
+		int count = board.getDirtyCount();
+		if (count == 0) {
+			return;
+		}
+		int size = RECORD_HEADER_SIZE + count * GameBoard.CELL_RECORD_SIZE + 4;
+		if (recordBuffer.capacity() < size) {
+			recordBuffer = ByteBuffer.allocate(Math.max(size, 2 * recordBuffer.capacity()));
+		}
+		recordBuffer.clear();
+		recordBuffer.putInt(RECORD_MARKER);
+		recordBuffer.putInt(count);
+		recordBuffer.putLong(board.getVersion());
+		for (int i = 0; i < count; i++) {
+			board.writeCell(recordBuffer, board.getDirtyCell(i));
+		}
+		CRC32 crc = new CRC32();
+		crc.update(recordBuffer.array(), 0, recordBuffer.position());
+		recordBuffer.putInt((int)crc.getValue());
+		recordBuffer.flip();
+		while (recordBuffer.hasRemaining()) {
+			journal.write(recordBuffer);
+		}
+		board.clearDirty();
+
+		journaledTurns++;
+		if (journaledTurns >= COMPACT_INTERVAL) {
+			compact(board);
+		}
+	}
+
+	/**
+	 * Writes the whole board to a new board file and empties the journal
+	 * @param board
+	 * @throws IOException
+	 */
+	public void compact(GameBoard board) throws IOException {
+		File temporary = new File(boardFile.getPath() + ".tmp");
+		write(board, temporary);
+		Files.move(temporary.toPath(), boardFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		// everything in the journal is in the board file now
+		if (journal != null) {
+			journal.truncate(0);
+		} else {
+			Files.deleteIfExists(journalFile.toPath());
+		}
+		board.clearDirty();
+		journaledTurns = 0;
+	}
+
+	/**
+	 * Closes the journal. The store can still be used afterwards.
+	 */
+	public void close() {
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				System.err.println("Could not close board journal");
+				e.printStackTrace();
+			}
+			journal = null;
+		}
+	}
+
+	/**
+	 * Writes a board file
+	 * @param board
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void write(GameBoard board, File file) throws IOException {
+		long bodySize = board.getCellsSize();
+		ByteBuffer body = ByteBuffer.allocate((int)bodySize);
+		board.writeCells(body);
+		body.flip();
+		CRC32 crc = new CRC32();
+		crc.update(body.array(), 0, body.limit());
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.putInt(FORMAT_VERSION);
+		header.putInt(board.getWidth());
+		header.putInt(board.getHeight());
+		header.putFloat(board.getTowerDensity());
+		header.putLong(board.getVersion());
+		header.putLong(bodySize);
+		header.putInt((int)crc.getValue());
+		header.flip();
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+			while (body.hasRemaining()) {
+				channel.write(body);
+			}
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Reads a board file by memory mapping it
+	 * @param file
+	 * @return The board
+	 * @throws IOException If the file is not a board of this format or its checksum does not match
+	 */
+	public static GameBoard read(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		MappedByteBuffer mapped = null;
+		try {
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			GameBoard board = readHeader(mapped, file);
+			boolean flat = mapped.getInt(4) == FLAT_FORMAT_VERSION;
+			long bodySize = mapped.getLong(28);
+			long cells = (long)board.getWidth() * board.getHeight();
+			long flatSize = 12 * cells + 16 * ((cells + 63) >> 6);
+			if ((flat && bodySize != flatSize) || HEADER_SIZE + bodySize > channel.size()) {
+				throw new IOException(file + " is truncated");
+			}
+
+			ByteBuffer body = mapped.duplicate();
+			body.position(HEADER_SIZE);
+			body.limit((int)(HEADER_SIZE + bodySize));
+			CRC32 crc = new CRC32();
+			crc.update(body.duplicate());
+			if ((int)crc.getValue() != mapped.getInt(36)) {
+				throw new IOException(file + " is damaged, its checksum does not match");
+			}
+			try {
+				if (flat) {
+					board.readFlatCells(body, mapped.getLong(20));
+				} else {
+					board.readCells(body, mapped.getLong(20));
+				}
+			} catch (BufferUnderflowException e) {
+				throw new IOException(file + " is truncated", e);
+			}
+			return board;
+		} finally {
+			channel.close();
+			if (mapped != null) {
+				unmap(mapped); // everything has been copied into the board's tiles
+			}
+		}
+	}
+
+	/**
+	 * Releases a mapping now instead of whenever the buffer is garbage collected. Neither the buffer nor any
+	 * duplicate of it may be used afterwards. Where the JDK does not allow it, the mapping is left to the collector.
+	 * @param buffer
+	 */
+	static void unmap(MappedByteBuffer buffer) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			java.lang.reflect.Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(field.get(null), buffer);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// released once the buffer is collected
+		}
+	}
+
+	/**
+	 * Checks a board file's header
+	 * @param header At least HEADER_SIZE bytes from the start of the file
+	 * @param file For error messages
+	 * @return An empty board of the file's size and tower density
+	 * @throws IOException If the file is not a board of this format
+	 */
+	static GameBoard readHeader(ByteBuffer header, File file) throws IOException {
+		if (header.limit() < HEADER_SIZE || header.getInt(0) != MAGIC) {
+			throw new IOException(file + " is not a saved board");
+		}
+		if (header.getInt(4) != FORMAT_VERSION && header.getInt(4) != FLAT_FORMAT_VERSION) {
+			throw new IOException(file + " has board format version " + header.getInt(4) + ", expected " + FORMAT_VERSION);
+		}
+		return new GameBoard(header.getInt(8), header.getInt(12), header.getFloat(16));
+	}
+
+	/**
+	 * Applies every complete record in the journal
+	 * @param board The board the journal belongs to. Without one the journal is left alone, since it holds the only
+	 * copy of what it recorded.
+	 * @param repair True to cut off anything after the last complete record
+	 */
+	private GameBoard replayJournal(GameBoard board, boolean repair) throws IOException {
+		if (board == null) {
+			System.err.println("Found a board journal without a board, ignoring it");
+			return null;
+		}
+		FileChannel channel = repair
+				? FileChannel.open(journalFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)
+				: FileChannel.open(journalFile.toPath(), StandardOpenOption.READ);
+		try {
+			// read rather than mapped, since the file may have to be truncated afterwards
+			ByteBuffer data = ByteBuffer.allocate((int)channel.size());
+			while (data.hasRemaining() && channel.read(data) >= 0) {
+			}
+			data.flip();
+			int valid = 0;
+			while (data.remaining() >= RECORD_HEADER_SIZE && data.getInt(valid) == RECORD_MARKER) {
+				int count = data.getInt(valid + 4);
+				long size = RECORD_HEADER_SIZE + (long)count * GameBoard.CELL_RECORD_SIZE + 4;
+				if (count < 0 || valid + size > data.limit()) {
+					break;
+				}
+				ByteBuffer record = data.duplicate();
+				record.position(valid);
+				record.limit((int)(valid + size - 4));
+				CRC32 crc = new CRC32();
+				crc.update(record.duplicate());
+				if ((int)crc.getValue() != data.getInt((int)(valid + size - 4))) {
+					break;
+				}
+
+				record.position(valid + RECORD_HEADER_SIZE);
+				for (int i = 0; i < count; i++) {
+					board.readCell(record);
+				}
+				board.setVersion(record.getLong(valid + 8));
+				valid += size;
+				data.position(valid);
+			}
+			if (valid < channel.size()) {
+				System.out.println((repair ? "Dropping " : "Skipping ") + (channel.size() - valid) + " bytes of unfinished board journal");
+				if (repair) {
+					channel.truncate(valid);
+				}
+			}
+		} finally {
+			channel.close();
+		}
+		return board;
+	}
+}
@@ -0,0 +1,394 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Windowed cooperative A* (WHCA*) for all of the peasants at once.
+ *
+ * Instead of treating the other peasants as walls, every peasant plans over (x, y, turn) for the next WINDOW turns
+ * and reserves the squares it will be on in a space-time reservation table. Peasants that plan later in a turn go
+ * around (or wait for) the reservations of the ones before them, so two peasants never plan to be on the same square
+ * at the same time or to swap squares. Past the window, the remaining cost is read from the destination's shared
+ * RiskFlowField, which is also the search's heuristic, so no peasant ever searches the whole board.
+ *
+ * A peasant follows its plan for REPLAN_INTERVAL turns, then plans a fresh window. It plans sooner if it is not
+ * where its plan says, the flow field was rebuilt, or its next square was taken by a peasant that stopped.
+ */
+public class CooperativePlanner {
+	public static final int WINDOW = 8; // turns planned ahead
+	public static final int REPLAN_INTERVAL = WINDOW / 2; // turns of a plan that are followed before planning again
+	private static final float INFINITY = Float.POSITIVE_INFINITY;
+	private static final int LAYERS = WINDOW + 1;
+
+	private final int width;
+	private final int height;
+	private final int cells;
+
+	// the reservation table, a ring of LAYERS turns; an entry only counts if its turn is the one being looked up
+	private final int[] reservedBy;
+	private final int[] reservedTurn;
+
+	// the space-time search, one node per square and turn of the window
+	private final float[] g;
+	private final float[] key;
+	private final int[] parent;
+	private final int[] heap;
+	private final int[] heapIndex;
+	private final int[] visited; // search in which each node was reached
+	private final int[] closed; // search in which each node was expanded
+	private int heapSize;
+	private int searches;
+
+	private final Map<Integer, Plan> plans = new HashMap<Integer, Plan>();
+	private int turn;
+	private int expanded;
+	private int replans;
+
+	public CooperativePlanner(int width, int height) {
+		this.width = width;
+		this.height = height;
+		cells = width * height;
+		reservedBy   = new   int[cells * LAYERS];
+		reservedTurn = new   int[cells * LAYERS];
+		g            = new float[cells * LAYERS];
+		key          = new float[cells * LAYERS];
+		parent       = new   int[cells * LAYERS];
+		heap         = new   int[cells * LAYERS];
+		heapIndex    = new   int[cells * LAYERS];
+		visited      = new   int[cells * LAYERS];
+		closed       = new   int[cells * LAYERS];
+		Arrays.fill(reservedTurn, -1);
+	}
+
+	/**
+	 * Starts a new turn. Reservations for earlier turns lapse on their own.
+	 * @param turn
+	 */
+	public void startTurn(int turn) {
+		this.turn = turn;
+		expanded = 0;
+	}
+
+	/**
+	 * Forgets the plans and reservations of peasants that have died
+	 * @param alive The IDs of the peasants still alive
+	 */
+	public void retain(Collection<Integer> alive) {
+		for (Plan plan : plans.values()) {
+			if (!alive.contains(plan.id)) {
+				release(plan);
+			}
+		}
+		plans.keySet().retainAll(alive);
+	}
+
+	/**
+	 * Tells the planner where a peasant is at the start of the turn. Should be called for every peasant before any
+	 * of them plans, so that a peasant that did not move as planned is not walked into while it replans.
+	 * @param id
+	 * @param x
+	 * @param y
+	 */
+	public void observe(int id, int x, int y) {
+		Plan plan = getPlan(id);
+		int offset = turn - plan.turn;
+		if (offset >= 0 && offset < plan.length && plan.cells[offset] == x + y * width) {
+			return;
+		}
+		// assume it stays put until it plans again
+		release(plan);
+		plan.turn = turn;
+		plan.length = 0;
+		reserve(plan, x + y * width, turn);
+		reserve(plan, x + y * width, turn + 1);
+	}
+
+	/**
+	 * Keeps a square for a peasant that is going to stay on it, e.g. while gathering or depositing
+	 * @param id
+	 * @param x
+	 * @param y
+	 */
+	public void hold(int id, int x, int y) {
+		Plan plan = getPlan(id);
+		release(plan);
+		plan.turn = turn;
+		plan.goal = -1;
+		plan.length = LAYERS;
+		for (int t = 0; t < LAYERS; t++) {
+			plan.cells[t] = x + y * width;
+			reserve(plan, x + y * width, turn + t);
+		}
+	}
+
+	/**
+	 * Picks a peasant's next square, planning a new window if its plan no longer holds
+	 * @param id
+	 * @param grid Passability without the peasants, with costs
+	 * @param flowField The destination's flow field, already updated this turn
+	 * @param x
+	 * @param y
+	 * @return The square (x + y * width) to move to, the peasant's own square if it should wait this turn,
+	 * or -1 if the destination is unreachable
+	 */
+	public int nextStep(int id, SearchGrid grid, RiskFlowField flowField, int x, int y) {
+		Plan plan = getPlan(id);
+		int start = x + y * width;
+		if (flowField.getDistance(x, y) == INFINITY) {
+			return -1;
+		}
+		int offset = turn - plan.turn;
+		if (offset < 0 || offset >= REPLAN_INTERVAL || offset + 1 >= plan.length || plan.cells[offset] != start
+				|| plan.goal != flowField.getGoal() || plan.builds != flowField.getBuilds()
+				|| !canMove(grid, id, start, plan.cells[offset + 1], turn)) {
+			replan(plan, grid, flowField, start);
+			offset = 0;
+		}
+		return plan.length < 2 ? start : plan.cells[offset + 1];
+	}
+
+	/**
+	 * @return The number of space-time nodes expanded this turn
+	 */
+	public int getExpanded() {
+		return expanded;
+	}
+
+	/**
+	 * @return How many windows have been planned
+	 */
+	public int getReplans() {
+		return replans;
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @param turn
+	 * @return The ID of the peasant that reserved the square for that turn, or -1 if there is none
+	 */
+	public int getReservation(int x, int y, int turn) {
+		int slot = x + y * width + (turn % LAYERS) * cells;
+		return reservedTurn[slot] == turn ? reservedBy[slot] : -1;
+	}
+
+	private Plan getPlan(int id) {
+		Plan plan = plans.get(id);
+		if (plan == null) {
+			plan = new Plan(id);
+			plans.put(id, plan);
+		}
+		return plan;
+	}
+
+	/**
+	 * Searches the next WINDOW turns from the start and reserves the best plan found. The peasant waits if every
+	 * move is blocked.
+	 */
+	private void replan(Plan plan, SearchGrid grid, RiskFlowField flowField, int start) {
+		release(plan);
+		replans++;
+		plan.turn = turn;
+		plan.goal = flowField.getGoal();
+		plan.builds = flowField.getBuilds();
+
+		int end = search(plan.id, grid, flowField, start);
+		if (end < 0) {
+			plan.length = 1;
+			plan.cells[0] = start;
+		} else {
+			plan.length = end / cells + 1;
+			for (int node = end; node >= 0; node = parent[node]) {
+				plan.cells[node / cells] = node % cells;
+			}
+		}
+		for (int t = 0; t < plan.length; t++) {
+			reserve(plan, plan.cells[t], turn + t);
+		}
+		if (plan.length < 2) {
+			// keep the square for the next turn as well, so the others plan around the waiting peasant
+			reserve(plan, start, turn + 1);
+		}
+	}
+
+	/**
+	 * A* over (square, turn) nodes, node = square + t * cells. Waiting costs the square's hit probability again,
+	 * every move or wait also costs a small step cost, and the flow field's distance is the cost from the end of
+	 * the window onwards.
+	 * @return The node where the plan ends (at the destination or the end of the window), or -1 if it cannot even wait
+	 */
+	private int search(int id, SearchGrid grid, RiskFlowField flowField, int start) {
+		searches++;
+		heapSize = 0;
+		int goal = flowField.getGoal();
+		visit(start, 0, -1, flowField.getDistance(start % width, start / width));
+		while (heapSize > 0) {
+			int node = pop();
+			closed[node] = searches;
+			expanded++;
+			int cell = node % cells;
+			int t = node / cells;
+			if (t == WINDOW || cell == goal) {
+				return node;
+			}
+
+			int cx = cell % width;
+			int cy = cell / width;
+			for (int i = -1; i <= 1; i++) {
+				for (int j = -1; j <= 1; j++) {
+					int nx = cx + i;
+					int ny = cy + j;
+					if (nx < 0 || nx >= width || ny < 0 || ny >= height) {
+						continue;
+					}
+					int next = nx + ny * width;
+					if (!canMove(grid, id, cell, next, turn + t)) {
+						continue;
+					}
+					float remaining = flowField.getDistance(nx, ny);
+					if (remaining == INFINITY) {
+						continue;
+					}
+					float cost = g[node] + grid.getCost(nx, ny) + AStarSearch.HEURISTIC_STEP_COST;
+					int child = next + (t + 1) * cells;
+					if (closed[child] != searches && (visited[child] != searches || cost < g[child])) {
+						visit(child, cost, node, remaining);
+					}
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return True if the peasant can go from one square to the other (or stay, if they are the same) between the
+	 * turn and the next without hitting an obstacle, another peasant's reservation or swapping places with one
+	 */
+	private boolean canMove(SearchGrid grid, int id, int from, int to, int fromTurn) {
+		if (!grid.isPassable(to % width, to / width)) {
+			return false;
+		}
+		int occupant = reservation(to, fromTurn + 1);
+		if (occupant >= 0 && occupant != id) {
+			return false;
+		}
+		if (from == to) {
+			return true;
+		}
+		int coming = reservation(from, fromTurn + 1);
+		return coming < 0 || coming == id || reservation(to, fromTurn) != coming;
+	}
+
+	private void visit(int node, float cost, int from, float remaining) {
+		g[node] = cost;
+		parent[node] = from;
+		key[node] = cost + remaining;
+		if (visited[node] == searches && heapIndex[node] >= 0) {
+			siftUp(heapIndex[node]);
+		} else {
+			visited[node] = searches;
+			push(node);
+		}
+	}
+
+	private int reservation(int cell, int turn) {
+		int slot = cell + (turn % LAYERS) * cells;
+		return reservedTurn[slot] == turn ? reservedBy[slot] : -1;
+	}
+
+	private void reserve(Plan plan, int cell, int turn) {
+		int slot = cell + (turn % LAYERS) * cells;
+		reservedBy[slot] = plan.id;
+		reservedTurn[slot] = turn;
+		plan.reserved[plan.reservedCount++] = slot;
+	}
+
+	/**
+	 * Gives up every reservation the peasant still owns
+	 */
+	private void release(Plan plan) {
+		for (int i = 0; i < plan.reservedCount; i++) {
+			int slot = plan.reserved[i];
+			if (reservedBy[slot] == plan.id) {
+				reservedTurn[slot] = -1;
+			}
+		}
+		plan.reservedCount = 0;
+	}
+
+	private void push(int node) {
+		heap[heapSize] = node;
+		heapIndex[node] = heapSize;
+		heapSize++;
+		siftUp(heapSize - 1);
+	}
+
+	private int pop() {
+		int top = heap[0];
+		heapIndex[top] = -1;
+		heapSize--;
+		if (heapSize > 0) {
+			heap[0] = heap[heapSize];
+			heapIndex[heap[0]] = 0;
+			siftDown(0);
+		}
+		return top;
+	}
+
+	private void siftUp(int index) {
+		int node = heap[index];
+		float value = key[node];
+		while (index > 0) {
+			int parentIndex = (index - 1) >> 1;
+			int parentNode = heap[parentIndex];
+			if (key[parentNode] <= value) {
+				break;
+			}
+			heap[index] = parentNode;
+			heapIndex[parentNode] = index;
+			index = parentIndex;
+		}
+		heap[index] = node;
+		heapIndex[node] = index;
+	}
+
+	private void siftDown(int index) {
+		int node = heap[index];
+		float value = key[node];
+		int half = heapSize >> 1;
+		while (index < half) {
+			int child = 2 * index + 1;
+			int right = child + 1;
+			if (right < heapSize && key[heap[right]] < key[heap[child]]) {
+				child = right;
+			}
+			if (value <= key[heap[child]]) {
+				break;
+			}
+			heap[index] = heap[child];
+			heapIndex[heap[index]] = index;
+			index = child;
+		}
+		heap[index] = node;
+		heapIndex[node] = index;
+	}
+
+	/**
+	 * One peasant's planned squares, cells[t] being where it is at turn + t, and the reservations it owns
+	 */
+	private static class Plan {
+		final int id;
+		final int[] cells = new int[LAYERS];
+		int turn;
+		int length;
+		int goal = -1;
+		int builds = -1;
+		final int[] reserved = new int[2 * LAYERS];
+		int reservedCount;
+
+		Plan(int id) {
+			this.id = id;
+		}
+	}
+}
@@ -0,0 +1,39 @@
+/**
+ * Static helpers for board coordinates packed into a single int, so that they can be stored and compared
+ * without boxing. x is kept in the high 16 bits and y in the low 16 bits.
+ */
+public final class Coord {
+	public static final int NONE = -1;
+
+	private Coord() {
+	}
+
+	public static int pack(int x, int y) {
+		return (x << 16) | (y & 0xFFFF);
+	}
+
+	public static int getX(int coord) {
+		return coord >> 16;
+	}
+
+	public static int getY(int coord) {
+		return (short)(coord & 0xFFFF);
+	}
+
+	/**
+	 * @param coord
+	 * @param width
+	 * @return The index of the square in the board's flat arrays (x + y * width)
+	 */
+	public static int toCell(int coord, int width) {
+		return getX(coord) + getY(coord) * width;
+	}
+
+	public static int fromCell(int cell, int width) {
+		return pack(cell % width, cell / width);
+	}
+
+	public static String toString(int coord) {
+		return getX(coord) + "," + getY(coord);
+	}
+}
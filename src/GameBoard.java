@@ -1,148 +1,801 @@
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 
+/**
+ * Everything the peasants have learned about the map.
+ *
+ * Cells are stored in square tiles of TILE_SIZE x TILE_SIZE, which are only allocated the first time one of their
+ * cells is written. A tile that was never written is implicitly at the prior (the initial tower density, no visits
+ * or hits, not seen, no trees), so a large map where the peasants only ever see a corridor costs memory, saving time
+ * and whole-board work for that corridor only. Each tile also keeps two summaries, how many of its cells have been
+ * seen and whether all of them are back at the prior, so whole-board passes can skip it. Within a tile, cells are in row-major order; the visit and hit
+ * counters of a cell are packed next to each other, and the seen / tree flags are bitsets.
+ * Once a belief update has added evidence, the tower probabilities are also kept as log-odds in a LogOddsBelief, and
+ * the stored probabilities are derived from it, so a square that many peasants walked past without being hit keeps
+ * moving instead of underflowing to exactly 0. Only the probabilities are saved.
+ * A board can also be kept in a quantized 8-bit mode, which is only meant for boards that are kept for reference.
+ * Boards are saved with BoardStore; the cells changed since the last save can be tracked for its journal.
+ */
 public class GameBoard implements Serializable {
 	/**
-	 * 
+	 *
 	 */
-	private static final long serialVersionUID = -8930067576274327133L;
-	private float towerProbability[][];
-	private int visits[][];
-	private int hits[][];
-	private boolean seen[][];
-	private boolean hasTree[][];
-	
+	private static final long serialVersionUID = -2715930946470386571L;
+	static final int CELL_RECORD_SIZE = 17; // bytes written by writeCell
+	public static final int TILE_SHIFT = 5;
+	public static final int TILE_SIZE = 1 << TILE_SHIFT;
+	private static final int TILE_MASK = TILE_SIZE - 1;
+	static final int TILE_CELLS = TILE_SIZE * TILE_SIZE;
+	static final int TILE_WORDS = TILE_CELLS >> 6;
+	static final int TILE_RECORD_SIZE = 4 * TILE_CELLS + 8 * TILE_CELLS + 16 * TILE_WORDS; // bytes written per tile by writeCells
+	private final int width;
+	private final int height;
+	private final int tilesX;
+	private final int tilesY;
+	private final float towerDensity;
+	private final Tile tiles[]; // null until written
+	private int tileCount;
+	private boolean quantized;
+	private long version = 0;
+	private int goldMine = -1; // x + y * width once a peasant has seen the gold mine; not in saved board files
+	private transient HitProbabilityField hitField;
+	private transient LogOddsBelief belief; // null until evidence is added, see addTowerEvidence
+	private transient Snapshot snapshot;
+	private transient long knownStatic[]; // cells this game's agent has already looked at, not saved or copied
+	private transient long dirty[]; // cells changed since the last clearDirty, only if tracking
+	private transient int dirtyCells[];
+	private transient int dirtyCount;
+
 	public GameBoard(int width, int height, float towerDensity) {
-		towerProbability = new   float[width][height];
-		visits           = new     int[width][height];
-		hits             = new     int[width][height];
-		seen             = new boolean[width][height];
-		hasTree          = new boolean[width][height];
-		
-		for (int i = 0; i < width; i++) {
-			for (int j = 0; j < height; j++) {
-				towerProbability[i][j] = towerDensity;
-				visits[i][j]           = 0;
-				hits[i][j]             = 0;
-				seen[i][j]             = false;
-				hasTree[i][j]          = false;
-			}
-		}
+		this.width = width;
+		this.height = height;
+		this.towerDensity = towerDensity;
+		tilesX = (width + TILE_MASK) >> TILE_SHIFT;
+		tilesY = (height + TILE_MASK) >> TILE_SHIFT;
+		tiles = new Tile[tilesX * tilesY];
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return The tower probability every square started out with
+	 */
+	public float getTowerDensity() {
+		return towerDensity;
+	}
+
+	/**
+	 * Attaches the hit probability cache that has to be told about tower probability changes
+	 * @param hitField
+	 */
+	public void setHitProbabilityField(HitProbabilityField hitField) {
+		this.hitField = hitField;
 	}
-	
+
 	public float getTowerProbability(int x, int y) {
-		return towerProbability[x][y];
+		Tile tile = tiles[tileIndex(x, y)];
+		if (tile == null) {
+			return towerDensity;
+		} else if (tile.probability == null) {
+			return (tile.quantizedProbability[offset(x, y)] & 0xFF) / 255f;
+		}
+		return tile.probability[offset(x, y)];
 	}
-	
+
 	public void setTowerProbability(int x, int y, float prob) {
-		towerProbability[x][y] = prob;
+		if (quantized) {
+			throw new IllegalStateException("Quantized boards are read only");
+		}
+		if (belief != null) {
+			belief.setProbability(x + y * width, prob);
+		}
+		storeTowerProbability(x, y, prob);
 	}
-	
+
+	/**
+	 * Adds one observation's evidence to a tower probability, in log-odds.
+	 * Squares known to have or not have a tower (probability exactly 1 or 0) do not change.
+	 * @param x
+	 * @param y
+	 * @param logLikelihoodRatio log(P(observation | tower) / P(observation | no tower))
+	 */
+	public void addTowerEvidence(int x, int y, double logLikelihoodRatio) {
+		if (quantized) {
+			throw new IllegalStateException("Quantized boards are read only");
+		}
+		int cell = x + y * width;
+		getBelief().addEvidence(cell, logLikelihoodRatio);
+		storeTowerProbability(x, y, belief.getProbability(cell));
+	}
+
+	/**
+	 * @return The log-odds of a tower on the square, which keep moving after the probability has rounded to 0 or 1
+	 */
+	public double getTowerLogOdds(int x, int y) {
+		return getBelief().getLogOdds(x + y * width);
+	}
+
+	private LogOddsBelief getBelief() {
+		if (belief == null) {
+			belief = LogOddsBelief.fromBoard(this);
+		}
+		return belief;
+	}
+
+	private void storeTowerProbability(int x, int y, float prob) {
+		if (getTowerProbability(x, y) != prob) {
+			writableTile(x, y).probability[offset(x, y)] = prob;
+			version++;
+			markDirty(x + y * width);
+			if (hitField != null) {
+				hitField.invalidate(x, y);
+			}
+		}
+	}
+
 	public int getVisits(int x, int y) {
-		return visits[x][y];
+		Tile tile = tiles[tileIndex(x, y)];
+		return tile == null ? 0 : tile.counters[2 * offset(x, y)];
 	}
-	
+
 	public void incrementVisits(int x, int y) {
-		visits[x][y]++;
+		writableTile(x, y).counters[2 * offset(x, y)]++;
+		markDirty(x + y * width);
 	}
-	
+
 	public int getHits(int x, int y) {
-		return hits[x][y];
+		Tile tile = tiles[tileIndex(x, y)];
+		return tile == null ? 0 : tile.counters[2 * offset(x, y) + 1];
 	}
-	
+
 	public void incrementHits(int x, int y) {
-		hits[x][y]++;
+		writableTile(x, y).counters[2 * offset(x, y) + 1]++;
+		markDirty(x + y * width);
 	}
-	
+
 	public boolean getSeen(int x, int y) {
-		return seen[x][y];
+		Tile tile = tiles[tileIndex(x, y)];
+		int offset = offset(x, y);
+		return tile != null && (tile.seen[offset >> 6] & (1L << offset)) != 0;
 	}
-	
+
 	public void setSeen(int x, int y, boolean seen) {
-		this.seen[x][y] = seen;
+		if (getSeen(x, y) == seen) {
+			return;
+		}
+		markDirty(x + y * width);
+		Tile tile = writableTile(x, y);
+		int offset = offset(x, y);
+		if (seen) {
+			tile.seen[offset >> 6] |= 1L << offset;
+			tile.seenCount++;
+		} else {
+			tile.seen[offset >> 6] &= ~(1L << offset);
+			tile.seenCount--;
+		}
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @return True if the square's contents (a tree, the gold mine, a tower, the townhall or nothing) are known and
+	 * cannot change, so looking at it again tells nothing new
+	 */
+	public boolean isKnownStatic(int x, int y) {
+		int cell = x + y * width;
+		return knownStatic != null && (knownStatic[cell >> 6] & (1L << cell)) != 0;
+	}
+
+	public void setKnownStatic(int x, int y) {
+		if (knownStatic == null) {
+			knownStatic = new long[(width * height + 63) >> 6];
+		}
+		int cell = x + y * width;
+		knownStatic[cell >> 6] |= 1L << cell;
 	}
-	
+
+	/**
+	 * @return Where the gold mine is (x + y * width), or -1 if no peasant has seen it
+	 */
+	public int getGoldMine() {
+		return goldMine;
+	}
+
+	public void setGoldMine(int x, int y) {
+		goldMine = x + y * width;
+	}
+
+	/**
+	 * Forgets which cells have been looked at, for a new game on the same board
+	 */
+	public void clearKnownStatic() {
+		knownStatic = null;
+	}
+
 	public boolean getHasTree(int x, int y) {
-		return hasTree[x][y];
+		Tile tile = tiles[tileIndex(x, y)];
+		int offset = offset(x, y);
+		return tile != null && (tile.hasTree[offset >> 6] & (1L << offset)) != 0;
 	}
-	
+
 	public void setHasTree(int x, int y, boolean hasTree) {
-		this.hasTree[x][y] = hasTree;
+		if (getHasTree(x, y) == hasTree) {
+			return;
+		}
+		markDirty(x + y * width);
+		Tile tile = writableTile(x, y);
+		int offset = offset(x, y);
+		if (hasTree) {
+			tile.hasTree[offset >> 6] |= 1L << offset;
+		} else {
+			tile.hasTree[offset >> 6] &= ~(1L << offset);
+		}
+		// let anyone following the hit field's change log know the square is now (un)blocked
+		if (hitField != null) {
+			hitField.invalidate(x, y);
+		}
+	}
+
+	/**
+	 * Copies part of a row of tower probabilities
+	 * @param y The row
+	 * @param fromX First column, inclusive
+	 * @param toX Last column, exclusive
+	 * @param dest
+	 * @param offset Where in dest to start writing
+	 */
+	public void readRow(int y, int fromX, int toX, float[] dest, int offset) {
+		int x = fromX;
+		while (x < toX) {
+			// one tile's part of the row at a time
+			int end = Math.min(toX, (x | TILE_MASK) + 1);
+			Tile tile = tiles[tileIndex(x, y)];
+			if (tile == null) {
+				java.util.Arrays.fill(dest, offset + x - fromX, offset + end - fromX, towerDensity);
+			} else if (tile.probability == null) {
+				for (int i = x; i < end; i++) {
+					dest[offset + i - fromX] = (tile.quantizedProbability[offset(i, y)] & 0xFF) / 255f;
+				}
+			} else {
+				System.arraycopy(tile.probability, offset(x, y), dest, offset + x - fromX, end - x);
+			}
+			x = end;
+		}
+	}
+
+	/**
+	 * Copies a rectangle of tower probabilities into dest in row-major order
+	 * @param fromX inclusive
+	 * @param fromY inclusive
+	 * @param toX exclusive
+	 * @param toY exclusive
+	 * @param dest
+	 */
+	public void readWindow(int fromX, int fromY, int toX, int toY, float[] dest) {
+		int columns = toX - fromX;
+		for (int y = fromY; y < toY; y++) {
+			readRow(y, fromX, toX, dest, (y - fromY) * columns);
+		}
+	}
+
+	/**
+	 * @return A number that changes every time a tower probability changes
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Gets a read-only copy of the tower probabilities.
+	 * The copy is only made again if a probability has changed since the last call.
+	 * @return The snapshot
+	 */
+	public Snapshot snapshot() {
+		if (snapshot == null || snapshot.version != version) {
+			float[] copy = new float[width * height];
+			readWindow(0, 0, width, height, copy);
+			snapshot = new Snapshot(width, version, copy);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Makes a read-only copy of this board that stores each tower probability in a single byte
+	 * @return The quantized board
+	 */
+	public GameBoard toQuantized() {
+		GameBoard quantized = new GameBoard(width, height, towerDensity);
+		quantized.quantized = true;
+		for (int t = 0; t < tiles.length; t++) {
+			if (tiles[t] != null) {
+				quantized.tiles[t] = tiles[t].toQuantized();
+			}
+		}
+		quantized.tileCount = tileCount;
+		quantized.version = version;
+		quantized.goldMine = goldMine;
+		return quantized;
+	}
+
+	public boolean isQuantized() {
+		return quantized;
+	}
+
+	/**
+	 * Makes an independent copy of this board, without the attached hit probability cache
+	 * @return The copy
+	 */
+	public GameBoard copy() {
+		GameBoard copy = new GameBoard(width, height, towerDensity);
+		copy.quantized = quantized;
+		for (int t = 0; t < tiles.length; t++) {
+			if (tiles[t] != null) {
+				copy.tiles[t] = tiles[t].copy();
+			}
+		}
+		copy.tileCount = tileCount;
+		copy.version = version;
+		copy.goldMine = goldMine;
+		copy.belief = belief == null ? null : belief.copy();
+		return copy;
+	}
+
+	/**
+	 * Adds what an episode learned to this board.
+	 * The episode started from base (a copy of this board, which may have learned from other episodes since) and
+	 * ended with result. Seen squares, trees and the gold mine are combined, the visits and hits made during the
+	 * episode are added, confirmed towers and confirmed empty squares are taken as they are, and every other tower
+	 * probability is moved by the episode's evidence: its change in odds relative to base.
+	 * @param result The board at the end of the episode
+	 * @param base The board at the start of the episode
+	 */
+	public void mergeEvidence(GameBoard result, GameBoard base) {
+		if (goldMine < 0) {
+			goldMine = result.goldMine;
+		}
+		for (int ty = 0; ty < tilesY; ty++) {
+			for (int tx = 0; tx < tilesX; tx++) {
+				// the episode never wrote to this tile, so it learned nothing there
+				if (result.isTileUntouched(tx, ty)) {
+					continue;
+				}
+				int toX = Math.min(width, (tx + 1) << TILE_SHIFT);
+				int toY = Math.min(height, (ty + 1) << TILE_SHIFT);
+				for (int y = ty << TILE_SHIFT; y < toY; y++) {
+					for (int x = tx << TILE_SHIFT; x < toX; x++) {
+						mergeCell(x, y, result, base);
+					}
+				}
+			}
+		}
 	}
 
-	public float[][] getBoardCopy() {
-		int x = towerProbability.length;
-		int y = towerProbability[0].length;
-	    float[][] newMap = new float[x][y];
-	    for (int i = 0; i < x; i++) {
-	        System.arraycopy(towerProbability[i], 0, newMap[i], 0, y);
-	    }
-	    return newMap; 
+	private void mergeCell(int x, int y, GameBoard result, GameBoard base) {
+		if (result.getSeen(x, y) && !getSeen(x, y)) {
+			setSeen(x, y, true);
+		}
+		if (result.getHasTree(x, y) && !getHasTree(x, y)) {
+			setHasTree(x, y, true);
+		}
+		int visits = result.getVisits(x, y) - base.getVisits(x, y);
+		int hits = result.getHits(x, y) - base.getHits(x, y);
+		if (visits != 0 || hits != 0) {
+			int offset = offset(x, y);
+			Tile tile = writableTile(x, y);
+			tile.counters[2 * offset] += visits;
+			tile.counters[2 * offset + 1] += hits;
+		}
+
+		float learned = result.getTowerProbability(x, y);
+		float before = base.getTowerProbability(x, y);
+		float current = getTowerProbability(x, y);
+		if (learned == before) {
+			return;
+		}
+		if (learned == 0 || learned == 1) {
+			setTowerProbability(x, y, learned);
+		} else if (before != 0 && before != 1 && current != 0 && current != 1) {
+			double withTower = (double)current * learned * (1 - before);
+			double withoutTower = (1.0 - current) * (1 - learned) * before;
+			setTowerProbability(x, y, (float)(withTower / (withTower + withoutTower)));
+		}
 	}
 
 	public void print() {
 		String[] value = new String[] { "  ", "1 ", "2 ", "3 ", "4 ", "5 ", "6 ", "7 ", "8 ", "9 ", "X!" };
-		for (int i = 0; i < towerProbability.length; i++) {
-			// for (int j = 0; j < towerProbability[i].length; j++) {
-		// for (int i = towerProbability.length - 1; i >= 0; i--) {
-			for (int j = towerProbability[i].length - 1; j >= 0; j--) {
-				System.out.print(value[(int)(towerProbability[i][j] * 10f + 0.01f)]);
-			}
-			System.out.println();
-		}
-	}
-	
-	public void serializeGameBoard(String saveName) {
-		try {
-			File dir = new File("SavedBoards");
-			dir.mkdir();
-			   
-			FileOutputStream fout = new FileOutputStream("SavedBoards\\" + saveName);
-			ObjectOutputStream oos = new ObjectOutputStream(fout);   
-			oos.writeObject(this);
-			oos.close();
-			System.out.println("Saved board");
-	 
-		   } catch (FileNotFoundException e1){
-			   System.err.println("Could not create location to save board");
-			   e1.printStackTrace();
-		   } catch (IOException e2) {
-			   System.err.println("Could not save board");
-			   e2.printStackTrace();
-		   }
-		
-	}
-	
-	public static GameBoard loadGameBoard(String name) {
-		GameBoard gameBoard;
-		 
-		   try {
-			   
-			   FileInputStream fin = new FileInputStream("SavedBoards\\" + name);
-			   ObjectInputStream ois = new ObjectInputStream(fin);
-			   gameBoard = (GameBoard) ois.readObject();
-			   ois.close();
-			   
-			   System.out.println("Loaded previous board");
-			   return gameBoard;
-	 
-		   } catch (FileNotFoundException e){
-			   System.out.println("No existing board to load");
-		   } catch (IOException e) {
-			   System.err.println("Could not load board");
-			   e.printStackTrace();
-		   } catch (ClassNotFoundException e) {
-			   System.err.println("Could not find specified class");
-			   e.printStackTrace();
-		   }
-		   
-		   return null;
+		String prior = value[(int)(towerDensity * 10f + 0.01f)];
+		StringBuilder line = new StringBuilder(2 * height);
+		for (int i = 0; i < width; i++) {
+			line.setLength(0);
+			// for (int j = 0; j < height; j++) {
+		// for (int i = width - 1; i >= 0; i--) {
+			for (int j = height - 1; j >= 0; ) {
+				if (tiles[tileIndex(i, j)] == null) {
+					// the rest of the tile's column is all at the prior
+					for (int bottom = j & ~TILE_MASK; j >= bottom; j--) {
+						line.append(prior);
+					}
+				} else {
+					line.append(value[(int)(getTowerProbability(i, j) * 10f + 0.01f)]);
+					j--;
+				}
+			}
+			System.out.println(line);
+		}
+	}
+
+	/**
+	 * @return The number of tiles across the board
+	 */
+	public int getTilesX() {
+		return tilesX;
+	}
+
+	/**
+	 * @return The number of tiles down the board
+	 */
+	public int getTilesY() {
+		return tilesY;
+	}
+
+	/**
+	 * @return How many tiles have been written to
+	 */
+	public int getTileCount() {
+		return tileCount;
+	}
+
+	/**
+	 * @param tileX
+	 * @param tileY
+	 * @return True if no cell of the tile was ever written, so every cell is at the prior
+	 */
+	public boolean isTileUntouched(int tileX, int tileY) {
+		return tiles[tileX + tileY * tilesX] == null;
+	}
+
+	/**
+	 * Unlike isTileUntouched, this is also true of a tile that was written to and has since returned to the prior
+	 * @param tileX
+	 * @param tileY
+	 * @return True if every cell of the tile is at the prior
+	 */
+	public boolean isTileAtPrior(int tileX, int tileY) {
+		Tile tile = tiles[tileX + tileY * tilesX];
+		if (tile == null) {
+			return true;
+		}
+		if (tile.atPriorStale) {
+			tile.atPrior = tile.isAtPrior(towerDensity);
+			tile.atPriorStale = false;
+		}
+		return tile.atPrior;
+	}
+
+	/**
+	 * @param tileX
+	 * @param tileY
+	 * @return True if every cell of the tile that is on the board has been seen
+	 */
+	public boolean isTileAllSeen(int tileX, int tileY) {
+		Tile tile = tiles[tileX + tileY * tilesX];
+		int columns = Math.min(TILE_SIZE, width - (tileX << TILE_SHIFT));
+		int rows = Math.min(TILE_SIZE, height - (tileY << TILE_SHIFT));
+		return tile != null && tile.seenCount == columns * rows;
+	}
+
+	/**
+	 * Starts remembering which cells change, for saving only what changed
+	 */
+	public void trackChanges() {
+		if (dirty == null) {
+			dirty = new long[(width * height + 63) >> 6];
+			dirtyCells = new int[1024];
+			dirtyCount = 0;
+		}
+	}
+
+	/**
+	 * @return How many cells changed since the last clearDirty
+	 */
+	public int getDirtyCount() {
+		return dirtyCount;
+	}
+
+	/**
+	 * @param i
+	 * @return The i-th changed cell (x + y * width)
+	 */
+	public int getDirtyCell(int i) {
+		return dirtyCells[i];
+	}
+
+	public void clearDirty() {
+		for (int i = 0; i < dirtyCount; i++) {
+			dirty[dirtyCells[i] >> 6] = 0;
+		}
+		dirtyCount = 0;
+	}
+
+	private void markDirty(int cell) {
+		if (dirty != null && (dirty[cell >> 6] & (1L << cell)) == 0) {
+			dirty[cell >> 6] |= 1L << cell;
+			if (dirtyCount == dirtyCells.length) {
+				dirtyCells = java.util.Arrays.copyOf(dirtyCells, 2 * dirtyCount);
+			}
+			dirtyCells[dirtyCount++] = cell;
+		}
+	}
+
+	/**
+	 * Writes every tile in row-major order: a byte that is 1 if the tile was written to and 0 if it is at the prior,
+	 * followed for written tiles by its tower probabilities, counters, seen bits and tree bits
+	 * @param buffer
+	 */
+	void writeCells(ByteBuffer buffer) {
+		for (Tile tile : tiles) {
+			if (tile == null) {
+				buffer.put((byte)0);
+				continue;
+			}
+			buffer.put((byte)1);
+			if (tile.probability == null) {
+				for (int i = 0; i < TILE_CELLS; i++) {
+					buffer.putFloat((tile.quantizedProbability[i] & 0xFF) / 255f);
+				}
+			} else {
+				buffer.asFloatBuffer().put(tile.probability);
+				buffer.position(buffer.position() + 4 * TILE_CELLS);
+			}
+			buffer.asIntBuffer().put(tile.counters);
+			buffer.position(buffer.position() + 8 * TILE_CELLS);
+			buffer.asLongBuffer().put(tile.seen);
+			buffer.position(buffer.position() + 8 * TILE_WORDS);
+			buffer.asLongBuffer().put(tile.hasTree);
+			buffer.position(buffer.position() + 8 * TILE_WORDS);
+		}
+	}
+
+	/**
+	 * Reads every tile in the layout of writeCells
+	 * @param buffer
+	 * @param version The version the board had when it was written
+	 * @throws IOException If a tile is neither written nor at the prior
+	 */
+	void readCells(ByteBuffer buffer, long version) throws IOException {
+		if (quantized) {
+			throw new IllegalStateException("Quantized boards are read only");
+		}
+		tileCount = 0;
+		belief = null;
+		for (int t = 0; t < tiles.length; t++) {
+			byte present = buffer.get();
+			if (present == 0) {
+				tiles[t] = null;
+				continue;
+			} else if (present != 1) {
+				throw new IOException("Unknown tile marker " + present);
+			}
+			Tile tile = new Tile(towerDensity);
+			buffer.asFloatBuffer().get(tile.probability);
+			buffer.position(buffer.position() + 4 * TILE_CELLS);
+			buffer.asIntBuffer().get(tile.counters);
+			buffer.position(buffer.position() + 8 * TILE_CELLS);
+			buffer.asLongBuffer().get(tile.seen);
+			buffer.position(buffer.position() + 8 * TILE_WORDS);
+			buffer.asLongBuffer().get(tile.hasTree);
+			buffer.position(buffer.position() + 8 * TILE_WORDS);
+			for (long word : tile.seen) {
+				tile.seenCount += Long.bitCount(word);
+			}
+			tiles[t] = tile;
+			tileCount++;
+		}
+		this.version = version;
+	}
+
+	/**
+	 * Reads every cell from the flat arrays of the first board format: all tower probabilities, then all counters,
+	 * seen bits and tree bits, each in row-major order over the whole board. Cells at the prior are not written.
+	 * @param buffer
+	 * @param version The version the board had when it was written
+	 */
+	void readFlatCells(ByteBuffer buffer, long version) {
+		int cells = width * height;
+		int words = (cells + 63) >> 6;
+		int start = buffer.position();
+		for (int cell = 0; cell < cells; cell++) {
+			float prob = buffer.getFloat(start + 4 * cell);
+			int visits = buffer.getInt(start + 4 * cells + 8 * cell);
+			int hits = buffer.getInt(start + 4 * cells + 8 * cell + 4);
+			boolean seen = (buffer.getLong(start + 12 * cells + 8 * (cell >> 6)) & (1L << cell)) != 0;
+			boolean tree = (buffer.getLong(start + 12 * cells + 8 * words + 8 * (cell >> 6)) & (1L << cell)) != 0;
+			int x = cell % width;
+			int y = cell / width;
+			setTowerProbability(x, y, prob);
+			setCounters(x, y, visits, hits);
+			setSeen(x, y, seen);
+			setHasTree(x, y, tree);
+		}
+		buffer.position(start + 12 * cells + 16 * words);
+		this.version = version;
+	}
+
+	/**
+	 * @return The number of bytes writeCells writes
+	 */
+	long getCellsSize() {
+		return tiles.length + (long)tileCount * TILE_RECORD_SIZE;
+	}
+
+	/**
+	 * Writes everything about one cell: its index, tower probability, visits, hits, and seen / tree flags
+	 * @param buffer
+	 * @param cell
+	 */
+	void writeCell(ByteBuffer buffer, int cell) {
+		int x = cell % width;
+		int y = cell / width;
+		buffer.putInt(cell);
+		buffer.putFloat(getTowerProbability(x, y));
+		buffer.putInt(getVisits(x, y));
+		buffer.putInt(getHits(x, y));
+		buffer.put((byte)((getSeen(x, y) ? 1 : 0) | (getHasTree(x, y) ? 2 : 0)));
+	}
+
+	/**
+	 * Overwrites one cell with what writeCell wrote
+	 * @param buffer
+	 */
+	void readCell(ByteBuffer buffer) {
+		int cell = buffer.getInt();
+		int x = cell % width;
+		int y = cell / width;
+		setTowerProbability(x, y, buffer.getFloat());
+		setCounters(x, y, buffer.getInt(), buffer.getInt());
+		byte flags = buffer.get();
+		setSeen(x, y, (flags & 1) != 0);
+		setHasTree(x, y, (flags & 2) != 0);
+	}
+
+	private void setCounters(int x, int y, int visits, int hits) {
+		if (visits != getVisits(x, y) || hits != getHits(x, y)) {
+			Tile tile = writableTile(x, y);
+			tile.counters[2 * offset(x, y)] = visits;
+			tile.counters[2 * offset(x, y) + 1] = hits;
+		}
+	}
+
+	private int tileIndex(int x, int y) {
+		return (x >> TILE_SHIFT) + (y >> TILE_SHIFT) * tilesX;
+	}
+
+	/**
+	 * @return Where the cell is within its tile
+	 */
+	private static int offset(int x, int y) {
+		return (x & TILE_MASK) + ((y & TILE_MASK) << TILE_SHIFT);
+	}
+
+	/**
+	 * @return The cell's tile, allocated at the prior if it was never written
+	 */
+	private Tile writableTile(int x, int y) {
+		int index = tileIndex(x, y);
+		Tile tile = tiles[index];
+		if (tile == null) {
+			tile = new Tile(towerDensity);
+			if (quantized) {
+				tile = tile.toQuantized();
+			}
+			tiles[index] = tile;
+			tileCount++;
+		}
+		tile.atPriorStale = true;
+		return tile;
+	}
+
+	void setVersion(long version) {
+		this.version = version;
+	}
+
+	/**
+	 * An immutable copy of the tower probabilities at some version of the board
+	 */
+	public static class Snapshot {
+		private final int width;
+		private final long version;
+		private final float[] probabilities;
+
+		private Snapshot(int width, long version, float[] probabilities) {
+			this.width = width;
+			this.version = version;
+			this.probabilities = probabilities;
+		}
+
+		public float get(int x, int y) {
+			return probabilities[x + y * width];
+		}
+
+		public long getVersion() {
+			return version;
+		}
+	}
+
+	/**
+	 * The cells of one TILE_SIZE x TILE_SIZE square of the board, offset = x + y * TILE_SIZE within the tile
+	 */
+	private static class Tile implements Serializable {
+		private static final long serialVersionUID = 6070129571829386014L;
+		private float probability[]; // null if quantized
+		private byte quantizedProbability[];
+		private final int counters[] = new int[2 * TILE_CELLS]; // visits at 2 * offset, hits at 2 * offset + 1
+		private final long seen[] = new long[TILE_WORDS];
+		private final long hasTree[] = new long[TILE_WORDS];
+		private int seenCount;
+		private boolean atPrior; // every cell at the prior, as of the last isTileAtPrior
+		private boolean atPriorStale = true; // written to since, or never worked out; copies work it out again
+
+		private Tile(float towerDensity) {
+			probability = new float[TILE_CELLS];
+			java.util.Arrays.fill(probability, towerDensity);
+		}
+
+		private Tile copy() {
+			Tile copy = new Tile(0);
+			copy.probability = probability == null ? null : probability.clone();
+			copy.quantizedProbability = quantizedProbability == null ? null : quantizedProbability.clone();
+			copy.fillFrom(this);
+			return copy;
+		}
+
+		private Tile toQuantized() {
+			Tile quantized = new Tile(0);
+			quantized.probability = null;
+			quantized.quantizedProbability = new byte[TILE_CELLS];
+			for (int i = 0; i < TILE_CELLS; i++) {
+				float value = probability == null ? (quantizedProbability[i] & 0xFF) / 255f : probability[i];
+				quantized.quantizedProbability[i] = (byte)Math.round(value * 255f);
+			}
+			quantized.fillFrom(this);
+			return quantized;
+		}
+
+		private boolean isAtPrior(float towerDensity) {
+			if (seenCount != 0 || probability == null) {
+				return false; // quantized tiles are kept for reference and are not summarized
+			}
+			for (long word : hasTree) {
+				if (word != 0) {
+					return false;
+				}
+			}
+			for (int counter : counters) {
+				if (counter != 0) {
+					return false;
+				}
+			}
+			for (float p : probability) {
+				if (p != towerDensity) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void fillFrom(Tile other) {
+			System.arraycopy(other.counters, 0, counters, 0, counters.length);
+			System.arraycopy(other.seen, 0, seen, 0, seen.length);
+			System.arraycopy(other.hasTree, 0, hasTree, 0, hasTree.length);
+			seenCount = other.seenCount;
+		}
 	}
 }
@@ -0,0 +1,387 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import edu.cwru.sepia.action.Action;
+import edu.cwru.sepia.action.ActionType;
+import edu.cwru.sepia.action.DirectedAction;
+import edu.cwru.sepia.action.ProductionAction;
+import edu.cwru.sepia.action.TargetedAction;
+import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.environment.model.state.PlayerState;
+import edu.cwru.sepia.environment.model.state.ResourceNode;
+import edu.cwru.sepia.environment.model.state.ResourceType;
+import edu.cwru.sepia.environment.model.state.State;
+import edu.cwru.sepia.environment.model.state.Unit;
+import edu.cwru.sepia.environment.model.state.UnitTemplate;
+import edu.cwru.sepia.util.Direction;
+
+/**
+ * Plays whole episodes of a map in-process, without SEPIA's runner, its XML loader or a window.
+ *
+ * The world is a SEPIA State built from the map file, so the agent gets a real StateView, but the simulator
+ * applies the actions itself and only supports what ProbAgent uses: primitive moves, gathering from and
+ * depositing at an adjacent target (a compound action on a target further away makes one step towards it),
+ * and producing units. Like OpponentAgent, each scout tower shoots at the first peasant within its range,
+ * hitting with TOWER_ACCURACY.
+ *
+ * The simulator ends an episode itself as soon as the gold goal is reached or every peasant is dead, like
+ * ProbEpisodeRunner does under SEPIA, and then calls the agent's terminalStep.
+ *
+ * Usage: java HeadlessSimulator [map] [episodes] [seed] [agent arguments...]
+ */
+public class HeadlessSimulator {
+	private static final int GOLD_REQUIRED = 2000;
+	private static final float TOWER_ACCURACY = 0.75f;
+	private static final int DEFAULT_TURN_LIMIT = 5000;
+	private static final int PLAYER = 0;
+
+	private final MapFile map;
+	private final Random random;
+	private int turnLimit = DEFAULT_TURN_LIMIT;
+
+	private State state;
+	private int hits;
+	private int deaths;
+
+	public HeadlessSimulator(MapFile map, long seed) {
+		this.map = map;
+		this.random = new Random(seed);
+	}
+
+	public void setTurnLimit(int turnLimit) {
+		this.turnLimit = turnLimit;
+	}
+
+	/**
+	 * Plays one episode from the start of the map
+	 * @param agent A fresh agent for player 0
+	 * @return How the episode went
+	 */
+	public Result runEpisode(Agent agent) {
+		state = buildState();
+		hits = 0;
+		deaths = 0;
+
+		Map<Integer, Action> actions = agent.initialStep(state.getView(PLAYER), null);
+		Outcome outcome = Outcome.TIMED_OUT;
+		int turn;
+		for (turn = 1; turn <= turnLimit; turn++) {
+			executeStep(actions);
+
+			if (state.getResourceAmount(PLAYER, ResourceType.GOLD) >= GOLD_REQUIRED) {
+				outcome = Outcome.COMPLETED;
+				break;
+			}
+			if (countPeasants() == 0) {
+				outcome = Outcome.DEAD;
+				break;
+			}
+			actions = agent.middleStep(state.getView(PLAYER), null);
+		}
+		agent.terminalStep(state.getView(PLAYER), null);
+
+		return new Result(outcome, Math.min(turn, turnLimit), state.getResourceAmount(PLAYER, ResourceType.GOLD), hits, deaths);
+	}
+
+	/**
+	 * @return The world as it is at the end of the last episode
+	 */
+	public State getState() {
+		return state;
+	}
+
+	private State buildState() {
+		State.StateBuilder builder = new State.StateBuilder();
+		builder.setIDDistributerTargetMax(map.getNextTargetId());
+		for (MapFile.PlayerEntry player : map.getPlayers()) {
+			builder.addPlayer(new PlayerState(player.id));
+			builder.setResourceAmount(player.id, ResourceType.GOLD, player.gold);
+			builder.setResourceAmount(player.id, ResourceType.WOOD, player.wood);
+		}
+		// sizing the state sets up every player's vision, so it has to come after the players
+		builder.setSize(map.getWidth(), map.getHeight());
+
+		Map<Integer, UnitTemplate> templates = new HashMap<Integer, UnitTemplate>();
+		for (MapFile.TemplateEntry entry : map.getTemplates()) {
+			UnitTemplate template = new UnitTemplate(entry.id);
+			template.setPlayer(entry.player);
+			template.setName(entry.name);
+			template.setGoldCost(entry.goldCost);
+			template.setWoodCost(entry.woodCost);
+			template.setFoodCost(entry.foodCost);
+			template.setTimeCost(1);
+			template.setBaseHealth(entry.baseHealth);
+			template.setBasicAttack(entry.basicAttack);
+			template.setPiercingAttack(entry.piercingAttack);
+			template.setRange(entry.range);
+			template.setArmor(entry.armor);
+			template.setSightRange(entry.sightRange);
+			template.setCanGather(entry.canGather);
+			template.setCanBuild(entry.canBuild);
+			template.setCanMove(entry.canMove);
+			template.setCanAcceptGold(entry.canAcceptGold);
+			template.setCanAcceptWood(entry.canAcceptWood);
+			template.setFoodProvided(entry.foodProvided);
+			template.setCharacter(entry.character);
+			template.setGoldGatherRate(entry.goldGatherRate);
+			template.setWoodGatherRate(entry.woodGatherRate);
+			template.setDurationMove(1);
+			template.setDurationAttack(1);
+			template.setDurationDeposit(1);
+			template.setDurationGatherGold(1);
+			template.setDurationGatherWood(1);
+			for (int produced : entry.produces) {
+				template.addProductionItem(produced);
+			}
+			templates.put(entry.id, template);
+			builder.addTemplate(template);
+		}
+
+		for (MapFile.UnitEntry entry : map.getUnits()) {
+			UnitTemplate template = templates.get(entry.templateId);
+			Unit unit = new Unit(template, entry.id);
+			unit.setHP(entry.health);
+			if (template.canGather() && entry.cargo > 0) {
+				unit.setCargo(ResourceType.GOLD, entry.cargo);
+			}
+			builder.addUnit(unit, entry.x, entry.y);
+		}
+
+		for (MapFile.ResourceEntry entry : map.getResources()) {
+			ResourceNode.Type type = entry.type.equals("GOLD_MINE") ? ResourceNode.Type.GOLD_MINE : ResourceNode.Type.TREE;
+			builder.addResource(new ResourceNode(type, entry.x, entry.y, entry.amount, entry.id));
+		}
+
+		// supply and supply cap follow from the units that were added
+		State built = builder.build();
+		// peasants only ever look PEASANT_RANGE squares around them, so there is no need to track vision
+		built.setFogOfWar(false);
+		return built;
+	}
+
+	/**
+	 * Fires the towers at the peasants where they stand, then carries out the agent's orders
+	 */
+	private void executeStep(Map<Integer, Action> actions) {
+		List<Unit> peasants = new ArrayList<Unit>();
+		List<Unit> towers = new ArrayList<Unit>();
+		for (Unit unit : state.getUnits().values()) {
+			String name = unit.getTemplate().getName();
+			if (unit.getPlayer() == PLAYER && name.equals("Peasant")) {
+				peasants.add(unit);
+			} else if (unit.getPlayer() != PLAYER && name.equals("ScoutTower")) {
+				towers.add(unit);
+			}
+		}
+
+		boolean[] fired = new boolean[towers.size()];
+		for (Unit peasant : peasants) {
+			for (int i = 0; i < towers.size(); i++) {
+				Unit tower = towers.get(i);
+				if (fired[i] || !inRange(tower, peasant)) {
+					continue;
+				}
+				fired[i] = true;
+				if (random.nextFloat() < TOWER_ACCURACY && peasant.getCurrentHealth() > 0) {
+					attack(tower, peasant);
+				}
+			}
+		}
+
+		if (actions != null) {
+			for (Action action : actions.values()) {
+				Unit unit = state.getUnit(action.getUnitId());
+				if (unit != null && unit.getPlayer() == PLAYER) {
+					execute(unit, action);
+				}
+			}
+		}
+		state.incrementTurn();
+	}
+
+	private boolean inRange(Unit tower, Unit target) {
+		int dx = tower.getxPosition() - target.getxPosition();
+		int dy = tower.getyPosition() - target.getyPosition();
+		int range = tower.getTemplate().getRange();
+		return dx * dx + dy * dy <= range * range;
+	}
+
+	private void attack(Unit attacker, Unit target) {
+		UnitTemplate weapon = attacker.getTemplate();
+		int damage = Math.max(1, Math.max(0, weapon.getBasicAttack() - target.getTemplate().getArmor()) + weapon.getPiercingAttack());
+		hits++;
+		if (target.getCurrentHealth() <= damage) {
+			deaths++;
+			state.removeUnit(target.ID);
+		} else {
+			target.setHP(target.getCurrentHealth() - damage);
+			target.deprecateOldView();
+		}
+	}
+
+	private void execute(Unit unit, Action action) {
+		ActionType type = action.getType();
+		if (type == ActionType.PRIMITIVEMOVE) {
+			move(unit, ((DirectedAction)action).getDirection());
+		} else if (type == ActionType.COMPOUNDGATHER) {
+			ResourceNode node = state.getResource(((TargetedAction)action).getTargetId());
+			if (node == null) {
+				return;
+			}
+			if (isAdjacent(unit, node.getxPosition(), node.getyPosition())) {
+				gather(unit, node);
+			} else {
+				stepTowards(unit, node.getxPosition(), node.getyPosition());
+			}
+		} else if (type == ActionType.COMPOUNDDEPOSIT) {
+			Unit townhall = state.getUnit(((TargetedAction)action).getTargetId());
+			if (townhall == null) {
+				return;
+			}
+			if (isAdjacent(unit, townhall.getxPosition(), townhall.getyPosition())) {
+				deposit(unit);
+			} else {
+				stepTowards(unit, townhall.getxPosition(), townhall.getyPosition());
+			}
+		} else if (type == ActionType.COMPOUNDPRODUCE || type == ActionType.PRIMITIVEPRODUCE) {
+			produce(unit, (UnitTemplate)state.getTemplate(((ProductionAction)action).getTemplateId()));
+		}
+	}
+
+	private void move(Unit unit, Direction direction) {
+		if (direction == null || !unit.getTemplate().canMove()) {
+			return;
+		}
+		int x = unit.getxPosition() + direction.xComponent();
+		int y = unit.getyPosition() + direction.yComponent();
+		if (state.inBounds(x, y) && state.positionAvailable(x, y)) {
+			state.moveUnit(unit, direction);
+			unit.deprecateOldView();
+		}
+	}
+
+	private void stepTowards(Unit unit, int x, int y) {
+		int dx = Integer.signum(x - unit.getxPosition());
+		int dy = Integer.signum(y - unit.getyPosition());
+		if (dx != 0 || dy != 0) {
+			move(unit, Direction.getDirection(dx, dy));
+		}
+	}
+
+	private void gather(Unit unit, ResourceNode node) {
+		if (unit.getCurrentCargoAmount() > 0 || !unit.getTemplate().canGather()) {
+			return;
+		}
+		int amount = node.reduceAmountRemaining(unit.getTemplate().getGatherRate(node.getType()));
+		unit.setCargo(node.getResourceType(), amount);
+		unit.deprecateOldView();
+		if (node.getAmountRemaining() <= 0) {
+			state.removeResourceNode(node.getID());
+		}
+	}
+
+	private void deposit(Unit unit) {
+		if (unit.getCurrentCargoAmount() == 0) {
+			return;
+		}
+		state.addResourceAmount(unit.getPlayer(), unit.getCurrentCargoType(), unit.getCurrentCargoAmount());
+		unit.clearCargo();
+		unit.deprecateOldView();
+	}
+
+	private void produce(Unit producer, UnitTemplate template) {
+		int player = producer.getPlayer();
+		if (template == null
+				|| state.getResourceAmount(player, ResourceType.GOLD) < template.getGoldCost()
+				|| state.getResourceAmount(player, ResourceType.WOOD) < template.getWoodCost()
+				|| state.getSupplyAmount(player) + template.getFoodCost() > state.getSupplyCap(player)) {
+			return;
+		}
+		int[] position = state.getClosestPosition(producer.getxPosition(), producer.getyPosition());
+		if (position == null || !state.inBounds(position[0], position[1])) {
+			return;
+		}
+		state.addResourceAmount(player, ResourceType.GOLD, -template.getGoldCost());
+		state.addResourceAmount(player, ResourceType.WOOD, -template.getWoodCost());
+		state.addUnit(template.produceInstance(state), position[0], position[1]);
+	}
+
+	private static boolean isAdjacent(Unit unit, int x, int y) {
+		return Math.abs(unit.getxPosition() - x) <= 1 && Math.abs(unit.getyPosition() - y) <= 1;
+	}
+
+	private int countPeasants() {
+		int count = 0;
+		for (Unit unit : state.getUnits(PLAYER).values()) {
+			if (unit.getTemplate().getName().equals("Peasant")) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public static void main(String[] args) throws IOException {
+		String mapName = args.length > 0 ? args[0] : "prob_19x25_e1.xml";
+		int episodes = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 391;
+		String[] agentArgs = args.length > 3 ? Arrays.copyOfRange(args, 3, args.length) : new String[0];
+
+		HeadlessSimulator simulator = new HeadlessSimulator(MapFile.load(mapName), seed);
+		PrintStream out = System.out;
+		// the agent narrates every turn, which would drown out the results
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		}));
+
+		int completed = 0;
+		long totalTurns = 0;
+		long start = System.nanoTime();
+		for (int episode = 0; episode < episodes; episode++) {
+			long episodeStart = System.nanoTime();
+			Result result = simulator.runEpisode(new ProbAgent(PLAYER, agentArgs));
+			out.printf("Episode %d: %s after %d turns, %d gold, %d hits, %d peasants lost (%.1f ms)%n", episode,
+					result.outcome, result.turns, result.gold, result.hits, result.deaths, (System.nanoTime() - episodeStart) / 1e6);
+			if (result.outcome == Outcome.COMPLETED) {
+				completed++;
+			}
+			totalTurns += result.turns;
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		out.printf("%d of %d episodes completed, %.1f turns per episode, %.1f episodes per second%n",
+				completed, episodes, (double)totalTurns / episodes, episodes / seconds);
+	}
+
+	public enum Outcome {
+		COMPLETED, // collected GOLD_REQUIRED gold
+		DEAD,      // every peasant was killed
+		TIMED_OUT  // ran out of turns
+	}
+
+	/**
+	 * How one episode ended
+	 */
+	public static class Result {
+		public final Outcome outcome;
+		public final int turns;
+		public final int gold;
+		public final int hits;
+		public final int deaths;
+
+		private Result(Outcome outcome, int turns, int gold, int hits, int deaths) {
+			this.outcome = outcome;
+			this.turns = turns;
+			this.gold = gold;
+			this.hits = hits;
+			this.deaths = deaths;
+		}
+	}
+}
@@ -0,0 +1,671 @@
+/**
+ * HPA* planner for one destination, shared by every peasant heading there.
+ *
+ * The board is cut into CLUSTER_SIZE x CLUSTER_SIZE clusters. Wherever two neighboring clusters share a run of
+ * passable squares, the run gets an entrance (two for long runs), and the squares on either side of it become
+ * nodes of an abstract graph. Each cluster stores the cost of the safest path between every pair of its nodes,
+ * staying inside the cluster. The cost from every node to the destination is then found with one search over the
+ * small abstract graph instead of the whole board, and only the cluster a peasant is standing in is worked out
+ * square by square, the first time a peasant needs it.
+ *
+ * When squares' costs change, only the clusters holding them are rebuilt, along with any neighbor whose entrances
+ * moved as a result. Like RiskFlowField, everything ignores the peasants except the choice of the next step.
+ */
+public class HierarchicalPlanner {
+	public static final int CLUSTER_SIZE = 8;
+	private static final float INFINITY = Float.POSITIVE_INFINITY;
+	private static final float STEP_COST = AStarSearch.HEURISTIC_STEP_COST; // added to every step, so that among equally safe paths the shortest wins
+	private static final int ENTRANCE_SPLIT = 6; // runs at least this long get an entrance at each end instead of one in the middle
+
+	// which border of its cluster made a square an entrance
+	private static final int WEST = 1;
+	private static final int EAST = 2;
+	private static final int NORTH = 4;
+	private static final int SOUTH = 8;
+
+	private final int width;
+	private final int height;
+	private final int clustersX;
+	private final int clustersY;
+
+	private final float[] cost; // cost of stepping onto each square when its cluster was built
+	private final byte[] entranceSides;
+	private final int[] nodeIndex; // position of a node square in its cluster's node list
+	private final int[][] nodes;
+	private final float[][] intra; // cost from node i to node j of a cluster, at i * nodes + j
+	private final boolean[] dirty;
+	private final int[] dirtyList;
+	private int dirtyCount;
+	private final boolean[] stale; // clusters whose intra-cluster costs have to be recomputed
+	private boolean built = false;
+
+	private int goal = -1;
+	private float[] goalCosts = new float[0]; // cost from each node of the goal's cluster to the goal
+	private boolean goalStale = true;
+	private long changeMark;
+
+	private final float[] nodeDistance; // cost from each node to the destination over the abstract graph
+	private final float[] potential; // cost from each square to the destination, for the clusters worked out so far
+	private final int[] potentialVersion;
+	private int version; // bumped whenever nodeDistance changes
+
+	// search state, shared by every search
+	private final float[] localDistance;
+	private final int[] localStamp;
+	private int search;
+	private final float[] key;
+	private final int[] heap;
+	private final int[] heapIndex;
+	private int heapSize;
+
+	private int expanded;
+	private int rebuilt;
+	private int rebuiltTotal;
+
+	public HierarchicalPlanner(int width, int height) {
+		this.width = width;
+		this.height = height;
+		clustersX = (width + CLUSTER_SIZE - 1) / CLUSTER_SIZE;
+		clustersY = (height + CLUSTER_SIZE - 1) / CLUSTER_SIZE;
+		int cells = width * height;
+		int clusters = clustersX * clustersY;
+		cost          = new float[cells];
+		entranceSides = new  byte[cells];
+		nodeIndex     = new   int[cells];
+		nodes         = new int[clusters][];
+		intra         = new float[clusters][];
+		dirty         = new boolean[clusters];
+		dirtyList     = new int[clusters];
+		stale         = new boolean[clusters];
+		nodeDistance  = new float[cells];
+		potential     = new float[cells];
+		potentialVersion = new int[clusters];
+		localDistance = new float[cells];
+		localStamp    = new   int[cells];
+		key           = new float[cells];
+		heap          = new   int[cells];
+		heapIndex     = new   int[cells];
+		for (int cell = 0; cell < cells; cell++) {
+			heapIndex[cell] = -1;
+		}
+		for (int cluster = 0; cluster < clusters; cluster++) {
+			nodes[cluster] = new int[0];
+			intra[cluster] = new float[0];
+		}
+	}
+
+	/**
+	 * Rebuilds the clusters whose squares changed since the last call, and the goal's costs if the destination moved
+	 * @param grid Passability without the peasants
+	 * @param field
+	 * @param goalX
+	 * @param goalY
+	 */
+	public void update(SearchGrid grid, HitProbabilityField field, int goalX, int goalY) {
+		expanded = 0;
+		rebuilt = 0;
+		long mark = field.getChangeMark();
+		if (!built || !field.hasChangesSince(changeMark)) {
+			for (int cell = 0; cell < cost.length; cell++) {
+				cost[cell] = currentCost(grid, cell);
+			}
+			for (int cluster = 0; cluster < nodes.length; cluster++) {
+				markDirty(cluster);
+			}
+			built = true;
+		} else {
+			for (long position = changeMark; position < mark; position++) {
+				int cell = field.getChangedCell(position);
+				float newCost = currentCost(grid, cell);
+				if (newCost != cost[cell]) {
+					cost[cell] = newCost;
+					markDirty(clusterOf(cell));
+				}
+			}
+		}
+		changeMark = mark;
+
+		int newGoal = goalX + goalY * width;
+		if (newGoal != goal) {
+			goal = newGoal;
+			goalStale = true;
+		}
+		boolean changed = goalStale || dirtyCount > 0;
+		rebuildDirty(grid);
+		if (goalStale) {
+			computeGoalCosts(grid);
+		}
+		if (changed) {
+			computeNodeDistances();
+		}
+	}
+
+	/**
+	 * Picks the free neighbor with the cheapest path onwards to the destination, working out the costs inside
+	 * the square's cluster if no peasant has needed them since the last change
+	 * @param grid Passability including the peasants
+	 * @param x
+	 * @param y
+	 * @return The square (x + y * width) to move to, or -1 if there is none
+	 */
+	public int nextStep(SearchGrid grid, int x, int y) {
+		int cluster = clusterOf(x + y * width);
+		if (potentialVersion[cluster] != version) {
+			computePotential(cluster);
+		}
+
+		int best = -1;
+		float bestCost = INFINITY;
+		for (int i = -1; i <= 1; i++) {
+			for (int j = -1; j <= 1; j++) {
+				int nx = x + i;
+				int ny = y + j;
+				if ((i == 0 && j == 0) || nx < 0 || nx >= width || ny < 0 || ny >= height) {
+					continue;
+				}
+				int cell = nx + ny * width;
+				float onwards;
+				if (clusterOf(cell) == cluster) {
+					onwards = potential[cell];
+				} else if (entranceSides[cell] != 0) {
+					onwards = nodeDistance[cell]; // straight across the border onto a node
+				} else {
+					continue;
+				}
+				float total = cost[cell] + STEP_COST + onwards;
+				if (total < bestCost && grid.isPassable(nx, ny)) {
+					bestCost = total;
+					best = cell;
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return The number of squares and nodes expanded since the last call to update, including by nextStep
+	 */
+	public int getExpanded() {
+		return expanded;
+	}
+
+	/**
+	 * @return The number of clusters rebuilt by the last call to update
+	 */
+	public int getRebuilt() {
+		return rebuilt;
+	}
+
+	/**
+	 * @return The number of clusters rebuilt since the planner was made
+	 */
+	public int getRebuiltTotal() {
+		return rebuiltTotal;
+	}
+
+	/**
+	 * @return The number of nodes in the abstract graph
+	 */
+	public int getNodeCount() {
+		int count = 0;
+		for (int[] clusterNodes : nodes) {
+			count += clusterNodes.length;
+		}
+		return count;
+	}
+
+	public int getGoal() {
+		return goal;
+	}
+
+	private int clusterOf(int cell) {
+		return (cell % width) / CLUSTER_SIZE + (cell / width) / CLUSTER_SIZE * clustersX;
+	}
+
+	private float currentCost(SearchGrid grid, int cell) {
+		int x = cell % width;
+		int y = cell / width;
+		return grid.isPassable(x, y) ? grid.getCost(x, y) : INFINITY;
+	}
+
+	private void markDirty(int cluster) {
+		if (!dirty[cluster]) {
+			dirty[cluster] = true;
+			dirtyList[dirtyCount++] = cluster;
+		}
+	}
+
+	/**
+	 * Recomputes the entrances on every border of the dirty clusters, then the intra-cluster costs of every
+	 * cluster whose squares or nodes changed
+	 */
+	private void rebuildDirty(SearchGrid grid) {
+		if (dirtyCount == 0) {
+			return;
+		}
+		int goalCluster = goal < 0 ? -1 : clusterOf(goal);
+		for (int i = 0; i < dirtyCount; i++) {
+			int cluster = dirtyList[i];
+			int cx = cluster % clustersX;
+			int cy = cluster / clustersX;
+			stale[cluster] = true;
+			if (cx > 0) {
+				buildVerticalBorder(cluster - 1);
+			}
+			if (cx < clustersX - 1) {
+				buildVerticalBorder(cluster);
+			}
+			if (cy > 0) {
+				buildHorizontalBorder(cluster - clustersX);
+			}
+			if (cy < clustersY - 1) {
+				buildHorizontalBorder(cluster);
+			}
+		}
+
+		for (int i = 0; i < dirtyCount; i++) {
+			int cluster = dirtyList[i];
+			int cx = cluster % clustersX;
+			int cy = cluster / clustersX;
+			collectNodes(cluster);
+			if (cx > 0) {
+				collectNodes(cluster - 1);
+			}
+			if (cx < clustersX - 1) {
+				collectNodes(cluster + 1);
+			}
+			if (cy > 0) {
+				collectNodes(cluster - clustersX);
+			}
+			if (cy < clustersY - 1) {
+				collectNodes(cluster + clustersX);
+			}
+		}
+
+		for (int i = 0; i < dirtyCount; i++) {
+			int cluster = dirtyList[i];
+			int cx = cluster % clustersX;
+			int cy = cluster / clustersX;
+			buildIntra(grid, cluster, goalCluster);
+			if (cx > 0) {
+				buildIntra(grid, cluster - 1, goalCluster);
+			}
+			if (cx < clustersX - 1) {
+				buildIntra(grid, cluster + 1, goalCluster);
+			}
+			if (cy > 0) {
+				buildIntra(grid, cluster - clustersX, goalCluster);
+			}
+			if (cy < clustersY - 1) {
+				buildIntra(grid, cluster + clustersX, goalCluster);
+			}
+			dirty[cluster] = false;
+		}
+		dirtyCount = 0;
+	}
+
+	/**
+	 * Places the entrances between a cluster and the one to its east
+	 */
+	private void buildVerticalBorder(int cluster) {
+		int westX = (cluster % clustersX) * CLUSTER_SIZE + CLUSTER_SIZE - 1;
+		int top = (cluster / clustersX) * CLUSTER_SIZE;
+		int bottom = Math.min(top + CLUSTER_SIZE, height);
+		int runStart = -1;
+		for (int y = top; y <= bottom; y++) {
+			int west = westX + y * width;
+			if (y < bottom) {
+				entranceSides[west] &= ~EAST;
+				entranceSides[west + 1] &= ~WEST;
+			}
+			boolean open = y < bottom && cost[west] != INFINITY && cost[west + 1] != INFINITY;
+			if (open && runStart < 0) {
+				runStart = y;
+			} else if (!open && runStart >= 0) {
+				int[] ends = entrances(runStart, y - 1);
+				for (int end : ends) {
+					int cell = westX + end * width;
+					entranceSides[cell] |= EAST;
+					entranceSides[cell + 1] |= WEST;
+				}
+				runStart = -1;
+			}
+		}
+	}
+
+	/**
+	 * Places the entrances between a cluster and the one to its south
+	 */
+	private void buildHorizontalBorder(int cluster) {
+		int northY = (cluster / clustersX) * CLUSTER_SIZE + CLUSTER_SIZE - 1;
+		int left = (cluster % clustersX) * CLUSTER_SIZE;
+		int right = Math.min(left + CLUSTER_SIZE, width);
+		int runStart = -1;
+		for (int x = left; x <= right; x++) {
+			int north = x + northY * width;
+			if (x < right) {
+				entranceSides[north] &= ~SOUTH;
+				entranceSides[north + width] &= ~NORTH;
+			}
+			boolean open = x < right && cost[north] != INFINITY && cost[north + width] != INFINITY;
+			if (open && runStart < 0) {
+				runStart = x;
+			} else if (!open && runStart >= 0) {
+				int[] ends = entrances(runStart, x - 1);
+				for (int end : ends) {
+					int cell = end + northY * width;
+					entranceSides[cell] |= SOUTH;
+					entranceSides[cell + width] |= NORTH;
+				}
+				runStart = -1;
+			}
+		}
+	}
+
+	private static int[] entrances(int first, int last) {
+		if (last - first + 1 >= ENTRANCE_SPLIT) {
+			return new int[] {first, last};
+		}
+		return new int[] {(first + last) / 2};
+	}
+
+	/**
+	 * Lists the entrance squares of a cluster, and marks it stale if they changed
+	 */
+	private void collectNodes(int cluster) {
+		int left = (cluster % clustersX) * CLUSTER_SIZE;
+		int top = (cluster / clustersX) * CLUSTER_SIZE;
+		int right = Math.min(left + CLUSTER_SIZE, width);
+		int bottom = Math.min(top + CLUSTER_SIZE, height);
+		int count = 0;
+		for (int y = top; y < bottom; y++) {
+			for (int x = left; x < right; x++) {
+				if (entranceSides[x + y * width] != 0) {
+					count++;
+				}
+			}
+		}
+
+		int[] old = nodes[cluster];
+		int[] found = new int[count];
+		count = 0;
+		boolean changed = old.length != found.length;
+		for (int y = top; y < bottom; y++) {
+			for (int x = left; x < right; x++) {
+				int cell = x + y * width;
+				if (entranceSides[cell] != 0) {
+					changed |= count >= old.length || old[count] != cell;
+					nodeIndex[cell] = count;
+					found[count++] = cell;
+				}
+			}
+		}
+		if (changed) {
+			nodes[cluster] = found;
+			stale[cluster] = true;
+		}
+	}
+
+	/**
+	 * Finds the cost between every pair of a cluster's nodes, if the cluster is stale
+	 */
+	private void buildIntra(SearchGrid grid, int cluster, int goalCluster) {
+		if (!stale[cluster]) {
+			return;
+		}
+		stale[cluster] = false;
+		rebuilt++;
+		rebuiltTotal++;
+		if (cluster == goalCluster) {
+			goalStale = true;
+		}
+
+		int[] clusterNodes = nodes[cluster];
+		int count = clusterNodes.length;
+		float[] costs = new float[count * count];
+		for (int i = 0; i < count; i++) {
+			localSearch(grid, clusterNodes[i], false);
+			for (int j = 0; j < count; j++) {
+				costs[i * count + j] = localStamp[clusterNodes[j]] == search ? localDistance[clusterNodes[j]] : INFINITY;
+			}
+			costs[i * count + i] = 0;
+		}
+		intra[cluster] = costs;
+	}
+
+	/**
+	 * Finds the cost from every node of the goal's cluster to the goal
+	 */
+	private void computeGoalCosts(SearchGrid grid) {
+		goalStale = false;
+		int[] clusterNodes = nodes[clusterOf(goal)];
+		goalCosts = new float[clusterNodes.length];
+		localSearch(grid, goal, true);
+		for (int i = 0; i < clusterNodes.length; i++) {
+			goalCosts[i] = localStamp[clusterNodes[i]] == search ? localDistance[clusterNodes[i]] : INFINITY;
+		}
+	}
+
+	/**
+	 * Dijkstra that stays inside the source's cluster. Squares it reaches have localStamp equal to search.
+	 * @param grid
+	 * @param source
+	 * @param backward True to find the cost from every square to the source instead of from the source
+	 */
+	private void localSearch(SearchGrid grid, int source, boolean backward) {
+		search++;
+		int cluster = clusterOf(source);
+		int left = (cluster % clustersX) * CLUSTER_SIZE;
+		int top = (cluster / clustersX) * CLUSTER_SIZE;
+		int right = Math.min(left + CLUSTER_SIZE, width);
+		int bottom = Math.min(top + CLUSTER_SIZE, height);
+		if (backward && !grid.isPassable(source % width, source / width)) {
+			return;
+		}
+
+		localStamp[source] = search;
+		localDistance[source] = 0;
+		key[source] = 0;
+		push(source);
+		while (heapSize > 0) {
+			int current = pop();
+			expanded++;
+			int cx = current % width;
+			int cy = current / width;
+			// backwards, anything that steps onto current pays its cost
+			float leaving = backward ? grid.getCost(cx, cy) + STEP_COST : 0;
+			for (int i = -1; i <= 1; i++) {
+				for (int j = -1; j <= 1; j++) {
+					int x = cx + i;
+					int y = cy + j;
+					if ((i == 0 && j == 0) || x < left || x >= right || y < top || y >= bottom || !grid.isPassable(x, y)) {
+						continue;
+					}
+					int neighbor = x + y * width;
+					float distance = localDistance[current] + (backward ? leaving : grid.getCost(x, y) + STEP_COST);
+					if (localStamp[neighbor] != search || distance < localDistance[neighbor]) {
+						localStamp[neighbor] = search;
+						localDistance[neighbor] = distance;
+						key[neighbor] = distance;
+						if (heapIndex[neighbor] >= 0) {
+							siftUp(heapIndex[neighbor]);
+						} else {
+							push(neighbor);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the cost from every node to the destination with a reverse Dijkstra over the abstract graph
+	 */
+	private void computeNodeDistances() {
+		version++;
+		for (int[] clusterNodes : nodes) {
+			for (int node : clusterNodes) {
+				nodeDistance[node] = INFINITY;
+			}
+		}
+		int[] goalNodes = nodes[clusterOf(goal)];
+		for (int i = 0; i < goalNodes.length; i++) {
+			lower(nodeDistance, goalNodes[i], goalCosts[i]);
+		}
+
+		while (heapSize > 0) {
+			int current = pop();
+			expanded++;
+			float distance = nodeDistance[current];
+			int cluster = clusterOf(current);
+			int index = nodeIndex[current];
+			int[] clusterNodes = nodes[cluster];
+			float[] costs = intra[cluster];
+			for (int i = 0; i < clusterNodes.length; i++) {
+				float via = costs[i * clusterNodes.length + index];
+				if (via != INFINITY) {
+					lower(nodeDistance, clusterNodes[i], via + distance);
+				}
+			}
+
+			// a node across the border steps onto current
+			if (cost[current] == INFINITY) {
+				continue;
+			}
+			float across = cost[current] + STEP_COST + distance;
+			int cx = current % width;
+			int cy = current / width;
+			for (int i = -1; i <= 1; i++) {
+				for (int j = -1; j <= 1; j++) {
+					int x = cx + i;
+					int y = cy + j;
+					if ((i == 0 && j == 0) || x < 0 || x >= width || y < 0 || y >= height) {
+						continue;
+					}
+					int neighbor = x + y * width;
+					if (entranceSides[neighbor] != 0 && clusterOf(neighbor) != cluster) {
+						lower(nodeDistance, neighbor, across);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the cost from every square of a cluster to the destination, by a reverse Dijkstra that starts from
+	 * the cluster's nodes (and the destination, if it is in the cluster) and stays inside the cluster
+	 */
+	private void computePotential(int cluster) {
+		potentialVersion[cluster] = version;
+		int left = (cluster % clustersX) * CLUSTER_SIZE;
+		int top = (cluster / clustersX) * CLUSTER_SIZE;
+		int right = Math.min(left + CLUSTER_SIZE, width);
+		int bottom = Math.min(top + CLUSTER_SIZE, height);
+		for (int y = top; y < bottom; y++) {
+			for (int x = left; x < right; x++) {
+				potential[x + y * width] = INFINITY;
+			}
+		}
+		for (int node : nodes[cluster]) {
+			lower(potential, node, nodeDistance[node]);
+		}
+		if (clusterOf(goal) == cluster && cost[goal] != INFINITY) {
+			lower(potential, goal, 0);
+		}
+
+		while (heapSize > 0) {
+			int current = pop();
+			expanded++;
+			// anything that steps onto current pays its cost
+			float viaCurrent = cost[current] + STEP_COST + potential[current];
+			if (viaCurrent == INFINITY) {
+				continue;
+			}
+			int cx = current % width;
+			int cy = current / width;
+			for (int i = -1; i <= 1; i++) {
+				for (int j = -1; j <= 1; j++) {
+					int x = cx + i;
+					int y = cy + j;
+					if ((i == 0 && j == 0) || x < left || x >= right || y < top || y >= bottom) {
+						continue;
+					}
+					lower(potential, x + y * width, viaCurrent);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Lowers a square's distance and queues it, if the new distance is better
+	 */
+	private void lower(float[] distances, int cell, float distance) {
+		if (distance >= distances[cell]) {
+			return;
+		}
+		distances[cell] = distance;
+		key[cell] = distance;
+		if (heapIndex[cell] >= 0) {
+			siftUp(heapIndex[cell]);
+		} else {
+			push(cell);
+		}
+	}
+
+	private void push(int cell) {
+		heap[heapSize] = cell;
+		heapIndex[cell] = heapSize;
+		heapSize++;
+		siftUp(heapSize - 1);
+	}
+
+	private int pop() {
+		int top = heap[0];
+		heapIndex[top] = -1;
+		heapSize--;
+		if (heapSize > 0) {
+			heap[0] = heap[heapSize];
+			heapIndex[heap[0]] = 0;
+			siftDown(0);
+		}
+		return top;
+	}
+
+	private void siftUp(int index) {
+		int cell = heap[index];
+		float value = key[cell];
+		while (index > 0) {
+			int parentIndex = (index - 1) >> 1;
+			int parentCell = heap[parentIndex];
+			if (key[parentCell] <= value) {
+				break;
+			}
+			heap[index] = parentCell;
+			heapIndex[parentCell] = index;
+			index = parentIndex;
+		}
+		heap[index] = cell;
+		heapIndex[cell] = index;
+	}
+
+	private void siftDown(int index) {
+		int cell = heap[index];
+		float value = key[cell];
+		int half = heapSize >> 1;
+		while (index < half) {
+			int child = 2 * index + 1;
+			int right = child + 1;
+			if (right < heapSize && key[heap[right]] < key[heap[child]]) {
+				child = right;
+			}
+			if (value <= key[heap[child]]) {
+				break;
+			}
+			heap[index] = heap[child];
+			heapIndex[heap[index]] = index;
+			index = child;
+		}
+		heap[index] = cell;
+		heapIndex[cell] = index;
+	}
+}
@@ -0,0 +1,244 @@
+/**
+ * Caches the probability of getting hit by a tower for every square of a GameBoard.
+ *
+ * A square's hit probability only depends on the tower probabilities within tower range of it, so when the
+ * board changes a tower probability, only the squares within range of that cell are marked stale.
+ * Stale squares are recomputed the next time any value is read.
+ *
+ * The field keeps its own copy of the tower beliefs as log(1 - p) (a LogOddsBelief), so a square's chance of
+ * surviving every tower in range is the exponential of a sum rather than a long product that underflows. When a
+ * large part of the board is stale at once, the whole board is recomputed with one RiskConvolution instead.
+ * A board that is mostly untouched tiles is first computed tile by tile, filling the parts at the prior with the
+ * prior's hit probability.
+ *
+ * Every recomputed square is also appended to a change log, so that planners which keep state between turns
+ * can find out which squares to look at again. The log is dropped once it grows past the size of the board;
+ * anyone holding a mark from before that has to rescan everything.
+ */
+public class HitProbabilityField {
+	private static final int FULL_RECOMPUTE_FRACTION = 8; // recompute the whole board once this fraction of it is stale
+
+	private final GameBoard board;
+	private final int width;
+	private final int height;
+	private final float accuracy;
+	private final int towerRange;
+
+	// offsets of every cell within tower range, in the same order the original window scan used
+	private final int[] offsetX;
+	private final int[] offsetY;
+
+	private final float[] hitProbability;
+	private final LogOddsBelief belief;
+	private final RiskConvolution convolution;
+	private final boolean[] stale;
+	private final int[] staleCells;
+	private int staleCount;
+
+	private final int[] changeLog;
+	private int changeCount;
+	private long changeBase;
+
+	public HitProbabilityField(GameBoard board, int towerRange, float towerAccuracy) {
+		this.board = board;
+		this.width = board.getWidth();
+		this.height = board.getHeight();
+		this.accuracy = towerAccuracy;
+		this.towerRange = towerRange;
+
+		int count = 0;
+		int[] xs = new int[(2 * towerRange + 1) * (2 * towerRange + 1)];
+		int[] ys = new int[xs.length];
+		for (int i = -towerRange; i <= towerRange; i++) {
+			for (int j = -towerRange; j <= towerRange; j++) {
+				if (Math.sqrt(i * i + j * j) <= towerRange) { // tower shoots in a circular range
+					xs[count] = i;
+					ys[count] = j;
+					count++;
+				}
+			}
+		}
+		offsetX = java.util.Arrays.copyOf(xs, count);
+		offsetY = java.util.Arrays.copyOf(ys, count);
+
+		hitProbability = new float[width * height];
+		stale = new boolean[width * height];
+		staleCells = new int[width * height];
+		changeLog = new int[width * height];
+
+		belief = LogOddsBelief.fromBoard(board);
+		convolution = RiskConvolution.create(width, height, towerRange, towerAccuracy);
+		int tiles = board.getTilesX() * board.getTilesY();
+		if (board.getTileCount() * 2 > tiles) {
+			convolution.compute(belief.getLogSurvival(), hitProbability);
+		} else {
+			computeSparse(towerRange);
+		}
+		board.setHitProbabilityField(this);
+	}
+
+	private HitProbabilityField(HitProbabilityField other, GameBoard board) {
+		this.board = board;
+		width = other.width;
+		height = other.height;
+		accuracy = other.accuracy;
+		towerRange = other.towerRange;
+		offsetX = other.offsetX;
+		offsetY = other.offsetY;
+		other.flush();
+		hitProbability = other.hitProbability.clone();
+		belief = other.belief.copy();
+		convolution = RiskConvolution.create(width, height, towerRange, accuracy);
+		stale = new boolean[width * height];
+		staleCells = new int[width * height];
+		changeLog = new int[width * height];
+		changeBase = other.changeBase + other.changeCount;
+		board.setHitProbabilityField(this);
+	}
+
+	/**
+	 * Copies the field for a copy of its board, so that the copy can be changed and read on its own. The copy's
+	 * values are exactly the ones this field has, which a new field computed from the board's copy might not be.
+	 * @param board A copy of this field's board
+	 * @return The field of the copy
+	 */
+	public HitProbabilityField copyFor(GameBoard board) {
+		return new HitProbabilityField(this, board);
+	}
+
+	/**
+	 * Gets the probability that you will get hit by a tower in the given square
+	 * @param x
+	 * @param y
+	 * @return The probability
+	 */
+	public float get(int x, int y) {
+		if (staleCount > 0) {
+			flush();
+		}
+		return hitProbability[x + y * width];
+	}
+
+	/**
+	 * Called by the board when the tower probability of a cell changes.
+	 * Marks every square that the cell can shoot at as stale.
+	 * @param x
+	 * @param y
+	 */
+	public void invalidate(int x, int y) {
+		belief.setProbability(x + y * width, board.getTowerProbability(x, y));
+		for (int k = 0; k < offsetX.length; k++) {
+			int curX = x + offsetX[k];
+			int curY = y + offsetY[k];
+			if (curX < 0 || curX >= width || curY < 0 || curY >= height) {
+				continue;
+			}
+			int cell = curX + curY * width;
+			if (!stale[cell]) {
+				stale[cell] = true;
+				staleCells[staleCount++] = cell;
+			}
+		}
+	}
+
+	/**
+	 * Recomputes all of the stale squares
+	 */
+	public void flush() {
+		if (changeCount + staleCount > changeLog.length) {
+			changeBase += changeCount;
+			changeCount = 0;
+		}
+		boolean wholeBoard = staleCount * FULL_RECOMPUTE_FRACTION >= hitProbability.length;
+		if (wholeBoard) {
+			convolution.compute(belief.getLogSurvival(), hitProbability);
+		}
+		for (int i = 0; i < staleCount; i++) {
+			int cell = staleCells[i];
+			if (!wholeBoard) {
+				hitProbability[cell] = compute(cell % width, cell / width);
+			}
+			stale[cell] = false;
+			changeLog[changeCount++] = cell;
+		}
+		staleCount = 0;
+	}
+
+	/**
+	 * @return The position in the change log after every change made so far
+	 */
+	public long getChangeMark() {
+		if (staleCount > 0) {
+			flush();
+		}
+		return changeBase + changeCount;
+	}
+
+	/**
+	 * @param mark
+	 * @return True if every change since the mark is still in the log
+	 */
+	public boolean hasChangesSince(long mark) {
+		return mark >= changeBase;
+	}
+
+	/**
+	 * @param position A position between a previous mark and the current mark
+	 * @return The cell (x + y * width) that was recomputed at that position
+	 */
+	public int getChangedCell(long position) {
+		return changeLog[(int)(position - changeBase)];
+	}
+
+	/**
+	 * @return True if whole-board recomputes use the Vector API
+	 */
+	public boolean isVectorized() {
+		return convolution.isVectorized();
+	}
+
+	/**
+	 * Computes every square of a board that is mostly untouched tiles. A square away from the board's edges whose
+	 * whole range lies in tiles at the prior has the same hit probability as every other such square, so only the
+	 * squares near written tiles or the edges are summed one by one.
+	 */
+	private void computeSparse(int towerRange) {
+		double priorSurvival = Math.max(LogOddsBelief.LOG_SURVIVAL_FLOOR, Math.log1p(-board.getTowerDensity()));
+		float prior = (float)(accuracy * (1 - Math.exp(offsetX.length * priorSurvival)));
+		int tileSize = GameBoard.TILE_SIZE;
+		for (int tileY = 0; tileY < board.getTilesY(); tileY++) {
+			for (int tileX = 0; tileX < board.getTilesX(); tileX++) {
+				boolean quiet = true;
+				// tower range is less than a tile, so only the neighboring tiles can reach into this one
+				for (int j = Math.max(0, tileY - 1); j <= Math.min(board.getTilesY() - 1, tileY + 1) && quiet; j++) {
+					for (int i = Math.max(0, tileX - 1); i <= Math.min(board.getTilesX() - 1, tileX + 1) && quiet; i++) {
+						quiet = board.isTileAtPrior(i, j);
+					}
+				}
+				int toX = Math.min(width, (tileX + 1) * tileSize);
+				int toY = Math.min(height, (tileY + 1) * tileSize);
+				for (int y = tileY * tileSize; y < toY; y++) {
+					for (int x = tileX * tileSize; x < toX; x++) {
+						boolean nearEdge = x < towerRange || y < towerRange || x >= width - towerRange || y >= height - towerRange;
+						hitProbability[x + y * width] = quiet && !nearEdge ? prior : compute(x, y);
+					}
+				}
+			}
+		}
+	}
+
+	private float compute(int x, int y) {
+		double[] logSurvival = belief.getLogSurvival();
+		double sum = 0;
+		for (int k = 0; k < offsetX.length; k++) {
+			int curX = x + offsetX[k];
+			int curY = y + offsetY[k];
+			if (curX < 0 || curX >= width || curY < 0 || curY >= height) {
+				continue;
+			}
+			sum += logSurvival[curX + curY * width];
+		}
+		// 1 - the chance of surviving every tower in range
+		return (float)(accuracy * (1 - Math.exp(sum)));
+	}
+}
@@ -0,0 +1,379 @@
+/**
+ * D* Lite planner for one peasant heading to one destination.
+ *
+ * The search runs backwards from the destination, so g(s) is the cost of the best path from s to the
+ * destination. Between turns the planner only repairs the vertices whose edge costs changed (squares in the
+ * hit field's change log and squares where peasants were or are now) and accounts for the peasant's own movement
+ * with the usual key modifier, instead of searching from scratch. Moving the destination starts a new search.
+ *
+ * The cost of moving onto a square is its cost in the SearchGrid plus STEP_COST, or infinite if the square is not
+ * passable. Without the step cost, the many equally cheap paths through squares with no risk left would make the
+ * peasant switch between them from one turn to the next and step back and forth, and the heuristic would overestimate.
+ */
+public class IncrementalPlanner {
+	private static final float INFINITY = Float.POSITIVE_INFINITY;
+	private static final float STEP_COST = AStarSearch.HEURISTIC_STEP_COST; // added to every step, so that among equally safe paths the shortest wins
+
+	private final int width;
+	private final int height;
+
+	private final float[] g;
+	private final float[] rhs;
+	private final float[] cost; // cost of stepping onto each square, as of the last repair
+
+	private final int[] heap;
+	private final int[] heapIndex;
+	private final float[] key1;
+	private final float[] key2;
+	private int heapSize;
+
+	private int goal = -1;
+	private int start;
+	private int last;
+	private float km;
+	private long changeMark;
+
+	private int[] dynamicCells = new int[0];
+	private int dynamicCount;
+
+	private int expanded;
+
+	public IncrementalPlanner(int width, int height) {
+		this.width = width;
+		this.height = height;
+		int cells = width * height;
+		g         = new float[cells];
+		rhs       = new float[cells];
+		cost      = new float[cells];
+		heap      = new   int[cells];
+		heapIndex = new   int[cells];
+		key1      = new float[cells];
+		key2      = new float[cells];
+	}
+
+	/**
+	 * Finds the first step of the cheapest path from start to goal, repairing the previous search if possible
+	 * @param grid
+	 * @param field Tells the planner which squares changed since the last call
+	 * @param startX
+	 * @param startY
+	 * @param goalX
+	 * @param goalY
+	 * @param occupied Squares (x + y * width) that hold peasants this turn
+	 * @param occupiedCount
+	 * @return The square (x + y * width) to move to, or -1 if the goal is unreachable
+	 */
+	public int nextStep(SearchGrid grid, HitProbabilityField field, int startX, int startY, int goalX, int goalY,
+			int[] occupied, int occupiedCount) {
+		expanded = 0;
+		int newGoal = goalX + goalY * width;
+		int newStart = startX + startY * width;
+
+		if (newGoal != goal) {
+			initialize(grid, field, newStart, newGoal);
+		} else {
+			if (newStart != start) {
+				start = newStart;
+				km += heuristic(last, start);
+				last = start;
+			}
+			repair(grid, field);
+			for (int i = 0; i < occupiedCount; i++) {
+				refresh(grid, occupied[i]);
+			}
+		}
+		rememberDynamicCells(occupied, occupiedCount);
+
+		computeShortestPath();
+
+		int best = -1;
+		float bestCost = INFINITY;
+		int sx = start % width;
+		int sy = start / width;
+		for (int i = -1; i <= 1; i++) {
+			for (int j = -1; j <= 1; j++) {
+				int x = sx + i;
+				int y = sy + j;
+				if ((i == 0 && j == 0) || x < 0 || x >= width || y < 0 || y >= height) {
+					continue;
+				}
+				int cell = x + y * width;
+				float total = cost[cell] + g[cell];
+				if (total < bestCost) {
+					bestCost = total;
+					best = cell;
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return The cost of the current best path from the start to the goal
+	 */
+	public float getPathCost() {
+		return g[start] < rhs[start] ? g[start] : rhs[start];
+	}
+
+	/**
+	 * @return The number of vertices expanded by the last call to nextStep
+	 */
+	public int getExpanded() {
+		return expanded;
+	}
+
+	public int getGoal() {
+		return goal;
+	}
+
+	private void initialize(SearchGrid grid, HitProbabilityField field, int newStart, int newGoal) {
+		goal = newGoal;
+		start = newStart;
+		last = newStart;
+		km = 0;
+		heapSize = 0;
+		changeMark = field.getChangeMark();
+		for (int cell = 0; cell < g.length; cell++) {
+			g[cell] = INFINITY;
+			rhs[cell] = INFINITY;
+			heapIndex[cell] = -1;
+			cost[cell] = currentCost(grid, cell);
+		}
+		rhs[goal] = 0;
+		key1[goal] = heuristic(start, goal);
+		key2[goal] = 0;
+		insert(goal);
+	}
+
+	/**
+	 * Re-reads the cost of every square that could have changed since the last call
+	 */
+	private void repair(SearchGrid grid, HitProbabilityField field) {
+		long mark = field.getChangeMark();
+		if (!field.hasChangesSince(changeMark)) {
+			for (int cell = 0; cell < cost.length; cell++) {
+				refresh(grid, cell);
+			}
+		} else {
+			for (long position = changeMark; position < mark; position++) {
+				refresh(grid, field.getChangedCell(position));
+			}
+		}
+		changeMark = mark;
+
+		// squares that held peasants last time might be free now
+		for (int i = 0; i < dynamicCount; i++) {
+			refresh(grid, dynamicCells[i]);
+		}
+	}
+
+	private void rememberDynamicCells(int[] occupied, int occupiedCount) {
+		if (dynamicCells.length < occupiedCount) {
+			dynamicCells = new int[occupiedCount];
+		}
+		dynamicCount = occupiedCount;
+		System.arraycopy(occupied, 0, dynamicCells, 0, occupiedCount);
+	}
+
+	private float currentCost(SearchGrid grid, int cell) {
+		int x = cell % width;
+		int y = cell / width;
+		return grid.isPassable(x, y) ? grid.getCost(x, y) + STEP_COST : INFINITY;
+	}
+
+	/**
+	 * Updates the cost of stepping onto a square, and every vertex that can step onto it
+	 */
+	private void refresh(SearchGrid grid, int cell) {
+		float newCost = currentCost(grid, cell);
+		if (newCost == cost[cell]) {
+			return;
+		}
+		cost[cell] = newCost;
+
+		int cx = cell % width;
+		int cy = cell / width;
+		for (int i = -1; i <= 1; i++) {
+			for (int j = -1; j <= 1; j++) {
+				int x = cx + i;
+				int y = cy + j;
+				if ((i == 0 && j == 0) || x < 0 || x >= width || y < 0 || y >= height) {
+					continue;
+				}
+				int neighbor = x + y * width;
+				if (neighbor != goal) {
+					rhs[neighbor] = bestSuccessor(neighbor);
+				}
+				updateVertex(neighbor);
+			}
+		}
+	}
+
+	private void computeShortestPath() {
+		while (heapSize > 0) {
+			int u = heap[0];
+			float startKey1 = Math.min(g[start], rhs[start]) + km;
+			float startKey2 = Math.min(g[start], rhs[start]);
+			if (!less(key1[u], key2[u], startKey1, startKey2) && rhs[start] == g[start]) {
+				break;
+			}
+			expanded++;
+
+			float newKey2 = Math.min(g[u], rhs[u]);
+			float newKey1 = newKey2 + heuristic(start, u) + km;
+			if (less(key1[u], key2[u], newKey1, newKey2)) {
+				key1[u] = newKey1;
+				key2[u] = newKey2;
+				siftDown(0);
+			} else if (g[u] > rhs[u]) {
+				g[u] = rhs[u];
+				remove(u);
+				float viaU = cost[u] + g[u];
+				int ux = u % width;
+				int uy = u / width;
+				for (int i = -1; i <= 1; i++) {
+					for (int j = -1; j <= 1; j++) {
+						int x = ux + i;
+						int y = uy + j;
+						if ((i == 0 && j == 0) || x < 0 || x >= width || y < 0 || y >= height) {
+							continue;
+						}
+						int p = x + y * width;
+						if (p != goal && viaU < rhs[p]) {
+							rhs[p] = viaU;
+						}
+						updateVertex(p);
+					}
+				}
+			} else {
+				g[u] = INFINITY;
+				if (u != goal) {
+					rhs[u] = bestSuccessor(u);
+				}
+				updateVertex(u);
+				int ux = u % width;
+				int uy = u / width;
+				for (int i = -1; i <= 1; i++) {
+					for (int j = -1; j <= 1; j++) {
+						int x = ux + i;
+						int y = uy + j;
+						if ((i == 0 && j == 0) || x < 0 || x >= width || y < 0 || y >= height) {
+							continue;
+						}
+						int p = x + y * width;
+						if (p != goal) {
+							rhs[p] = bestSuccessor(p);
+						}
+						updateVertex(p);
+					}
+				}
+			}
+		}
+	}
+
+	private float bestSuccessor(int cell) {
+		float best = INFINITY;
+		int cx = cell % width;
+		int cy = cell / width;
+		for (int i = -1; i <= 1; i++) {
+			for (int j = -1; j <= 1; j++) {
+				int x = cx + i;
+				int y = cy + j;
+				if ((i == 0 && j == 0) || x < 0 || x >= width || y < 0 || y >= height) {
+					continue;
+				}
+				int successor = x + y * width;
+				float total = cost[successor] + g[successor];
+				if (total < best) {
+					best = total;
+				}
+			}
+		}
+		return best;
+	}
+
+	private void updateVertex(int cell) {
+		if (g[cell] != rhs[cell]) {
+			float k2 = Math.min(g[cell], rhs[cell]);
+			float k1 = k2 + heuristic(start, cell) + km;
+			if (heapIndex[cell] >= 0) {
+				key1[cell] = k1;
+				key2[cell] = k2;
+				siftUp(heapIndex[cell]);
+				siftDown(heapIndex[cell]);
+			} else {
+				key1[cell] = k1;
+				key2[cell] = k2;
+				insert(cell);
+			}
+		} else if (heapIndex[cell] >= 0) {
+			remove(cell);
+		}
+	}
+
+	private float heuristic(int a, int b) {
+		int dx = Math.abs(a % width - b % width);
+		int dy = Math.abs(a / width - b / width);
+		return (float)Math.max(dx, dy) * AStarSearch.HEURISTIC_STEP_COST;
+	}
+
+	private static boolean less(float a1, float a2, float b1, float b2) {
+		return a1 < b1 || (a1 == b1 && a2 < b2);
+	}
+
+	private void insert(int cell) {
+		heap[heapSize] = cell;
+		heapIndex[cell] = heapSize;
+		heapSize++;
+		siftUp(heapSize - 1);
+	}
+
+	private void remove(int cell) {
+		int index = heapIndex[cell];
+		heapIndex[cell] = -1;
+		heapSize--;
+		if (index < heapSize) {
+			int moved = heap[heapSize];
+			heap[index] = moved;
+			heapIndex[moved] = index;
+			siftUp(index);
+			siftDown(heapIndex[moved]);
+		}
+	}
+
+	private void siftUp(int index) {
+		int cell = heap[index];
+		while (index > 0) {
+			int parentIndex = (index - 1) >> 1;
+			int parentCell = heap[parentIndex];
+			if (!less(key1[cell], key2[cell], key1[parentCell], key2[parentCell])) {
+				break;
+			}
+			heap[index] = parentCell;
+			heapIndex[parentCell] = index;
+			index = parentIndex;
+		}
+		heap[index] = cell;
+		heapIndex[cell] = index;
+	}
+
+	private void siftDown(int index) {
+		int cell = heap[index];
+		int half = heapSize >> 1;
+		while (index < half) {
+			int child = 2 * index + 1;
+			int right = child + 1;
+			if (right < heapSize && less(key1[heap[right]], key2[heap[right]], key1[heap[child]], key2[heap[child]])) {
+				child = right;
+			}
+			if (!less(key1[heap[child]], key2[heap[child]], key1[cell], key2[cell])) {
+				break;
+			}
+			heap[index] = heap[child];
+			heapIndex[heap[index]] = index;
+			index = child;
+		}
+		heap[index] = cell;
+		heapIndex[cell] = index;
+	}
+}
@@ -0,0 +1,136 @@
+/**
+ * The tower beliefs of a board kept in log space: the log-odds of a tower on every square, and the log of the
+ * chance that there is no tower there, log(1 - p).
+ *
+ * Evidence is added to the log-odds instead of multiplied into a probability, so a square that has been passed
+ * many times without a hit never underflows to a probability that can no longer move. The log(1 - p) terms are
+ * what the hit risk of a square is built from: the chance of surviving every tower in range is the exponential of
+ * their sum, which RiskConvolution computes for the whole board at once.
+ *
+ * GameBoard keeps one that the belief updates add their evidence to, and derives its stored probabilities from it.
+ * HitProbabilityField keeps another, rebuilt from those probabilities, for the log(1 - p) terms.
+ */
+public class LogOddsBelief {
+	public static final double LOG_SURVIVAL_FLOOR = -50; // stands in for log(0), a certain tower
+
+	private final int width;
+	private final int height;
+	private final double[] logOdds;
+	private final double[] logSurvival;
+
+	public LogOddsBelief(int width, int height, float towerDensity) {
+		this.width = width;
+		this.height = height;
+		logOdds = new double[width * height];
+		logSurvival = new double[width * height];
+		// every square starts out the same, so work it out once
+		setProbability(0, towerDensity);
+		java.util.Arrays.fill(logOdds, logOdds[0]);
+		java.util.Arrays.fill(logSurvival, logSurvival[0]);
+	}
+
+	private LogOddsBelief(LogOddsBelief other) {
+		width = other.width;
+		height = other.height;
+		logOdds = other.logOdds.clone();
+		logSurvival = other.logSurvival.clone();
+	}
+
+	/**
+	 * @return An independent copy of the beliefs
+	 */
+	public LogOddsBelief copy() {
+		return new LogOddsBelief(this);
+	}
+
+	/**
+	 * @param board
+	 * @return The board's tower probabilities in log space. Tiles of the board that are at the prior are skipped.
+	 */
+	public static LogOddsBelief fromBoard(GameBoard board) {
+		int width = board.getWidth();
+		int height = board.getHeight();
+		LogOddsBelief belief = new LogOddsBelief(width, height, board.getTowerDensity());
+		for (int tileY = 0; tileY < board.getTilesY(); tileY++) {
+			for (int tileX = 0; tileX < board.getTilesX(); tileX++) {
+				if (board.isTileAtPrior(tileX, tileY)) {
+					continue;
+				}
+				int toX = Math.min(width, (tileX + 1) * GameBoard.TILE_SIZE);
+				int toY = Math.min(height, (tileY + 1) * GameBoard.TILE_SIZE);
+				for (int y = tileY * GameBoard.TILE_SIZE; y < toY; y++) {
+					for (int x = tileX * GameBoard.TILE_SIZE; x < toX; x++) {
+						belief.setProbability(x + y * width, board.getTowerProbability(x, y));
+					}
+				}
+			}
+		}
+		return belief;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @param cell x + y * width
+	 * @param p The tower probability; 0 and 1 are kept exactly
+	 */
+	public void setProbability(int cell, float p) {
+		if (p <= 0) {
+			logOdds[cell] = Double.NEGATIVE_INFINITY;
+			logSurvival[cell] = 0;
+		} else if (p >= 1) {
+			logOdds[cell] = Double.POSITIVE_INFINITY;
+			logSurvival[cell] = LOG_SURVIVAL_FLOOR;
+		} else {
+			logOdds[cell] = Math.log(p) - Math.log1p(-p);
+			logSurvival[cell] = Math.max(LOG_SURVIVAL_FLOOR, Math.log1p(-p));
+		}
+	}
+
+	/**
+	 * Updates a square with one observation's evidence. Squares known to have or not have a tower do not change.
+	 * @param cell x + y * width
+	 * @param logLikelihoodRatio log(P(observation | tower) / P(observation | no tower))
+	 */
+	public void addEvidence(int cell, double logLikelihoodRatio) {
+		if (Double.isInfinite(logOdds[cell]) || Double.isNaN(logLikelihoodRatio)) {
+			return;
+		}
+		double odds = logOdds[cell] + logLikelihoodRatio;
+		logOdds[cell] = odds;
+		// log(1 - p) = -log(1 + e^odds), written so that it neither overflows nor loses small values
+		double survival = odds > 0 ? -odds - Math.log1p(Math.exp(-odds)) : -Math.log1p(Math.exp(odds));
+		logSurvival[cell] = Math.max(LOG_SURVIVAL_FLOOR, survival);
+	}
+
+	/**
+	 * @param cell x + y * width
+	 * @return The tower probability
+	 */
+	public float getProbability(int cell) {
+		double odds = logOdds[cell];
+		if (odds == Double.NEGATIVE_INFINITY) {
+			return 0;
+		} else if (odds == Double.POSITIVE_INFINITY) {
+			return 1;
+		}
+		return (float)(1 / (1 + Math.exp(-odds)));
+	}
+
+	public double getLogOdds(int cell) {
+		return logOdds[cell];
+	}
+
+	/**
+	 * @return log(1 - p) of every square, floored at LOG_SURVIVAL_FLOOR. Read only.
+	 */
+	public double[] getLogSurvival() {
+		return logSurvival;
+	}
+}
@@ -0,0 +1,266 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Reads the parts of a SEPIA map XML (prob_*.xml) that the tools need without going through SEPIA:
+ * the map size, every player with its resources and unit templates, every unit with its template name,
+ * and every resource node.
+ */
+public class MapFile {
+	private final int width;
+	private final int height;
+	private final int nextTargetId;
+	private final List<PlayerEntry> players = new ArrayList<PlayerEntry>();
+	private final List<TemplateEntry> templates = new ArrayList<TemplateEntry>();
+	private final List<UnitEntry> units = new ArrayList<UnitEntry>();
+	private final List<ResourceEntry> resources = new ArrayList<ResourceEntry>();
+
+	private MapFile(int width, int height, int nextTargetId) {
+		this.width = width;
+		this.height = height;
+		this.nextTargetId = nextTargetId;
+	}
+
+	public static MapFile load(String fileName) throws IOException {
+		Document document;
+		try {
+			document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new File(fileName));
+		} catch (ParserConfigurationException e) {
+			throw new IOException("Could not create XML parser", e);
+		} catch (SAXException e) {
+			throw new IOException("Could not parse map " + fileName, e);
+		}
+
+		Element state = document.getDocumentElement();
+		MapFile map = new MapFile(Integer.parseInt(state.getAttribute("xExtent")), Integer.parseInt(state.getAttribute("yExtent")),
+				Integer.parseInt(state.getAttribute("nextTargetID")));
+
+		for (Element player : children(state, "player")) {
+			int playerId = intChild(player, "ID");
+
+			int gold = 0;
+			int wood = 0;
+			for (Element amount : children(player, "resourceAmount")) {
+				if (textChild(amount, "type").equals("GOLD")) {
+					gold = intChild(amount, "quantity");
+				} else if (textChild(amount, "type").equals("WOOD")) {
+					wood = intChild(amount, "quantity");
+				}
+			}
+			map.players.add(new PlayerEntry(playerId, gold, wood, intChild(player, "supply"), intChild(player, "supplyCap")));
+
+			Map<Integer, Element> templates = new HashMap<Integer, Element>();
+			for (Element template : children(player, "template")) {
+				templates.put(intChild(template, "ID"), template);
+				// upgrades have no name field of interest to us
+				if (template.getAttribute("xsi:type").equals("UnitTemplate")) {
+					map.templates.add(new TemplateEntry(playerId, template));
+				}
+			}
+
+			for (Element unit : children(player, "unit")) {
+				Element template = templates.get(intChild(unit, "templateID"));
+				map.units.add(new UnitEntry(playerId, intChild(unit, "ID"), intChild(unit, "xPosition"), intChild(unit, "yPosition"),
+						intChild(unit, "currentHealth"), intChild(unit, "cargoAmount"),
+						template == null ? "" : textChild(template, "name"), template == null ? -1 : intChild(template, "ID")));
+			}
+		}
+
+		for (Element resource : children(state, "resourceNode")) {
+			map.resources.add(new ResourceEntry(intChild(resource, "ID"), textChild(resource, "type"),
+					intChild(resource, "xPosition"), intChild(resource, "yPosition"), intChild(resource, "amountRemaining")));
+		}
+		return map;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return The first ID that is not used by any unit or resource on the map
+	 */
+	public int getNextTargetId() {
+		return nextTargetId;
+	}
+
+	public List<PlayerEntry> getPlayers() {
+		return players;
+	}
+
+	/**
+	 * @return The unit templates of every player
+	 */
+	public List<TemplateEntry> getTemplates() {
+		return templates;
+	}
+
+	public List<UnitEntry> getUnits() {
+		return units;
+	}
+
+	public List<ResourceEntry> getResources() {
+		return resources;
+	}
+
+	private static List<Element> children(Element parent, String name) {
+		List<Element> result = new ArrayList<Element>();
+		NodeList nodes = parent.getChildNodes();
+		for (int i = 0; i < nodes.getLength(); i++) {
+			Node node = nodes.item(i);
+			if (node instanceof Element && ((Element)node).getTagName().equals(name)) {
+				result.add((Element)node);
+			}
+		}
+		return result;
+	}
+
+	private static String textChild(Element parent, String name) {
+		List<Element> matches = children(parent, name);
+		return matches.isEmpty() ? "" : matches.get(0).getTextContent().trim();
+	}
+
+	private static int intChild(Element parent, String name) {
+		String text = textChild(parent, name);
+		return text.isEmpty() ? 0 : Integer.parseInt(text);
+	}
+
+	private static boolean booleanChild(Element parent, String name) {
+		return Boolean.parseBoolean(textChild(parent, name));
+	}
+
+	/**
+	 * A player's resources and supply at the start of the game
+	 */
+	public static class PlayerEntry {
+		public final int id;
+		public final int gold;
+		public final int wood;
+		public final int supply;
+		public final int supplyCap;
+
+		private PlayerEntry(int id, int gold, int wood, int supply, int supplyCap) {
+			this.id = id;
+			this.gold = gold;
+			this.wood = wood;
+			this.supply = supply;
+			this.supplyCap = supplyCap;
+		}
+	}
+
+	/**
+	 * The stats of one of a player's unit types
+	 */
+	public static class TemplateEntry {
+		public final int player;
+		public final int id;
+		public final String name;
+		public final int goldCost;
+		public final int woodCost;
+		public final int foodCost;
+		public final int baseHealth;
+		public final int basicAttack;
+		public final int piercingAttack;
+		public final int range;
+		public final int armor;
+		public final int sightRange;
+		public final boolean canGather;
+		public final boolean canBuild;
+		public final boolean canMove;
+		public final boolean canAcceptGold;
+		public final boolean canAcceptWood;
+		public final int foodProvided;
+		public final char character;
+		public final int goldGatherRate;
+		public final int woodGatherRate;
+		public final List<Integer> produces = new ArrayList<Integer>();
+
+		private TemplateEntry(int player, Element template) {
+			this.player = player;
+			id = intChild(template, "ID");
+			name = textChild(template, "name");
+			goldCost = intChild(template, "goldCost");
+			woodCost = intChild(template, "woodCost");
+			foodCost = intChild(template, "foodCost");
+			baseHealth = intChild(template, "baseHealth");
+			basicAttack = intChild(template, "baseAttack");
+			piercingAttack = intChild(template, "piercingAttack");
+			range = intChild(template, "range");
+			armor = intChild(template, "armor");
+			sightRange = intChild(template, "sightRange");
+			canGather = booleanChild(template, "canGather");
+			canBuild = booleanChild(template, "canBuild");
+			canMove = booleanChild(template, "canMove");
+			canAcceptGold = booleanChild(template, "canAcceptGold");
+			canAcceptWood = booleanChild(template, "canAcceptWood");
+			foodProvided = intChild(template, "foodProvided");
+			character = (char)intChild(template, "character");
+			goldGatherRate = intChild(template, "goldGatherRate");
+			woodGatherRate = intChild(template, "woodGatherRate");
+			for (Element produced : children(template, "produces")) {
+				produces.add(Integer.parseInt(produced.getTextContent().trim()));
+			}
+		}
+	}
+
+	/**
+	 * A unit as it is placed on the map at the start of the game
+	 */
+	public static class UnitEntry {
+		public final int player;
+		public final int id;
+		public final int x;
+		public final int y;
+		public final int health;
+		public final int cargo;
+		public final String templateName;
+		public final int templateId;
+
+		private UnitEntry(int player, int id, int x, int y, int health, int cargo, String templateName, int templateId) {
+			this.player = player;
+			this.id = id;
+			this.x = x;
+			this.y = y;
+			this.health = health;
+			this.cargo = cargo;
+			this.templateName = templateName;
+			this.templateId = templateId;
+		}
+	}
+
+	/**
+	 * A tree or gold mine as it is placed on the map at the start of the game
+	 */
+	public static class ResourceEntry {
+		public final int id;
+		public final String type;
+		public final int x;
+		public final int y;
+		public final int amount;
+
+		private ResourceEntry(int id, String type, int x, int y, int amount) {
+			this.id = id;
+			this.type = type;
+			this.x = x;
+			this.y = y;
+			this.amount = amount;
+		}
+	}
+}
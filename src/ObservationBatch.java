@@ -0,0 +1,45 @@
+import java.util.Arrays;
+
+/**
+ * All of the hit / no hit observations made by the peasants during one turn.
+ * Each observation is packed into a long so that the batch can be sorted into a canonical order,
+ * which keeps the fused belief update independent of the order the peasants were scanned in.
+ */
+public class ObservationBatch {
+	private long[] observations = new long[8];
+	private int size = 0;
+
+	public void add(int x, int y, boolean hit) {
+		if (size == observations.length) {
+			observations = Arrays.copyOf(observations, size * 2);
+		}
+		observations[size++] = ((long)x << 32) | ((long)y << 1) | (hit ? 1 : 0);
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getX(int i) {
+		return (int)(observations[i] >>> 32);
+	}
+
+	public int getY(int i) {
+		return (int)(observations[i] & 0xFFFFFFFFL) >>> 1;
+	}
+
+	public boolean getHit(int i) {
+		return (observations[i] & 1) != 0;
+	}
+
+	/**
+	 * Sorts the observations by x, then y, then hit
+	 */
+	public void sort() {
+		Arrays.sort(observations, 0, size);
+	}
+}
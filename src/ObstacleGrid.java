@@ -0,0 +1,183 @@
+/**
+ * One byte of flags per square saying what stands there, so that a passability check is a single load and mask.
+ *
+ * The grid is padded with a border of out-of-bounds squares, so the squares just off the board can be checked
+ * like any other. Trees, known towers, the townhall and the gold mine are copied in once per turn with rebuild(); the
+ * peasants are kept up to date as they move.
+ */
+public class ObstacleGrid {
+	public static final byte OUT_OF_BOUNDS = 1;
+	public static final byte TREE          = 2;
+	public static final byte TOWNHALL      = 4;
+	public static final byte TOWER         = 8;
+	public static final byte PEASANT       = 16;
+	public static final byte GOLD_MINE     = 32;
+	public static final byte STATIC = OUT_OF_BOUNDS | TREE | TOWNHALL | TOWER | GOLD_MINE; // everything except the peasants
+
+	private final int width;
+	private final int height;
+	private final int stride;
+	private final byte[] flags;
+	private int[] townhalls;
+	private int townhallCount;
+	private int goldMine = -1;
+
+	public ObstacleGrid(int width, int height) {
+		this.width = width;
+		this.height = height;
+		stride = width + 2;
+		flags = new byte[stride * (height + 2)];
+		townhalls = new int[4];
+		for (int x = -1; x <= width; x++) {
+			flags[index(x, -1)] = OUT_OF_BOUNDS;
+			flags[index(x, height)] = OUT_OF_BOUNDS;
+		}
+		for (int y = 0; y < height; y++) {
+			flags[index(-1, y)] = OUT_OF_BOUNDS;
+			flags[index(width, y)] = OUT_OF_BOUNDS;
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Copies the trees and known towers from the board and marks the townhalls and the gold mine, keeping the peasants. The
+	 * board's tiles that are at the prior are not looked at.
+	 * @param board
+	 */
+	public void rebuild(GameBoard board) {
+		boolean priorIsTower = board.getTowerDensity() >= 1;
+		for (int y = 0; y < height; y++) {
+			int tileY = y >> GameBoard.TILE_SHIFT;
+			for (int tileX = 0; tileX < board.getTilesX(); tileX++) {
+				int fromX = tileX * GameBoard.TILE_SIZE;
+				int toX = Math.min(width, fromX + GameBoard.TILE_SIZE);
+				int index = index(fromX, y);
+				if (board.isTileAtPrior(tileX, tileY)) {
+					// nothing has been seen there, so there are no trees and every tower probability is the prior
+					for (int x = fromX; x < toX; x++, index++) {
+						flags[index] = (byte)((flags[index] & PEASANT) | (priorIsTower ? TOWER : 0));
+					}
+					continue;
+				}
+				for (int x = fromX; x < toX; x++, index++) {
+					byte square = (byte)(flags[index] & PEASANT);
+					if (board.getHasTree(x, y)) {
+						square |= TREE;
+					}
+					if (board.getTowerProbability(x, y) == 1) {
+						square |= TOWER;
+					}
+					flags[index] = square;
+				}
+			}
+		}
+		for (int i = 0; i < townhallCount; i++) {
+			flags[townhalls[i]] |= TOWNHALL;
+		}
+		if (goldMine >= 0) {
+			flags[goldMine] |= GOLD_MINE;
+		}
+	}
+
+	/**
+	 * Marks a townhall's square, here and after every rebuild
+	 * @param x
+	 * @param y
+	 */
+	public void addTownhall(int x, int y) {
+		if (townhallCount == townhalls.length) {
+			townhalls = java.util.Arrays.copyOf(townhalls, 2 * townhallCount);
+		}
+		townhalls[townhallCount++] = index(x, y);
+		flags[index(x, y)] |= TOWNHALL;
+	}
+
+	public void clearTownhalls() {
+		for (int i = 0; i < townhallCount; i++) {
+			flags[townhalls[i]] &= ~TOWNHALL;
+		}
+		townhallCount = 0;
+	}
+
+	/**
+	 * Marks the gold mine's square, here and after every rebuild
+	 * @param x
+	 * @param y
+	 */
+	public void setGoldMine(int x, int y) {
+		if (goldMine >= 0) {
+			flags[goldMine] &= ~GOLD_MINE;
+		}
+		goldMine = index(x, y);
+		flags[goldMine] |= GOLD_MINE;
+	}
+
+	public void clearPeasants() {
+		for (int i = 0; i < flags.length; i++) {
+			flags[i] &= ~PEASANT;
+		}
+	}
+
+	public void setPeasant(int x, int y) {
+		flags[index(x, y)] |= PEASANT;
+	}
+
+	public void unsetPeasant(int x, int y) {
+		flags[index(x, y)] &= ~PEASANT;
+	}
+
+	/**
+	 * @param x May be one square off the board
+	 * @param y May be one square off the board
+	 * @return The flags of the square
+	 */
+	public int get(int x, int y) {
+		return flags[index(x, y)];
+	}
+
+	/**
+	 * @param x May be one square off the board
+	 * @param y May be one square off the board
+	 * @param mask The flags that block
+	 * @return True if any of the flags in mask are set on the square
+	 */
+	public boolean isBlocked(int x, int y, int mask) {
+		return (flags[index(x, y)] & mask) != 0;
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @param ignorePeasants True to let the search go through the peasants
+	 * @param destX
+	 * @param destY
+	 * @return True if a search heading to the destination may step onto the square. The townhall and the gold mine
+	 * only block the searches that are not heading to them.
+	 */
+	public boolean isPassable(int x, int y, boolean ignorePeasants, int destX, int destY) {
+		int square = flags[index(x, y)] & (ignorePeasants ? STATIC : STATIC | PEASANT);
+		return square == 0 || ((square == TOWNHALL || square == GOLD_MINE) && x == destX && y == destY);
+	}
+
+	/**
+	 * Makes this grid the same as another one of the same size
+	 * @param other
+	 */
+	public void copyFrom(ObstacleGrid other) {
+		System.arraycopy(other.flags, 0, flags, 0, flags.length);
+		townhalls = other.townhalls.clone();
+		townhallCount = other.townhallCount;
+		goldMine = other.goldMine;
+	}
+
+	private int index(int x, int y) {
+		return (x + 1) + (y + 1) * stride;
+	}
+}
@@ -0,0 +1,169 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Plays many episodes of one map at once, one HeadlessSimulator per core, and pools what they learn.
+ *
+ * Every episode starts from a copy of the shared board, and when it ends its evidence is merged back with
+ * GameBoard.mergeEvidence, so later episodes start out knowing about the towers earlier ones ran into. This is
+ * what persistent mode does one death and one JVM restart at a time.
+ *
+ * Usage: java ParallelEpisodeRunner [map] [episodes] [threads] [seed] [agent arguments...]
+ */
+public class ParallelEpisodeRunner {
+	private static final float INITIAL_TOWER_DENSITY = 0.01f;
+
+	private final MapFile map;
+	private final String[] agentArgs;
+	private final GameBoard pooledBoard;
+	private final AtomicInteger nextEpisode = new AtomicInteger();
+	private int pooledEpisodes = 0;
+	private int completed = 0;
+	private int timedOut = 0;
+	private int intervalCompleted = 0;
+	private int reportInterval = 10;
+	private long start;
+	private PrintStream out = System.out;
+
+	public ParallelEpisodeRunner(MapFile map, String[] agentArgs) {
+		this.map = map;
+		this.agentArgs = agentArgs;
+		this.pooledBoard = new GameBoard(map.getWidth(), map.getHeight(), INITIAL_TOWER_DENSITY);
+	}
+
+	/**
+	 * @param reportInterval How many episodes to pool between progress reports
+	 */
+	public void setReportInterval(int reportInterval) {
+		this.reportInterval = reportInterval;
+	}
+
+	/**
+	 * @param out Where to print progress
+	 */
+	public void setOutput(PrintStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Plays the episodes on a pool of threads and waits for all of them
+	 * @param episodes
+	 * @param threads
+	 * @param seed Each thread's simulator is seeded with seed plus the thread's index
+	 */
+	public void run(final int episodes, int threads, long seed) throws Exception {
+		start = System.nanoTime();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<?>> workers = new ArrayList<Future<?>>();
+		for (int i = 0; i < threads; i++) {
+			final HeadlessSimulator simulator = new HeadlessSimulator(map, seed + i);
+			workers.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					while (nextEpisode.getAndIncrement() < episodes) {
+						playEpisode(simulator);
+					}
+				}
+			}));
+		}
+		try {
+			for (Future<?> worker : workers) {
+				worker.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		double minutes = (System.nanoTime() - start) / 6e10;
+		out.printf("%d of %d episodes completed, %d timed out, %.0f episodes and %.0f completed episodes per minute%n",
+				completed, pooledEpisodes, timedOut, pooledEpisodes / minutes, completed / minutes);
+	}
+
+	/**
+	 * @return The board every episode so far has contributed to
+	 */
+	public GameBoard getPooledBoard() {
+		return pooledBoard;
+	}
+
+	/**
+	 * @return The number of episodes played and pooled so far
+	 */
+	public synchronized int getPooledEpisodes() {
+		return pooledEpisodes;
+	}
+
+	public synchronized int getCompleted() {
+		return completed;
+	}
+
+	public synchronized int getTimedOut() {
+		return timedOut;
+	}
+
+	private void playEpisode(HeadlessSimulator simulator) {
+		GameBoard base;
+		boolean learnedAnything;
+		synchronized (this) {
+			base = pooledBoard.copy();
+			learnedAnything = pooledEpisodes > 0;
+		}
+
+		ProbAgent agent = new ProbAgent(0, agentArgs);
+		// the very first episodes have nothing to start from, and should explore like a normal first run
+		if (learnedAnything) {
+			agent.setPriorBoard(base.copy());
+		}
+		HeadlessSimulator.Result result = simulator.runEpisode(agent);
+
+		synchronized (this) {
+			pooledBoard.mergeEvidence(agent.getBoard(), base);
+			pooledEpisodes++;
+			if (result.outcome == HeadlessSimulator.Outcome.COMPLETED) {
+				completed++;
+				intervalCompleted++;
+			} else if (result.outcome == HeadlessSimulator.Outcome.TIMED_OUT) {
+				timedOut++;
+			}
+			if (pooledEpisodes % reportInterval == 0) {
+				out.printf("%d episodes pooled, %d of the last %d completed (%.1f s)%n", pooledEpisodes,
+						intervalCompleted, reportInterval, (System.nanoTime() - start) / 1e9);
+				intervalCompleted = 0;
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		String mapName = args.length > 0 ? args[0] : "prob_32x32_e1.xml";
+		int episodes = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		long seed = args.length > 3 ? Long.parseLong(args[3]) : 391;
+		String[] agentArgs = args.length > 4 ? Arrays.copyOfRange(args, 4, args.length) : new String[0];
+
+		ParallelEpisodeRunner runner;
+		try {
+			runner = new ParallelEpisodeRunner(MapFile.load(mapName), agentArgs);
+		} catch (IOException e) {
+			System.err.println("Could not load map " + mapName);
+			e.printStackTrace();
+			return;
+		}
+		runner.setReportInterval(Math.max(1, episodes / 20));
+
+		// the agents narrate every turn, which would drown out the results
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		}));
+		runner.run(episodes, threads, seed);
+	}
+}
@@ -0,0 +1,240 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the A* searches of every peasant in a turn at the same time, on a frozen copy of the obstacles.
+ *
+ * The searches only read the board, so each one gets its own AStarSearch (the scratch buffers) and its own view of
+ * the snapshot, and they run on a small ForkJoinPool without sharing anything they write. The results are then taken
+ * in the same order as the sequential planner would make them. A peasant that moves changes what the peasants after
+ * it see, so every move made since the snapshot is recorded with moved(), and a result is only used if its search
+ * never looked at a square that changed; otherwise that peasant is searched again on the live grid. Either way every
+ * peasant gets exactly the step it would have got planning one after another.
+ */
+public class ParallelPathPlanner {
+	private static final int MAX_THREADS = 8;
+
+	private final int width;
+	private final int height;
+	private final ObstacleGrid snapshot;
+	private final ForkJoinPool pool;
+	private final List<AStarSearch> searches = new ArrayList<AStarSearch>(); // one per peasant of the turn, reused
+	private int[] results = new int[0];
+	private int count;
+	private HitProbabilityField searchedField; // the costs the last searches ran on
+	private volatile boolean cancelled;
+
+	private int[] changed = new int[16]; // squares that may look different to a search than in the snapshot
+	private int changedCount;
+
+	public ParallelPathPlanner(int width, int height) {
+		this.width = width;
+		this.height = height;
+		snapshot = new ObstacleGrid(width, height);
+		pool = new ForkJoinPool(Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors())));
+	}
+
+	/**
+	 * Searches from every start to its destination at once. The results are read back with getStep().
+	 * @param obstacles The live obstacles, which are copied
+	 * @param hitField Read by every search; it is brought up to date first and not written while they run
+	 * @param starts Packed with Coord
+	 * @param dests Packed with Coord
+	 * @param count
+	 */
+	public void plan(ObstacleGrid obstacles, HitProbabilityField hitField, int[] starts, int[] dests, int count) {
+		this.count = count;
+		changedCount = 0;
+		snapshot.copyFrom(obstacles);
+		hitField.flush();
+		searchedField = hitField;
+		while (searches.size() < count) {
+			searches.add(new AStarSearch(width, height));
+		}
+		if (results.length < count) {
+			results = new int[count];
+		}
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(count);
+		for (int i = 0; i < count; i++) {
+			final int task = i;
+			final SnapshotGrid grid = new SnapshotGrid(hitField, Coord.getX(dests[i]), Coord.getY(dests[i]));
+			final int start = starts[i];
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					if (cancelled) {
+						return null;
+					}
+					AStarSearch search = searches.get(task);
+					int length = search.search(grid, Coord.getX(start), Coord.getY(start), grid.destX, grid.destY);
+					if (length < 0) {
+						results[task] = Coord.NONE;
+					} else if (length == 0) {
+						results[task] = start; // already at the destination
+					} else {
+						results[task] = Coord.pack(search.getPathX(0), search.getPathY(0));
+					}
+					return null;
+				}
+			});
+		}
+		for (Future<Void> future : pool.invokeAll(tasks)) {
+			try {
+				future.get();
+			} catch (InterruptedException | ExecutionException e) {
+				// the peasant is searched again on the live grid
+				System.err.println("Parallel search failed");
+				e.printStackTrace();
+				this.count = 0;
+			}
+		}
+		if (cancelled) {
+			this.count = 0;
+		}
+	}
+
+	/**
+	 * Stops the searches of a plan() that is running on another thread; the ones not started yet are skipped and
+	 * none of the results are valid
+	 * @param cancelled False again before the next plan()
+	 */
+	public void setCancelled(boolean cancelled) {
+		this.cancelled = cancelled;
+	}
+
+	/**
+	 * Records every square where the live grid differs from the one the searches ran on, in what blocks it or in
+	 * its hit probability
+	 * @param obstacles
+	 * @param hitField
+	 */
+	public void compareWith(ObstacleGrid obstacles, HitProbabilityField hitField) {
+		if (hitField == searchedField) {
+			return;
+		}
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				if (obstacles.get(x, y) != snapshot.get(x, y) || hitField.get(x, y) != searchedField.get(x, y)) {
+					changed(Coord.pack(x, y));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records that a peasant moved after the snapshot was taken
+	 * @param from Packed with Coord
+	 * @param to Packed with Coord
+	 */
+	public void moved(int from, int to) {
+		changed(from);
+		changed(to);
+	}
+
+	private void changed(int square) {
+		if (changedCount == changed.length) {
+			changed = java.util.Arrays.copyOf(changed, 2 * changed.length);
+		}
+		changed[changedCount++] = square;
+	}
+
+	/**
+	 * @param i The index of the search in the arrays given to plan()
+	 * @return True if the search's result is still what a search on the live grid would find
+	 */
+	public boolean isValid(int i) {
+		if (i >= count) {
+			return false;
+		}
+		AStarSearch search = searches.get(i);
+		for (int k = 0; k < changedCount; k++) {
+			int x = Coord.getX(changed[k]);
+			int y = Coord.getY(changed[k]);
+			// a square's passability is only looked at when one of its neighbors is expanded
+			for (int nx = Math.max(0, x - 1); nx <= Math.min(width - 1, x + 1); nx++) {
+				for (int ny = Math.max(0, y - 1); ny <= Math.min(height - 1, y + 1); ny++) {
+					if ((nx != x || ny != y) && search.isExpanded(nx, ny)) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param i
+	 * @return The first square of the path (packed with Coord), the start if it is already at the destination, or
+	 * Coord.NONE if the destination is unreachable
+	 */
+	public int getStep(int i) {
+		return results[i];
+	}
+
+	/**
+	 * @param i
+	 * @return The number of squares the search expanded
+	 */
+	public int getExpanded(int i) {
+		return searches.get(i).getExpanded();
+	}
+
+	/**
+	 * @param i
+	 * @return The largest size of the search's open set
+	 */
+	public int getOpenPeak(int i) {
+		return searches.get(i).getOpenPeak();
+	}
+
+	public int getThreads() {
+		return pool.getParallelism();
+	}
+
+	/**
+	 * Lets the threads go once the planner is no longer needed
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * One search's read-only view of the snapshot, with its own destination
+	 */
+	private class SnapshotGrid implements SearchGrid {
+		private final HitProbabilityField hitField;
+		private final int destX;
+		private final int destY;
+
+		SnapshotGrid(HitProbabilityField hitField, int destX, int destY) {
+			this.hitField = hitField;
+			this.destX = destX;
+			this.destY = destY;
+		}
+
+		@Override
+		public int getWidth() {
+			return width;
+		}
+
+		@Override
+		public int getHeight() {
+			return height;
+		}
+
+		@Override
+		public boolean isPassable(int x, int y) {
+			return snapshot.isPassable(x, y, false, destX, destY);
+		}
+
+		@Override
+		public float getCost(int x, int y) {
+			return hitField.get(x, y);
+		}
+	}
+}
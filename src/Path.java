@@ -0,0 +1,42 @@
+/**
+ * A path stored as packed coordinates (see Coord), first step first.
+ */
+public class Path {
+	private int[] steps;
+	private int length;
+
+	public Path(int capacity) {
+		steps = new int[Math.max(capacity, 1)];
+	}
+
+	public void clear() {
+		length = 0;
+	}
+
+	public void add(int coord) {
+		if (length == steps.length) {
+			steps = java.util.Arrays.copyOf(steps, length * 2);
+		}
+		steps[length++] = coord;
+	}
+
+	public int get(int i) {
+		return steps[i];
+	}
+
+	public int getX(int i) {
+		return Coord.getX(steps[i]);
+	}
+
+	public int getY(int i) {
+		return Coord.getY(steps[i]);
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public boolean isEmpty() {
+		return length == 0;
+	}
+}
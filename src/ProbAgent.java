@@ -20,15 +20,15 @@
 //package edu.cwru.sepia.agent;
 
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.Set;
 
 import edu.cwru.sepia.action.Action;
 import edu.cwru.sepia.agent.Agent;
@@ -54,21 +54,61 @@ public class ProbAgent extends Agent {
 	private static final float TOWER_ACCURACY = 0.75f;
 	private static final float INITIAL_TOWER_DENSITY = 0.01f;
 	private static final double RANDOM_WALK_PROB = 0.75; // the probability that a peasant should walk in a random direction after being attacked
+	private static final long PLANNING_BUDGET_NANOS = 10000000; // how long the anytime planners may search each turn, all peasants together
+	private static final int MIN_EXPANSIONS = 256; // how many squares each anytime planner expands even when the turn's budget is spent
+	private static final int MAX_DISCARDS_PER_TURN = 8; // how many unreachable gold mine estimates one peasant may give up on in a turn
+	private static final int DEFAULT_EPISODES_PER_FLUSH = 1; // how often persistent mode writes out the whole board
 
 	private int step;
 	private int startingPeasants = 0;
 	private Map<Integer, Integer> peasantHealth = new HashMap<Integer, Integer>();
-	private Map<Integer, Pair<Integer, Integer>> peasantLocations = new HashMap<Integer, Pair<Integer, Integer>>();
+	private Map<Integer, Integer> peasantLocations = new HashMap<Integer, Integer>(); // packed with Coord
+	private Map<Integer, Integer> viewCenters = new HashMap<Integer, Integer>(); // where each peasant looked from last turn, packed with Coord
+	private ObstacleGrid obstacles;
+	private int townhallTemplate = -1; // template IDs, resolved by name once in initialStep
+	private int peasantTemplate = -1;
 	private GameBoard board;
+	private HitProbabilityField hitField;
+	private final BeliefUpdater beliefUpdater = new BeliefUpdater(TOWER_RANGE, TOWER_ACCURACY);
+	private final ObservationBatch observations = new ObservationBatch();
+	private int[] lastViewed;
 	private boolean randomWalk = true;
 	
+	private GameBoard priorBoard;
 	private boolean persistentMode = false;
+	private int episodesPerFlush = DEFAULT_EPISODES_PER_FLUSH;
+	private int episodes = 0;
+	private volatile boolean episodeOver = false; // the objective is done or every peasant is dead, so there is nothing left to do
 	private String boardSaveName = "board.board";
+	private BoardStore boardStore;
 	
 	private boolean foundGoldMine = false;
-	private Pair<Integer, Integer> estGoldMineLocation;
+	private int estGoldMineLocation;
+	private UnseenFrontier unseenFrontier; // where to look for the gold mine next
 	
 	private StateView currentState;
+	private PlannerMode plannerMode = PlannerMode.INCREMENTAL;
+	private AStarSearch search;
+	private Path bestPath;
+	private Map<Integer, IncrementalPlanner> minePlanners = new HashMap<Integer, IncrementalPlanner>();
+	private Map<Integer, IncrementalPlanner> homePlanners = new HashMap<Integer, IncrementalPlanner>();
+	private RiskFlowField mineFlowField;
+	private RiskFlowField homeFlowField;
+	private HierarchicalPlanner mineHierarchy;
+	private HierarchicalPlanner homeHierarchy;
+	private Map<Integer, AnytimePlanner> anytimePlanners = new HashMap<Integer, AnytimePlanner>();
+	private long planningDeadline;
+	private CooperativePlanner cooperative;
+	private boolean parallelPlanning = false;
+	private ParallelPathPlanner parallelPlanner;
+	private Map<Integer, Integer> parallelIndex = new HashMap<Integer, Integer>(); // which of this turn's parallel searches is each peasant's
+	private boolean speculativePlanning = false;
+	private SpeculativePlanner speculation;
+	private int[] occupied = new int[0];
+	private final AgentGrid grid = new AgentGrid();
+	private final int[] adjacentSquares = new int[8];
+	private final Random random = new Random();
+	private TurnProfiler profiler = new TurnProfiler(false);
 	
 	public ProbAgent(int playernum, String[] arguments) {
 		super(playernum);
@@ -78,6 +118,35 @@ public class ProbAgent extends Agent {
 			if (arg.equalsIgnoreCase("Persistent")) {
 				System.out.println("Persistent mode enabled");
 				persistentMode = true;
+			} else if (arg.equalsIgnoreCase("AStar")) {
+				System.out.println("Planning from scratch with A* every turn");
+				plannerMode = PlannerMode.ASTAR;
+			} else if (arg.equalsIgnoreCase("FlowField")) {
+				System.out.println("Planning with shared risk flow fields");
+				plannerMode = PlannerMode.FLOW_FIELD;
+			} else if (arg.equalsIgnoreCase("Anytime")) {
+				System.out.println("Planning with ARA* within a time budget every turn");
+				plannerMode = PlannerMode.ANYTIME;
+			} else if (arg.equalsIgnoreCase("Hierarchical")) {
+				System.out.println("Planning over clusters with HPA*");
+				plannerMode = PlannerMode.HIERARCHICAL;
+			} else if (arg.equalsIgnoreCase("Cooperative")) {
+				System.out.println("Planning the peasants' moves together with a space-time reservation table");
+				plannerMode = PlannerMode.COOPERATIVE;
+			} else if (arg.equalsIgnoreCase("Parallel")) {
+				System.out.println("Planning with A* for every peasant at once");
+				plannerMode = PlannerMode.ASTAR;
+				parallelPlanning = true;
+			} else if (arg.equalsIgnoreCase("Speculative")) {
+				System.out.println("Planning with A* for the next turn while this one is simulated");
+				plannerMode = PlannerMode.ASTAR;
+				speculativePlanning = true;
+			} else if (arg.toLowerCase().startsWith("flushevery=")) {
+				episodesPerFlush = Math.max(1, Integer.parseInt(arg.substring("flushevery=".length())));
+				System.out.println("Writing out the board every " + episodesPerFlush + " episodes");
+			} else if (arg.equalsIgnoreCase("Profile")) {
+				System.out.println("Profiling every turn");
+				profiler = new TurnProfiler(true);
 			}
 		}
 	}
@@ -92,33 +161,150 @@ public class ProbAgent extends Agent {
 		int width = currentState.getXExtent();
 		int height = currentState.getYExtent();
 		
+		// SEPIA plays every episode of a run with the same agent, so start this one from a clean slate
+		startingPeasants = 0;
+		peasantHealth.clear();
+		peasantLocations.clear();
+		viewCenters.clear();
+		minePlanners.clear();
+		homePlanners.clear();
+		anytimePlanners.clear();
+		parallelIndex.clear();
+		randomWalk = true;
+		foundGoldMine = false;
+		episodeOver = false;
 		
-		estGoldMineLocation = new Pair<Integer, Integer>(width - PEASANT_RANGE, PEASANT_RANGE);
+		estGoldMineLocation = Coord.pack(width - PEASANT_RANGE, PEASANT_RANGE);
+		obstacles = new ObstacleGrid(width, height);
 		
 		for (UnitView unit : currentState.getUnits(playernum)) {
 			String unitTypeName = unit.getTemplateView().getName();
-			if(unitTypeName.equals("Peasant")) {
+			if (unitTypeName.equals("TownHall")) {
+				townhallTemplate = unit.getTemplateView().getID();
+			} else if(unitTypeName.equals("Peasant")) {
+				peasantTemplate = unit.getTemplateView().getID();
 				startingPeasants++;
 				peasantHealth.put(unit.getID(), unit.getHP());
-				peasantLocations.put(unit.getID(), new Pair<Integer, Integer>(unit.getXPosition(), unit.getYPosition()));
+				setPeasantLocation(unit.getID(), Coord.pack(unit.getXPosition(), unit.getYPosition()));
 			}
 		}
 		
-		board = new GameBoard(width, height, INITIAL_TOWER_DENSITY);
-		
-		// Load the probabilities from a previous run if enabled
+		// persistent mode saves the board whichever of the sources below it comes from
 		if (persistentMode) {
-			boardSaveName = getUniqueNameForBoard();
-			GameBoard loaded = GameBoard.loadGameBoard(boardSaveName);
-			if (loaded != null) {
-				board = loaded;
-				randomWalk = false;
+			String name = getUniqueNameForBoard();
+			if (boardStore == null || !name.equals(boardSaveName)) {
+				if (boardStore != null) {
+					boardStore.close();
+				}
+				boardSaveName = name;
+				boardStore = new BoardStore(new File("SavedBoards"), boardSaveName);
+			}
+		}
+
+		// Start from what other episodes learned, or load the probabilities from a previous run if enabled
+		boolean warm = false;
+		if (priorBoard != null) {
+			board = priorBoard;
+			priorBoard = null;
+			randomWalk = false;
+		} else if (board != null && board.getWidth() == width && board.getHeight() == height) {
+			// an earlier episode of this run on the same map, which is still in memory
+			board.clearKnownStatic();
+			randomWalk = false;
+			warm = true;
+		} else if (persistentMode) {
+			try {
+				GameBoard loaded = boardStore.load();
+				if (loaded != null) {
+					board = loaded;
+					randomWalk = false;
+				}
+			} catch (IOException e) {
+				System.err.println("Could not load board");
+				e.printStackTrace();
 			}
+			if (board == null || board.getWidth() != width || board.getHeight() != height) {
+				board = new GameBoard(width, height, INITIAL_TOWER_DENSITY);
+			}
+		} else {
+			board = new GameBoard(width, height, INITIAL_TOWER_DENSITY);
+		}
+		if (persistentMode) {
+			// journal every turn's changes so that nothing is lost if the game ends abruptly
+			board.trackChanges();
+		}
+		if (!warm) {
+			hitField = new HitProbabilityField(board, TOWER_RANGE, TOWER_ACCURACY);
+		}
+		// a board from earlier games knows where the mine is, and may have seen everything else around it
+		int mine = board.getGoldMine();
+		if (mine >= 0) {
+			foundGoldMine = true;
+			estGoldMineLocation = Coord.fromCell(mine, width);
+			obstacles.setGoldMine(Coord.getX(estGoldMineLocation), Coord.getY(estGoldMineLocation));
+		}
+		unseenFrontier = new UnseenFrontier(board, Coord.getX(estGoldMineLocation), Coord.getY(estGoldMineLocation));
+		search = new AStarSearch(width, height);
+		bestPath = new Path(width + height);
+		mineFlowField = new RiskFlowField(width, height);
+		homeFlowField = new RiskFlowField(width, height);
+		mineHierarchy = new HierarchicalPlanner(width, height);
+		homeHierarchy = new HierarchicalPlanner(width, height);
+		if (plannerMode == PlannerMode.COOPERATIVE) {
+			cooperative = new CooperativePlanner(width, height);
+		}
+		if (speculativePlanning && plannerMode == PlannerMode.ASTAR) {
+			speculation = new SpeculativePlanner(width, height, TOWER_RANGE, TOWER_ACCURACY);
+			parallelPlanner = speculation.getPlanner();
+		} else if (parallelPlanning && plannerMode == PlannerMode.ASTAR) {
+			parallelPlanner = new ParallelPathPlanner(width, height);
 		}
+		lastViewed = new int[width * height];
 		
 		return middleStep(newstate, statehistory);
 	}
 
+	/**
+	 * Journals this turn's changes to the board, or writes out the whole board
+	 * @param compact True to write the whole board and empty the journal
+	 */
+	private void saveBoard(boolean compact) {
+		try {
+			if (compact) {
+				boardStore.compact(board);
+				System.out.println("Saved board");
+			} else {
+				boardStore.appendTurn(board);
+			}
+		} catch (IOException e) {
+			System.err.println("Could not save board");
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Starts the next episode from a board learned elsewhere instead of a fresh one.
+	 * The agent updates the board in place.
+	 * @param priorBoard
+	 */
+	public void setPriorBoard(GameBoard priorBoard) {
+		this.priorBoard = priorBoard;
+	}
+	
+	/**
+	 * @return Everything the agent has learned about the map so far
+	 */
+	public GameBoard getBoard() {
+		return board;
+	}
+	
+	/**
+	 * @return Whether the objective is done or every peasant is dead, so the episode can be ended
+	 */
+	public boolean isEpisodeOver() {
+		return episodeOver;
+	}
+
 	private String getUniqueNameForBoard() {
 		int width = currentState.getXExtent();
 		int height = currentState.getYExtent();
@@ -126,7 +312,7 @@ public class ProbAgent extends Agent {
 		// make a unique id for this configuration
 		int id = 0;
 		for (Integer pId : peasantLocations.keySet()) {
-			id += pId * (peasantLocations.get(pId).getX() + peasantLocations.get(pId).getY());
+			id += pId * (Coord.getX(peasantLocations.get(pId)) + Coord.getY(peasantLocations.get(pId)));
 		}
 		
 		return (width + "x" + height + "_" + id + ".board");
@@ -136,41 +322,59 @@ public class ProbAgent extends Agent {
 	@Override
 	public Map<Integer,Action> middleStep(StateView newState, History.HistoryView statehistory) {
 		step++;
-		
 		Map<Integer,Action> builder = new HashMap<Integer,Action>();
 		currentState = newState;
 		
+		if (episodeOver) {
+			return builder; // ProbEpisodeRunner ends the episode after this turn; other runners wait for the time limit
+		}
+		
 		int currentGold = currentState.getResourceAmount(0, ResourceType.GOLD);
 		if (currentGold >= GOLD_REQUIRED) {
 			System.out.println("Completed objective!");
-			System.exit(0);
+			episodeOver = true;
+			return builder;
+		}
+		
+		// only the turns the agent plays are profiled, and every one of them has to end with endTurn
+		profiler.startTurn(step);
+		profiler.start(TurnProfiler.Phase.UNIT_SCAN);
+		if (speculation != null) {
+			speculation.awaitCopy(); // the guess for this turn may still be copying the board
 		}
 
 		List<UnitView> peasants = new ArrayList<UnitView>();
 		List<UnitView> townhalls = new ArrayList<UnitView>();
+		List<Integer> alive = new ArrayList<Integer>();
 		
+		obstacles.clearTownhalls();
 		for (UnitView unit : currentState.getUnits(playernum)) {
-			String unitTypeName = unit.getTemplateView().getName();
-			if(unitTypeName.equals("TownHall")) {
+			int template = unit.getTemplateView().getID();
+			if (template == townhallTemplate) {
 				townhalls.add(unit);
-			} else if(unitTypeName.equals("Peasant")) {
+				obstacles.addTownhall(unit.getXPosition(), unit.getYPosition());
+			} else if (template == peasantTemplate) {
 				peasants.add(unit);
-				peasantLocations.put(unit.getID(), new Pair<Integer, Integer>(unit.getXPosition(), unit.getYPosition()));
+				alive.add(unit.getID());
+				peasantLocations.put(unit.getID(), Coord.pack(unit.getXPosition(), unit.getYPosition()));
 			}
 		}
 		
+		// mark where the peasants are this turn; a dead peasant's last square is free again
+		peasantLocations.keySet().retainAll(alive);
+		obstacles.clearPeasants();
+		for (int location : peasantLocations.values()) {
+			obstacles.setPeasant(Coord.getX(location), Coord.getY(location));
+		}
+		profiler.end(TurnProfiler.Phase.UNIT_SCAN);
+		
 		// We are dead
 		if (peasants.size() == 0) {
 			System.out.println("Dead.");
-			if (!alreadySaved) {
-				board.print();
-				if (persistentMode) {
-					System.out.println("Saving board for next time:");
-					board.serializeGameBoard(boardSaveName);
-				}
-				alreadySaved = true;
-			}
-			System.exit(0);
+			board.print();
+			episodeOver = true;
+			profiler.endTurn(0, 0);
+			return builder;
 		}
 		
 		
@@ -178,20 +382,21 @@ public class ProbAgent extends Agent {
 		if (peasants.size() < startingPeasants && currentGold >= peasants.get(0).getTemplateView().getGoldCost()) {
 			
 			int townhallID = townhalls.get(0).getID();
-			int peasantTemplateID = currentState.getTemplate(playernum, "Peasant").getID();
 			System.out.println("Making new peasant");
-			builder.put(townhallID, Action.createCompoundProduction(townhallID, peasantTemplateID));
+			builder.put(townhallID, Action.createCompoundProduction(townhallID, peasantTemplate));
 		}
 		
 		List<UnitView> hitList = new ArrayList<>();
+		observations.clear();
+		profiler.start(TurnProfiler.Phase.VIEW_UPDATE);
 		
-		// Find all the peasants and update probabilities
+		// Find all the peasants and collect this turn's observations
 		for (UnitView peasant : peasants) {
 			int x = peasant.getXPosition();
 			int y = peasant.getYPosition();
 			
 			// update the board with everything that the peasants can see
-			updatePeasantViewRange(x, y);
+			updatePeasantViewRange(peasant.getID(), x, y);
 			
 			// increment all the squares that peasants have visited
 			board.incrementVisits(x, y);
@@ -199,87 +404,110 @@ public class ProbAgent extends Agent {
 			// start tracking any newly made peasants
 			if (!peasantHealth.containsKey(peasant.getID())) {
 				peasantHealth.put(peasant.getID(), peasant.getHP());
-				peasantLocations.put(peasant.getID(), new Pair<Integer, Integer>(peasant.getXPosition(), peasant.getYPosition()));
+				setPeasantLocation(peasant.getID(), Coord.pack(x, y));
 			}
 			
 			// find peasants that have taken damage
-			if (peasantHealth.get(peasant.getID()) > peasant.getHP()) {
+			boolean hit = peasantHealth.get(peasant.getID()) > peasant.getHP();
+			if (hit) {
 				System.out.println("Peasant " + peasant.getID() + " has been hit!");
-				
-				// update the probabilities based on a tower hit
 				board.incrementHits(x, y);
-				updateFromHit(x, y, true);
 				randomWalk = false;
-				board.print();
 				hitList.add(peasant);
-			} else {
-				
-				// update probabilities based on no hit
-				updateFromHit(x, y, false);
 			}
+			observations.add(x, y, hit);
 			peasantHealth.put(peasant.getID(), peasant.getHP());
 		}
+		profiler.end(TurnProfiler.Phase.VIEW_UPDATE);
+		
+		// update the probabilities based on every hit and no hit at once
+		profiler.start(TurnProfiler.Phase.BELIEF_UPDATE);
+		long versionBefore = board.getVersion();
+		beliefUpdater.apply(board, observations);
+		profiler.addCellsUpdated(board.getVersion() - versionBefore);
+		profiler.end(TurnProfiler.Phase.BELIEF_UPDATE);
+		if (persistentMode) {
+			saveBoard(false);
+		}
+		if (!hitList.isEmpty()) {
+			board.print();
+		}
+		
+		profiler.start(TurnProfiler.Phase.ACTIONS);
+		
+		// everything the searches need to know about what blocks a square, in one byte per square
+		obstacles.rebuild(board);
+		
+		// forget the planners of peasants that have died
+		minePlanners.keySet().retainAll(alive);
+		homePlanners.keySet().retainAll(alive);
+		anytimePlanners.keySet().retainAll(alive);
+		planningDeadline = System.nanoTime() + PLANNING_BUDGET_NANOS;
+		if (plannerMode == PlannerMode.COOPERATIVE) {
+			// every peasant's square is known before anyone plans around it
+			cooperative.startTurn(step);
+			cooperative.retain(alive);
+			for (UnitView peasant : peasants) {
+				cooperative.observe(peasant.getID(), peasant.getXPosition(), peasant.getYPosition());
+			}
+		}
+		parallelIndex.clear();
+		if (speculation != null) {
+			commitSpeculation(peasants, townhalls.get(0), !hitList.isEmpty());
+		} else if (parallelPlanner != null && !randomWalk) {
+			planInParallel(peasants, townhalls.get(0));
+		}
 		
 		// determine actions for each peasant
 		for (UnitView peasant : peasants) {
+			int x = peasant.getXPosition();
+			int y = peasant.getYPosition();
 			if (randomWalk) { // if no peasant has been hit yet, randomly walk around
-
-				Node nextStep = randomAdjacentNode(peasant.getXPosition(), peasant.getYPosition());
-				Direction direction = getDirection(nextStep.getX() - peasant.getXPosition(), nextStep.getY() - peasant.getYPosition());
-				
-				Action a = Action.createPrimitiveMove(peasant.getID(), direction);
-				builder.put(peasant.getID(), a);
-				
-				peasantLocations.put(peasant.getID(), new Pair<Integer, Integer>(nextStep.getX(), nextStep.getY()));
+				moveTo(peasant, randomAdjacentSquare(x, y), builder);
 			} else if (peasant.getCargoAmount() == 0) {
-				if (isAdjacent(peasant.getXPosition(), peasant.getYPosition(), estGoldMineLocation.getX(), estGoldMineLocation.getY())
+				if (isAdjacent(x, y, Coord.getX(estGoldMineLocation), Coord.getY(estGoldMineLocation))
 						&& foundGoldMine) { // harvest gold
 					System.out.println("Found gold mine, harvesting!");
-					Action a = Action.createCompoundGather(peasant.getID(), currentState.resourceAt(estGoldMineLocation.getX(), estGoldMineLocation.getY()));
+					holdPosition(peasant);
+					Action a = Action.createCompoundGather(peasant.getID(), currentState.resourceAt(Coord.getX(estGoldMineLocation), Coord.getY(estGoldMineLocation)));
 					builder.put(peasant.getID(), a);
 				} else { // move towards goldmine
-					List<Pair<Integer, Integer>> bestPath = getBestPath(new Pair<Integer, Integer>(peasant.getXPosition(), peasant.getYPosition()), estGoldMineLocation);
-					Pair<Integer, Integer> nextStep = bestPath.get(0);
+					int nextStep = getNextStep(peasant, estGoldMineLocation, minePlanners, mineFlowField, mineHierarchy);
+					if (nextStep == Coord.NONE && !foundGoldMine) {
+						nextStep = exploreElsewhere(peasant);
+					}
 					
 					// if a peasant has been hit, randomly walk around with some probability
 					if (hitList.contains(peasant) && Math.random() < RANDOM_WALK_PROB) {
-						Node node = randomAdjacentNode(peasant.getXPosition(), peasant.getYPosition());
-						nextStep = new Pair<Integer, Integer>(node.getX(), node.getY());
+						nextStep = randomAdjacentSquare(x, y);
 					}
-					
-					Direction direction = getDirection(nextStep.getX() - peasant.getXPosition(), nextStep.getY() - peasant.getYPosition());
-					
-					Action a = Action.createPrimitiveMove(peasant.getID(), direction);
-					builder.put(peasant.getID(), a);
-					
-					peasantLocations.put(peasant.getID(), new Pair<Integer, Integer>(nextStep.getX(), nextStep.getY()));
+					moveTo(peasant, nextStep, builder);
 				}
 			} else { 
-				if (isAdjacent(peasant.getXPosition(), peasant.getYPosition(),
-						townhalls.get(0).getXPosition(), townhalls.get(0).getYPosition())) { // Deposit gold
+				UnitView townhall = townhalls.get(0);
+				if (isAdjacent(x, y, townhall.getXPosition(), townhall.getYPosition())) { // Deposit gold
 					System.out.println("Depositing!");
-					Action a = Action.createCompoundDeposit(peasant.getID(), townhalls.get(0).getID());
+					holdPosition(peasant);
+					Action a = Action.createCompoundDeposit(peasant.getID(), townhall.getID());
 					builder.put(peasant.getID(), a);
 				} else { // move towards townhall
-					List<Pair<Integer, Integer>> bestPath = getBestPath(new Pair<Integer, Integer>(peasant.getXPosition(), peasant.getYPosition()),
-							new Pair<Integer, Integer>(townhalls.get(0).getXPosition(), townhalls.get(0).getYPosition()));
-					Pair<Integer, Integer> nextStep = bestPath.get(0);
+					int nextStep = getNextStep(peasant, Coord.pack(townhall.getXPosition(), townhall.getYPosition()), homePlanners, homeFlowField, homeHierarchy);
 					
 					// if a peasant has been hit, randomly walk around with some probability
 					if (hitList.contains(peasant) && Math.random() < RANDOM_WALK_PROB) {
-						Node node = randomAdjacentNode(peasant.getXPosition(), peasant.getYPosition());
-						nextStep = new Pair<Integer, Integer>(node.getX(), node.getY());
+						nextStep = randomAdjacentSquare(x, y);
 					}
-					
-					Direction direction = getDirection(nextStep.getX() - peasant.getXPosition(), nextStep.getY() - peasant.getYPosition());
-					
-					Action a = Action.createPrimitiveMove(peasant.getID(), direction);
-					builder.put(peasant.getID(), a);
-					
-					peasantLocations.put(peasant.getID(), new Pair<Integer, Integer>(nextStep.getX(), nextStep.getY()));
+					moveTo(peasant, nextStep, builder);
 				}
 			}
 		}
+		profiler.end(TurnProfiler.Phase.ACTIONS);
+		profiler.endTurn(peasants.size(), hitList.size());
+		
+		// get a head start on next turn's searches while SEPIA plays this one out
+		if (speculation != null && !randomWalk) {
+			startSpeculation(peasants, townhalls.get(0));
+		}
 		
 		return builder;
 	}
@@ -287,20 +515,187 @@ public class ProbAgent extends Agent {
 	@Override
 	public void terminalStep(StateView newstate, History.HistoryView statehistory) {
 		step++;
-		
+		episodes++;
+		System.out.println("Episode " + episodes + " over after " + step + " turns");
+		profiler.printSummary(System.out);
+		// the board stays in memory for the next episode, and is only written out now and then
+		if (persistentMode && boardStore != null && episodes % episodesPerFlush == 0) {
+			System.out.println("Saving board for next time:");
+			saveBoard(true);
+		}
+		if (speculation != null) {
+			speculation.shutdown();
+		} else if (parallelPlanner != null) {
+			parallelPlanner.shutdown();
+		}
 	}
 	
-	private Node randomAdjacentNode(int locX, int locY) {
+	/**
+	 * Orders a peasant to move to an adjacent square. This is the only place packed coordinates are turned into a SEPIA action.
+	 * If the destination is unreachable the peasant steps to a random adjacent square instead, since standing still
+	 * would leave it stuck for as long as the board stays the same. On its own square the peasant waits this turn.
+	 * @param peasant
+	 * @param nextStep The square, the peasant's own square, or Coord.NONE
+	 * @param builder
+	 */
+	private void moveTo(UnitView peasant, int nextStep, Map<Integer, Action> builder) {
+		if (nextStep == Coord.NONE) {
+			nextStep = randomAdjacentSquare(peasant.getXPosition(), peasant.getYPosition());
+		}
+		if (nextStep == Coord.NONE || nextStep == Coord.pack(peasant.getXPosition(), peasant.getYPosition())) {
+			return; // boxed in, or waiting for another peasant
+		}
+		Direction direction = getDirection(Coord.getX(nextStep) - peasant.getXPosition(), Coord.getY(nextStep) - peasant.getYPosition());
 		
-		Node current = new Node(locX, locY, getHitProbability(locX, locY));
+		Action a = Action.createPrimitiveMove(peasant.getID(), direction);
+		builder.put(peasant.getID(), a);
 		
-		// We need a node to put into getAdjacentNodes that won't get hit with random walk and isn't the townhall
+		if (parallelPlanner != null) {
+			parallelPlanner.moved(Coord.pack(peasant.getXPosition(), peasant.getYPosition()), nextStep);
+		}
+		setPeasantLocation(peasant.getID(), nextStep);
+	}
+	
+	/**
+	 * Runs the searches of every peasant that is heading somewhere this turn at once. The action loop then takes
+	 * their results in order, searching again for any peasant whose result was changed by the moves before it.
+	 * @param peasants
+	 * @param townhall
+	 */
+	private void planInParallel(List<UnitView> peasants, UnitView townhall) {
+		int[] starts = new int[peasants.size()];
+		int[] dests = new int[peasants.size()];
+		int count = 0;
+		for (UnitView peasant : peasants) {
+			int x = peasant.getXPosition();
+			int y = peasant.getYPosition();
+			int dest = getDestination(x, y, peasant.getCargoAmount(), townhall);
+			if (dest == Coord.NONE) {
+				continue;
+			}
+			parallelIndex.put(peasant.getID(), count);
+			starts[count] = Coord.pack(x, y);
+			dests[count] = dest;
+			count++;
+		}
+		parallelPlanner.plan(obstacles, hitField, starts, dests, count);
+	}
+	
+	/**
+	 * Hands next turn's expected observations and searches to the speculative planner: every peasant where it was
+	 * ordered to go, and not hit
+	 * @param peasants
+	 * @param townhall
+	 */
+	private void startSpeculation(List<UnitView> peasants, UnitView townhall) {
+		speculation.begin();
+		for (UnitView peasant : peasants) {
+			int location = peasantLocations.get(peasant.getID());
+			int x = Coord.getX(location);
+			int y = Coord.getY(location);
+			speculation.expectPeasant(x, y);
+			int dest = getDestination(x, y, peasant.getCargoAmount(), townhall);
+			if (dest != Coord.NONE) {
+				speculation.expectSearch(peasant.getID(), location, dest);
+			}
+		}
+		speculation.start(board, hitField, obstacles);
+	}
+	
+	/**
+	 * Takes the steps of last turn's guess for the peasants it got right. The action loop checks each of them against
+	 * what changed before using it.
+	 * @param peasants
+	 * @param townhall
+	 * @param anyHit True if a peasant was hit, which the guess never expects
+	 */
+	private void commitSpeculation(List<UnitView> peasants, UnitView townhall, boolean anyHit) {
+		if (anyHit) {
+			speculation.discard();
+			return;
+		}
+		if (!speculation.commit(obstacles, hitField)) {
+			return;
+		}
+		for (UnitView peasant : peasants) {
+			int x = peasant.getXPosition();
+			int y = peasant.getYPosition();
+			int dest = getDestination(x, y, peasant.getCargoAmount(), townhall);
+			int index = dest == Coord.NONE ? -1 : speculation.indexOf(peasant.getID(), Coord.pack(x, y), dest);
+			if (index >= 0) {
+				parallelIndex.put(peasant.getID(), index);
+			}
+		}
+	}
+	
+	/**
+	 * @param x
+	 * @param y
+	 * @param cargo
+	 * @param townhall
+	 * @return Where a peasant on the square is heading, or Coord.NONE if it is harvesting or depositing instead
+	 */
+	private int getDestination(int x, int y, int cargo, UnitView townhall) {
+		if (cargo == 0) {
+			if (foundGoldMine && isAdjacent(x, y, Coord.getX(estGoldMineLocation), Coord.getY(estGoldMineLocation))) {
+				return Coord.NONE;
+			}
+			return estGoldMineLocation;
+		}
+		if (isAdjacent(x, y, townhall.getXPosition(), townhall.getYPosition())) {
+			return Coord.NONE;
+		}
+		return Coord.pack(townhall.getXPosition(), townhall.getYPosition());
+	}
+	
+	/**
+	 * Keeps other peasants from planning through a peasant that is staying where it is
+	 * @param peasant
+	 */
+	private void holdPosition(UnitView peasant) {
+		if (plannerMode == PlannerMode.COOPERATIVE) {
+			cooperative.hold(peasant.getID(), peasant.getXPosition(), peasant.getYPosition());
+		}
+	}
+	
+	/**
+	 * Records where a peasant is (or is about to be), keeping the obstacle grid in sync
+	 * @param id
+	 * @param location
+	 */
+	private void setPeasantLocation(int id, int location) {
+		Integer old = peasantLocations.put(id, location);
+		if (old != null) {
+			obstacles.unsetPeasant(Coord.getX(old), Coord.getY(old));
+		}
+		obstacles.setPeasant(Coord.getX(location), Coord.getY(location));
+	}
+	
+	private int randomAdjacentSquare(int locX, int locY) {
+		// We need a destination that won't get hit with random walk and isn't the townhall
 		// This is just a hack to stop peasants from getting stuck behind the townhall...
-		Node fudge = new Node(estGoldMineLocation.getX(), estGoldMineLocation.getY(), getHitProbability(estGoldMineLocation.getX(), estGoldMineLocation.getY()));
-		List<Node> adjacentNodes = getAdjacentNodes(current, new ArrayList<Node>(), fudge);
+		grid.setDestination(Coord.getX(estGoldMineLocation), Coord.getY(estGoldMineLocation));
+		
+		int count = 0;
+		for (int i = -1; i <=1; i++) {
+			for (int j = -1; j <=1; j++) {
+				if (i == 0 && j == 0) {
+					continue;
+				}
+				int x = locX + i;
+				int y = locY + j;
+				if (!grid.isPassable(x, y)) { // out of bounds counts as blocked
+					continue;
+				}
+				adjacentSquares[count++] = Coord.pack(x, y);
+			}
+		}
 		
-		Random random = new Random();
-		return adjacentNodes.get(random.nextInt(adjacentNodes.size()));
+		// boxed in by trees and other peasants
+		if (count == 0) {
+			return Coord.NONE;
+		}
+		return adjacentSquares[random.nextInt(count)];
 	}
 	
     private Direction getDirection(int x, int y) {
@@ -327,16 +722,40 @@ public class ProbAgent extends Agent {
     }
 	
     /**
-     * Given a peasant locaiton, updates all the squares that it can see with relevant information
+     * Given a peasant locaiton, updates all the squares that it can see with relevant information.
+     * Only the squares that came into view since the peasant's last turn are looked at (everything else in view was
+     * looked at last turn, and only our own peasants move), and squares that another peasant already looked at this
+     * turn or whose contents are known not to change are skipped.
+     * @param id
      * @param x
      * @param y
      */
-	private void updatePeasantViewRange(int x, int y) {
+	private void updatePeasantViewRange(int id, int x, int y) {
+		Integer last = viewCenters.put(id, Coord.pack(x, y));
+		int lastX = last == null ? Integer.MIN_VALUE / 2 : Coord.getX(last);
+		int lastY = last == null ? Integer.MIN_VALUE / 2 : Coord.getY(last);
+		int queried = 0;
 		for(int i = -PEASANT_RANGE; i <= PEASANT_RANGE; i++) {
 			for(int j = -PEASANT_RANGE; j <= PEASANT_RANGE; j++) {
-				updateSeen(x + i, y + j);
+				if (!currentState.inBounds(x + i, y + j)) {
+					continue;
+				}
+				// still in view from where it stood last turn
+				if (Math.abs(x + i - lastX) <= PEASANT_RANGE && Math.abs(y + j - lastY) <= PEASANT_RANGE) {
+					continue;
+				}
+				int cell = (x + i) + (y + j) * board.getWidth();
+				if (lastViewed[cell] != step && !board.isKnownStatic(x + i, y + j)) {
+					lastViewed[cell] = step;
+					updateSeen(x + i, y + j);
+					queried++;
+				}
 			}
 		}
+		profiler.addStateQueries(queried);
+		
+		// the square the peasant stands on has no tower
+		board.setTowerProbability(x, y, 0);
 	}
 	
 	/**
@@ -351,13 +770,17 @@ public class ProbAgent extends Agent {
 		}
 		
 		board.setSeen(x, y, true);
+		// nothing but our own peasants moves, and they are tracked without looking, so one look is enough
+		board.setKnownStatic(x, y);
 		
 		if (currentState.isResourceAt(x, y)) {
         	ResourceView resource = currentState.getResourceNode(currentState.resourceAt(x, y));
         	if(resource.getType().equals(ResourceNode.Type.GOLD_MINE)) {
 //        		System.out.printf("FOUND GOLDMINE AT %d,%d\n", x, y);
         		foundGoldMine = true;
-        		estGoldMineLocation = new Pair<Integer, Integer>(x, y);
+        		estGoldMineLocation = Coord.pack(x, y);
+        		obstacles.setGoldMine(x, y);
+        		board.setGoldMine(x, y);
         	} else if (resource.getType().equals(ResourceNode.Type.TREE)) {
         		board.setHasTree(x, y, true);
         	}
@@ -376,31 +799,51 @@ public class ProbAgent extends Agent {
         }
 		
 		// Need to check if our original estimate for the goldmine location has been found
-		if (!foundGoldMine && board.getSeen(estGoldMineLocation.getX(), estGoldMineLocation.getY())) {
-			System.out.printf("No gold mine at %d,%d\n", estGoldMineLocation.getX(), estGoldMineLocation.getY());
+		if (!foundGoldMine && unseenFrontier.isSeen(board, Coord.getX(estGoldMineLocation), Coord.getY(estGoldMineLocation))) {
 			updateGoldMineEstimate();
 		}
 	}
 	
 	/**
-	 * Finds the closest unseen square to the original estimated gold mine location
-	 * @param x
-	 * @param y
+	 * Gives up on gold mine estimates the peasant cannot reach, such as an unseen square walled in by trees, and
+	 * heads for the next closest unseen square instead
+	 * @param peasant
+	 * @return The next square towards the new estimate, or Coord.NONE if none of the estimates tried is reachable
 	 */
-	private void updateGoldMineEstimate() {
-		int x = currentState.getXExtent() - PEASANT_RANGE;
-	    int y = PEASANT_RANGE;
-		for (int range = 1; range < Math.max(currentState.getXExtent(), currentState.getYExtent()); range++) {
-			for (int i = x - range; i <= x + range; i++) {
-				for (int j = y - range; j <= y + range; j++) {
-					if (currentState.inBounds(i, j) && !board.getSeen(i, j)) {
-						estGoldMineLocation = new Pair<Integer, Integer>(i, j);
-						System.out.printf("New gold mine estimate at %d,%d\n", estGoldMineLocation.getX(), estGoldMineLocation.getY());
-						return;
-					}
-				}
+	private int exploreElsewhere(UnitView peasant) {
+		// the searches made in parallel this turn were for the old estimate
+		parallelIndex.clear();
+		for (int tries = 0; tries < MAX_DISCARDS_PER_TURN && !foundGoldMine; tries++) {
+			int unreachable = estGoldMineLocation;
+			unseenFrontier.discard(Coord.toCell(unreachable, board.getWidth()));
+			updateGoldMineEstimate();
+			if (estGoldMineLocation == unreachable) {
+				return Coord.NONE; // nothing left to look at
+			}
+			int nextStep = getNextStep(peasant, estGoldMineLocation, minePlanners, mineFlowField, mineHierarchy);
+			if (nextStep != Coord.NONE) {
+				return nextStep;
 			}
 		}
+		return Coord.NONE;
+	}
+	
+	/**
+	 * Moves the gold mine estimate to the closest unseen square to the original estimated gold mine location
+	 */
+	private void updateGoldMineEstimate() {
+		int cell = unseenFrontier.nearestUnseen(board);
+		if (cell < 0 && !unseenFrontier.isThisGameOnly()) {
+			// everything was seen in earlier games, so look again at what this game has not
+			unseenFrontier = new UnseenFrontier(board, board.getWidth() - PEASANT_RANGE, PEASANT_RANGE, true);
+			cell = unseenFrontier.nearestUnseen(board);
+		}
+		if (cell < 0) {
+			return;
+		}
+		System.out.printf("No gold mine at %d,%d, new estimate at %d,%d\n", Coord.getX(estGoldMineLocation), Coord.getY(estGoldMineLocation),
+				cell % board.getWidth(), cell / board.getWidth());
+		estGoldMineLocation = Coord.fromCell(cell, board.getWidth());
 	}
 
 	/**
@@ -410,164 +853,135 @@ public class ProbAgent extends Agent {
 	 * @return The probability
 	 */
 	private float getHitProbability(int x, int y) {
-		float probability = 0;
-		
-		for (int i = -TOWER_RANGE; i <= TOWER_RANGE; i++) {
-			for (int j = -TOWER_RANGE; j <= TOWER_RANGE; j++) {
-				int curX = x + i;
-				int curY = y + j;
-				if (currentState.inBounds(curX, curY)
-						&& distance(x, y, curX, curY) <= TOWER_RANGE) { // tower shoots in a circular range
-					probability = (probability + board.getTowerProbability(curX, curY)) - (probability * board.getTowerProbability(curX, curY));
-				}
-			}
-		}
-		
-		return probability * TOWER_ACCURACY;
+		return hitField.get(x, y);
 	}
 
 	/**
-	 * Updates the probability map for tower locations
-	 * @param x
-	 * @param y
-	 * @param hit
+	 * Finds the next square a peasant should move to on its way to the destination
+	 * @param peasant
+	 * @param dest
+	 * @param planners The incremental planners of every peasant for this destination
+	 * @param flowField The flow field for this destination
+	 * @param hierarchy The cluster graph for this destination
+	 * @return The next square, the peasant's own square if it should wait, or Coord.NONE if the destination is unreachable
 	 */
-	private void updateFromHit(int x, int y, boolean hit) {
-		float[][] old = board.getBoardCopy();
-		int fromX = Math.max(x - TOWER_RANGE, 0);
-		int toX   = Math.min(old.length, x + TOWER_RANGE);
-		int fromY = Math.max(y - TOWER_RANGE, 0);
-		int toY   = Math.min(old[0].length, y + TOWER_RANGE);
-		for (int r = fromX; r < toX; r++) {
-			for (int c = fromY; c < toY; c++) {
-				if (board.getSeen(r, c) // Only need to update out-of-view cells.
-						|| distance(x, y, r, c) <= TOWER_RANGE) { // tower has circular range
-					continue; 
-				}
-
-				float phn, pht;
-				if (hit) {
-					// P(H|N) = 1 - P(S|N)
-					phn = 1;
-					for (int rr = fromX; rr < toX; rr++) {
-						for (int cc = fromY; cc < toY; cc++) {
-							if (rr == r && cc == c) continue;
-							// P(S) = P(N)+(P(T)*(1-P(H)))
-							phn *= (1f - old[rr][cc]) + (old[rr][cc] * (1f - TOWER_ACCURACY));
-						}
-					}
-					phn = 1f - phn;
-
-					// P(H|T): same as above, but without skipping r, c
-					// Simplifies to 1-((1-P(H|N))*P(M)) since tower existing is given.
-					pht = 1f - ((1f - phn) * (1f - TOWER_ACCURACY));
-				} else {
-					// P(S|N) = P(S)
-					phn = 1;
-					for (int rr = fromX; rr < toX; rr++) {
-						for (int cc = fromY; cc < toY; cc++) {
-							if (rr == r && cc == c) continue;
-							// P(S) = P(N)+(P(T)*(1-P(H)))
-							phn *= (1f - old[rr][cc]) + (old[rr][cc] * (1f - TOWER_ACCURACY));
-						}
-					}
-
-					// P(S|T): same as above, but without skipping r, c
-					// Simplifies to P(H|N))*P(M) since tower existing is given.
-					pht = phn * (1f - TOWER_ACCURACY);
+	private int getNextStep(UnitView peasant, int dest, Map<Integer, IncrementalPlanner> planners, RiskFlowField flowField,
+			HierarchicalPlanner hierarchy) {
+		int width = board.getWidth();
+		int x = peasant.getXPosition();
+		int y = peasant.getYPosition();
+		int destX = Coord.getX(dest);
+		int destY = Coord.getY(dest);
+		int next;
+		
+		grid.setDestination(destX, destY);
+		profiler.startSearch();
+		if (plannerMode == PlannerMode.ASTAR) {
+			Integer index = parallelIndex.get(peasant.getID());
+			if (index != null && parallelPlanner.isValid(index)) {
+				profiler.endSearch(x, y, destX, destY, parallelPlanner.getExpanded(index), parallelPlanner.getOpenPeak(index));
+				next = parallelPlanner.getStep(index);
+				if (next == Coord.NONE) {
+					System.out.printf("Target (%d, %d) is unreachable from position (%d, %d).\n", destX, destY, x, y);
 				}
-
-				// P(T|H) = P(H|T)*P(T)/(P(H|T)*P(T)+P(H|N)*P(N))
-				board.setTowerProbability(r, c, pht * old[r][c] / (pht * old[r][c] + phn * (1 - old[r][c])));
+				return next;
+			}
+			Path path = getBestPath(Coord.pack(x, y), dest);
+			profiler.endSearch(x, y, destX, destY, search.getExpanded(), search.getOpenPeak());
+			return path == null ? Coord.NONE : path.get(0);
+		} else if (plannerMode == PlannerMode.FLOW_FIELD) {
+			grid.setIgnorePeasants(true);
+			flowField.update(grid, hitField, destX, destY);
+			grid.setIgnorePeasants(false);
+			next = flowField.nextStep(grid, x, y);
+			profiler.endSearch(x, y, destX, destY, flowField.getExpanded(), 0);
+		} else if (plannerMode == PlannerMode.HIERARCHICAL) {
+			grid.setIgnorePeasants(true);
+			hierarchy.update(grid, hitField, destX, destY);
+			grid.setIgnorePeasants(false);
+			next = hierarchy.nextStep(grid, x, y);
+			profiler.endSearch(x, y, destX, destY, hierarchy.getExpanded(), 0);
+		} else if (plannerMode == PlannerMode.COOPERATIVE) {
+			// the flow field prices everything past the window, the reservations keep the peasants apart
+			grid.setIgnorePeasants(true);
+			flowField.update(grid, hitField, destX, destY);
+			next = cooperative.nextStep(peasant.getID(), grid, flowField, x, y);
+			grid.setIgnorePeasants(false);
+			profiler.endSearch(x, y, destX, destY, cooperative.getExpanded(), 0);
+			if (next == x + y * width) {
+				return Coord.pack(x, y); // waiting for another peasant to pass
+			}
+		} else if (plannerMode == PlannerMode.ANYTIME) {
+			// one planner per peasant, which starts over whenever the peasant turns around
+			AnytimePlanner planner = anytimePlanners.get(peasant.getID());
+			if (planner == null) {
+				planner = new AnytimePlanner(width, board.getHeight());
+				anytimePlanners.put(peasant.getID(), planner);
+			}
+			grid.setIgnorePeasants(true);
+			planner.update(grid, hitField, x, y, destX, destY, planningDeadline, MIN_EXPANSIONS);
+			grid.setIgnorePeasants(false);
+			next = planner.nextStep(grid, x, y);
+			profiler.endSearch(x, y, destX, destY, planner.getExpanded(), 0);
+		} else {
+			IncrementalPlanner planner = planners.get(peasant.getID());
+			if (planner == null) {
+				planner = new IncrementalPlanner(width, board.getHeight());
+				planners.put(peasant.getID(), planner);
+			}
+			
+			if (occupied.length < peasantLocations.size()) {
+				occupied = new int[peasantLocations.size()];
 			}
+			int occupiedCount = 0;
+			for (int location : peasantLocations.values()) {
+				occupied[occupiedCount++] = Coord.toCell(location, width);
+			}
+			
+			next = planner.nextStep(grid, hitField, x, y, destX, destY, occupied, occupiedCount);
+			profiler.endSearch(x, y, destX, destY, planner.getExpanded(), 0);
 		}
+		
+		if (next < 0) {
+			System.out.printf("Target (%d, %d) is unreachable from position (%d, %d).\n", destX, destY, x, y);
+			return Coord.NONE;
+		}
+		return Coord.fromCell(next, width);
 	}
-
-
-	private double distance(int x1, int y1, int x2, int y2) {
-		return Math.sqrt((x1 - x2) * (x1 - x2) + (y1 - y2) * (y1 - y2));
-	}
-
+	
 	/**
 	 * Finds the path with the lowest total probability of getting hit using A* search
 	 * @param curLocation
 	 * @param dest
-	 * @return The path to the destination
+	 * @return The path to the destination, starting with the first step and ending at dest.
+	 * The path is reused by the next call.
 	 */
-	private List<Pair<Integer, Integer>> getBestPath(Pair<Integer, Integer> curLocation, Pair<Integer, Integer> dest) {
-		List<Pair<Integer, Integer>> path =  new LinkedList<Pair<Integer, Integer>>();
-		
-		
-		Node current = new Node(curLocation.getX(), curLocation.getY(), getHitProbability(curLocation.getX(), curLocation.getY()));
-		Node target = new Node(dest.getX(), dest.getY(), getHitProbability(dest.getX(), dest.getY()));
-		List<Node> openSet = new ArrayList<>();
-        List<Node> closedSet = new ArrayList<>();
-        
-        
-        while (true) {
-            openSet.remove(current);
-            List<Node> adjacent = getAdjacentNodes(current, closedSet, target);
-
-            // Find the adjacent node with the lowest heuristic cost.
-            for (Node neighbor : adjacent) {
-            	boolean inOpenset = false;
-            	List<Node> openSetCopy = new ArrayList<>(openSet);
-            	for (Node node : openSetCopy) {
-            		if (neighbor.equals(node)) {
-            			inOpenset = true;
-            			if (neighbor.getAccumulatedCost() < node.getAccumulatedCost()) {
-            				openSet.remove(node);
-            				openSet.add(neighbor);
-            			}
-            		}
-            	}
-            	
-            	if (!inOpenset) {
-            		openSet.add(neighbor);
-            	}
-            }
-
-            // Exit search if done.
-            if (openSet.isEmpty()) {
-                System.out.printf("Target (%d, %d) is unreachable from position (%d, %d).\n",
-                                target.getX(), target.getY(), curLocation.getX(), curLocation.getY());
-                return null;
-            } else if (/*isAdjacent(current, target)*/ current.equals(target)) {
-                break;
-            }
-
-            // This node has been explored now.
-            closedSet.add(current);
-
-            // Find the next open node with the lowest cost.
-            Node next = openSet.get(0);
-            for (Node node : openSet) {
-                if (node.getCost(target) < next.getCost(target)) {
-                    next = node;
-                }
-            }
-//            System.out.println("Moving to node: " + current);
-            current = next;
-        }
-        
-        // Rebuild the path using the node parents
-        path.add(new Pair<Integer, Integer>(curLocation.getX(), curLocation.getY()));
-        while(current.getParent() != null) {
-        	current = current.getParent();
-        	path.add(0, new Pair<Integer, Integer>(current.getX(), current.getY()));
-        }
-        
-        if (path.size() > 1) {
-        	path.remove(0);
-        }
-        
-		return path;
+	private Path getBestPath(int curLocation, int dest) {
+		int startX = Coord.getX(curLocation);
+		int startY = Coord.getY(curLocation);
+		int destX = Coord.getX(dest);
+		int destY = Coord.getY(dest);
+		
+		grid.setDestination(destX, destY);
+		int length = search.search(grid, startX, startY, destX, destY);
+		if (length < 0) {
+			System.out.printf("Target (%d, %d) is unreachable from position (%d, %d).\n", destX, destY, startX, startY);
+			return null;
+		}
+		
+		bestPath.clear();
+		for (int i = 0; i < length; i++) {
+			bestPath.add(Coord.pack(search.getPathX(i), search.getPathY(i)));
+		}
+		
+		// already at the destination
+		if (bestPath.isEmpty()) {
+			bestPath.add(curLocation);
+		}
+		
+		return bestPath;
 	}
 
-	private boolean isAdjacent(Node current, Node target) {
-        return isAdjacent(current.getX(), current.getY(), target.getX(), target.getY());
-	}
-	
 	private boolean isAdjacent(int x, int y, int targetX, int targetY) {
 	        for (int i = x - 1; i <= x + 1; i++) {
 	            for (int j = y - 1; j <= y + 1; j++) {
@@ -580,79 +994,58 @@ public class ProbAgent extends Agent {
 	}
 
 	/**
-	 * Finds all adjacent nodes, ignoring out of bounds squares, occupied squares, and squares in the closed list
-	 * @param current
-	 * @param closedSet
-	 * @return The adjacent nodes
+	 * Exposes the agent's view of the board to the search.
+	 * A square is passable if it is in bounds and holds no tree, peasant, known tower or (unless it is the destination) townhall.
 	 */
-	private List<Node> getAdjacentNodes(Node current, List<Node> closedSet, Node dest) {
-		List<Node> adjacent = new ArrayList<Node>();
+	private class AgentGrid implements SearchGrid {
+		private int destX;
+		private int destY;
+		private boolean ignorePeasants = false;
 		
-		for (int i = -1; i <=1; i++) {
-			inner:
-			for (int j = -1; j <=1; j++) {
-				if (i == 0 && j == 0) {
-					continue;
-				}
-				int x = current.getX() + i;
-				int y = current.getY() + j;
-				if (!currentState.inBounds(x, y)
-						|| board.getHasTree(x, y)
-						|| peasantAt(x,y)
-						|| board.getTowerProbability(x, y) == 1
-						|| isTownHallAt(x, y, dest)) {
-					continue;
-				}
-				Node node = new Node(x, y, getHitProbability(x, y), current);
-				for (Node visitedNode : closedSet) {
-					if (node.equals(visitedNode)) {
-						continue inner;
-					}
-				}
-				adjacent.add(node);
-			}
+		public void setDestination(int x, int y) {
+			destX = x;
+			destY = y;
 		}
-//		System.out.println("AT " + current);
-//		System.out.println("NEIGHBORS:");
-//		for (Node node : adjacent) {
-//			System.out.println("\t" + node);
-//		}
 		
-		return adjacent;
-	}
-	
-	/**
-	 * If the destination is not the townhall, then we don't want to include that square in our search
-	 * @param x
-	 * @param y
-	 * @return True if the townhall is at that location AND we aren't traveling to it
-	 */
-	private boolean isTownHallAt(int x, int y, Node dest) {
-		if (x == dest.getX() && y == dest.getY()) {
-			return false;
+		/**
+		 * The shared flow fields are built without the peasants in the way
+		 * @param ignorePeasants
+		 */
+		public void setIgnorePeasants(boolean ignorePeasants) {
+			this.ignorePeasants = ignorePeasants;
 		}
 		
-		if (currentState.isUnitAt(x, y)) {
-			int unitID = currentState.unitAt(x, y);
-        	
-            String unitName = currentState.getUnit(unitID).getTemplateView().getName();
-            if(unitName.equalsIgnoreCase("Townhall")) {
-            	return true;
-            }
+		@Override
+		public int getWidth() {
+			return currentState.getXExtent();
 		}
-	
-		return false;
-	}
-	
-	private boolean peasantAt(int x, int y) {
-		Set<Integer> keys = peasantLocations.keySet();
-		for (Integer id : keys) {
-			Pair<Integer, Integer> pair = peasantLocations.get(id);
-			if (x == pair.getX() && y == pair.getY()) {
-				return true;
-			}
+		
+		@Override
+		public int getHeight() {
+			return currentState.getYExtent();
 		}
-		return false;
+		
+		@Override
+		public boolean isPassable(int x, int y) {
+			return obstacles.isPassable(x, y, ignorePeasants, destX, destY);
+		}
+		
+		@Override
+		public float getCost(int x, int y) {
+			return getHitProbability(x, y);
+		}
+	}
+
+	/**
+	 * How peasants find their way to the gold mine and back
+	 */
+	private enum PlannerMode {
+		ASTAR,       // a fresh A* search every turn
+		INCREMENTAL, // D* Lite, repairing the previous turn's search
+		FLOW_FIELD,  // one reverse Dijkstra per destination, shared by every peasant
+		ANYTIME,     // ARA* with a time budget per turn, improving the path over the turns
+		HIERARCHICAL, // HPA* over clusters shared by every peasant, rebuilding only the clusters that changed
+		COOPERATIVE   // windowed cooperative A* over space and time, with the flow fields as the heuristic
 	}
 
 	public static String getUsage() {
@@ -0,0 +1,75 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+
+import edu.cwru.sepia.agent.Agent;
+import edu.cwru.sepia.environment.Environment;
+import edu.cwru.sepia.environment.model.SimpleModel;
+import edu.cwru.sepia.environment.model.state.StateCreator;
+import edu.cwru.sepia.experiment.Configuration;
+import edu.cwru.sepia.experiment.ConfigurationValues;
+import edu.cwru.sepia.experiment.Runner;
+
+/**
+ * SEPIA's SimpleModelEpisodicRunner, except that an episode also ends as soon as a ProbAgent says it is over.
+ *
+ * The model only ends an episode at the gold goal or the time limit. A player whose peasants are all dead still
+ * has its townhall, so without this a dead episode would run out the whole time limit with the agent idling.
+ *
+ * Use it as the RunnerClass of a config file; it reads the same parameters as SimpleModelEpisodicRunner.
+ */
+public class ProbEpisodeRunner extends Runner {
+	private static final int SEED = 6; // what SimpleModelEpisodicRunner uses
+
+	public ProbEpisodeRunner(Configuration configuration, StateCreator stateCreator, Agent[] agents) {
+		super(configuration, stateCreator, agents);
+	}
+
+	@Override
+	public void run() {
+		int numEpisodes = ConfigurationValues.ENVIRONMENT_EPISODES.getIntValue(configuration);
+		int episodesPerSave = ConfigurationValues.ENVIRONMENT_EPISODES_PER_SAVE.getIntValue(configuration);
+		boolean saveAgents = ConfigurationValues.ENVIRONMENT_SAVE_AGENTS.getBooleanValue(configuration);
+
+		SimpleModel model = new SimpleModel(stateCreator.createState(), SEED, stateCreator, configuration);
+		new File("saves").mkdirs();
+		Environment env = new Environment(agents, model, SEED);
+
+		for (int episode = 0; episode < numEpisodes; episode++) {
+			try {
+				env.forceNewEpisode();
+				// the agent's first turn of the episode resets its flag, so always play at least one turn
+				while (!env.step() && !isEpisodeOver()) {
+				}
+				env.terminalStep();
+			} catch (InterruptedException e) {
+				System.err.println("Unable to complete episode " + episode + "!");
+				e.printStackTrace();
+			}
+
+			if (episodesPerSave > 0 && episode % episodesPerSave == 0) {
+				saveState(new File("saves/state" + episode + ".SRTSsav"), env.getModel().getState());
+				for (int i = 0; saveAgents && i < agents.length; i++) {
+					try {
+						ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream("saves/agent" + i + "-" + episode));
+						out.writeObject(agents[i]);
+						out.close();
+					} catch (Exception e) {
+						System.out.println("Unable to save agent " + i);
+					}
+				}
+			}
+		}
+		// the agents' threads would keep the JVM running
+		System.exit(0);
+	}
+
+	private boolean isEpisodeOver() {
+		for (Agent agent : agents) {
+			if (agent instanceof ProbAgent && ((ProbAgent) agent).isEpisodeOver()) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * Computes the hit probability of every square of a board at once from the log(1 - p) of every square.
+ *
+ * A square's chance of surviving all of the towers in range is the exponential of the sum of their log(1 - p)
+ * over a disk of radius towerRange. Every row of the disk is a contiguous run of cells, so with running sums along
+ * each row a square's disk sum is 2 * towerRange + 1 subtractions, with no branches for the board's edges (the rows
+ * are padded with towerRange empty cells on either side). Only the 2 * towerRange + 1 rows of running sums around
+ * the current row are kept, so they stay in cache however big the board is.
+ *
+ * create() returns VectorRiskConvolution, which does the same with the JDK Vector API, when that class was
+ * compiled and the jdk.incubator.vector module is present, and this scalar version otherwise.
+ */
+public class RiskConvolution {
+	protected final int width;
+	protected final int height;
+	protected final int range;
+	protected final float accuracy;
+	protected final int[] halfWidth; // how far the disk reaches along the row dy = index - range
+	protected final int stride; // length of a padded row of running sums
+	protected final double[] prefix; // running sums of the rows y - range to y + range, row r at (r % window) * stride
+	protected final int window;
+	protected final double[] rowSum;
+
+	public RiskConvolution(int width, int height, int towerRange, float towerAccuracy) {
+		this.width = width;
+		this.height = height;
+		this.range = towerRange;
+		this.accuracy = towerAccuracy;
+		halfWidth = new int[2 * towerRange + 1];
+		for (int dy = -towerRange; dy <= towerRange; dy++) {
+			// the same disk as HitProbabilityField: sqrt(dx^2 + dy^2) <= towerRange
+			int reach = 0;
+			while (Math.sqrt((reach + 1) * (reach + 1) + dy * dy) <= towerRange) {
+				reach++;
+			}
+			halfWidth[dy + towerRange] = reach;
+		}
+		stride = width + 2 * towerRange + 1;
+		window = 2 * towerRange + 1;
+		prefix = new double[stride * window];
+		rowSum = new double[width];
+	}
+
+	/**
+	 * @return The Vector API version if it is available, otherwise the scalar one
+	 */
+	public static RiskConvolution create(int width, int height, int towerRange, float towerAccuracy) {
+		if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+			try {
+				return (RiskConvolution)Class.forName("VectorRiskConvolution")
+						.getConstructor(int.class, int.class, int.class, float.class)
+						.newInstance(width, height, towerRange, towerAccuracy);
+			} catch (ReflectiveOperationException | LinkageError e) {
+				// not compiled in, fall back to the scalar version
+			}
+		}
+		return new RiskConvolution(width, height, towerRange, towerAccuracy);
+	}
+
+	/**
+	 * @return True if this is the Vector API version
+	 */
+	public boolean isVectorized() {
+		return false;
+	}
+
+	/**
+	 * Computes the hit probability of every square
+	 * @param logSurvival log(1 - p) of every square, x + y * width
+	 * @param out The hit probabilities, x + y * width
+	 */
+	public void compute(double[] logSurvival, float[] out) {
+		startPrefix(logSurvival);
+		for (int y = 0; y < height; y++) {
+			buildPrefix(logSurvival, y + range);
+			for (int x = 0; x < width; x++) {
+				rowSum[x] = 0;
+			}
+			for (int dy = -range; dy <= range; dy++) {
+				int row = y + dy;
+				if (row < 0 || row >= height) {
+					continue;
+				}
+				int reach = halfWidth[dy + range];
+				int upper = (row % window) * stride + range + reach + 1;
+				int lower = (row % window) * stride + range - reach;
+				for (int x = 0; x < width; x++) {
+					rowSum[x] += prefix[upper + x] - prefix[lower + x];
+				}
+			}
+			for (int x = 0; x < width; x++) {
+				out[x + y * width] = (float)(accuracy * (1 - Math.exp(rowSum[x])));
+			}
+		}
+	}
+
+	/**
+	 * Builds the running sums of the rows the first row's disk reaches, except for the last one
+	 */
+	protected void startPrefix(double[] logSurvival) {
+		for (int row = 0; row < range; row++) {
+			buildPrefix(logSurvival, row);
+		}
+	}
+
+	/**
+	 * prefix[(row % window) * stride + k] is the sum of the padded row's first k cells, where cell k is the square
+	 * x = k - range and cells off the board count as 0
+	 */
+	protected void buildPrefix(double[] logSurvival, int row) {
+		if (row >= height) {
+			return;
+		}
+		int base = (row % window) * stride;
+		double sum = 0;
+		for (int k = 0; k <= range; k++) {
+			prefix[base + k] = 0;
+		}
+		for (int x = 0; x < width; x++) {
+			sum += logSurvival[x + row * width];
+			prefix[base + range + x + 1] = sum;
+		}
+		for (int k = range + width + 1; k < stride; k++) {
+			prefix[base + k] = sum;
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/**
+ * The cost of the safest path from every square to one destination, shared by every peasant heading there.
+ *
+ * It is built with a single reverse Dijkstra from the destination, ignoring the peasants themselves, so a peasant
+ * finds its next step by looking at the values of its free neighbors. The field is only rebuilt when the
+ * destination moves, a square becomes (un)passable, or some square's cost has drifted by more than a threshold
+ * since the last build.
+ */
+public class RiskFlowField {
+	private static final float INFINITY = Float.POSITIVE_INFINITY;
+	private static final float REBUILD_THRESHOLD = 0.005f;
+	private static final float STEP_COST = AStarSearch.HEURISTIC_STEP_COST; // added to every step, so that among equally safe paths the shortest wins
+
+	private final int width;
+	private final int height;
+
+	private final float[] distance;
+	private final float[] cost; // cost of stepping onto each square when the field was built
+	private final int[] heap;
+	private final int[] heapIndex;
+	private int heapSize;
+
+	private int goal = -1;
+	private long changeMark;
+	private int builds;
+	private int expanded;
+
+	public RiskFlowField(int width, int height) {
+		this.width = width;
+		this.height = height;
+		int cells = width * height;
+		distance  = new float[cells];
+		cost      = new float[cells];
+		heap      = new   int[cells];
+		heapIndex = new   int[cells];
+	}
+
+	/**
+	 * Rebuilds the field if the destination moved or the board changed enough to matter
+	 * @param grid Passability without the peasants
+	 * @param field
+	 * @param goalX
+	 * @param goalY
+	 */
+	public void update(SearchGrid grid, HitProbabilityField field, int goalX, int goalY) {
+		int newGoal = goalX + goalY * width;
+		expanded = 0;
+		long mark = field.getChangeMark();
+		boolean rebuild = newGoal != goal || !field.hasChangesSince(changeMark);
+		for (long position = changeMark; position < mark && !rebuild; position++) {
+			int cell = field.getChangedCell(position);
+			float newCost = currentCost(grid, cell);
+			if (newCost == INFINITY || cost[cell] == INFINITY) {
+				rebuild = newCost != cost[cell];
+			} else {
+				rebuild = Math.abs(newCost - cost[cell]) > REBUILD_THRESHOLD;
+			}
+		}
+		changeMark = mark;
+		if (rebuild) {
+			build(grid, newGoal);
+		}
+	}
+
+	/**
+	 * Picks the free neighbor with the cheapest path onwards to the destination
+	 * @param grid Passability including the peasants
+	 * @param x
+	 * @param y
+	 * @return The square (x + y * width) to move to, or -1 if there is none
+	 */
+	public int nextStep(SearchGrid grid, int x, int y) {
+		int best = -1;
+		float bestCost = INFINITY;
+		for (int i = -1; i <= 1; i++) {
+			for (int j = -1; j <= 1; j++) {
+				int nx = x + i;
+				int ny = y + j;
+				if ((i == 0 && j == 0) || nx < 0 || nx >= width || ny < 0 || ny >= height) {
+					continue;
+				}
+				int cell = nx + ny * width;
+				float total = cost[cell] + STEP_COST + distance[cell];
+				if (total < bestCost && grid.isPassable(nx, ny)) {
+					bestCost = total;
+					best = cell;
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @return The cost of the safest path from the square to the destination
+	 */
+	public float getDistance(int x, int y) {
+		return distance[x + y * width];
+	}
+
+	public int getGoal() {
+		return goal;
+	}
+
+	/**
+	 * @return How many times the field has been rebuilt
+	 */
+	public int getBuilds() {
+		return builds;
+	}
+
+	/**
+	 * @return The number of squares expanded by the last call to update, 0 if it did not rebuild the field
+	 */
+	public int getExpanded() {
+		return expanded;
+	}
+
+	private float currentCost(SearchGrid grid, int cell) {
+		int x = cell % width;
+		int y = cell / width;
+		return grid.isPassable(x, y) ? grid.getCost(x, y) : INFINITY;
+	}
+
+	private void build(SearchGrid grid, int newGoal) {
+		goal = newGoal;
+		builds++;
+		heapSize = 0;
+		for (int cell = 0; cell < distance.length; cell++) {
+			distance[cell] = INFINITY;
+			heapIndex[cell] = -1;
+			cost[cell] = currentCost(grid, cell);
+		}
+
+		distance[goal] = 0;
+		push(goal);
+		while (heapSize > 0) {
+			int current = pop();
+			expanded++;
+			// anything that steps onto current pays its cost, and the step itself
+			float viaCurrent = cost[current] + STEP_COST + distance[current];
+			if (viaCurrent == INFINITY) {
+				continue;
+			}
+			int cx = current % width;
+			int cy = current / width;
+			for (int i = -1; i <= 1; i++) {
+				for (int j = -1; j <= 1; j++) {
+					int x = cx + i;
+					int y = cy + j;
+					if ((i == 0 && j == 0) || x < 0 || x >= width || y < 0 || y >= height) {
+						continue;
+					}
+					int neighbor = x + y * width;
+					if (viaCurrent < distance[neighbor]) {
+						distance[neighbor] = viaCurrent;
+						if (heapIndex[neighbor] >= 0) {
+							siftUp(heapIndex[neighbor]);
+						} else {
+							push(neighbor);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private void push(int cell) {
+		heap[heapSize] = cell;
+		heapIndex[cell] = heapSize;
+		heapSize++;
+		siftUp(heapSize - 1);
+	}
+
+	private int pop() {
+		int top = heap[0];
+		heapIndex[top] = -1;
+		heapSize--;
+		if (heapSize > 0) {
+			heap[0] = heap[heapSize];
+			heapIndex[heap[0]] = 0;
+			siftDown(0);
+		}
+		return top;
+	}
+
+	private void siftUp(int index) {
+		int cell = heap[index];
+		float value = distance[cell];
+		while (index > 0) {
+			int parentIndex = (index - 1) >> 1;
+			int parentCell = heap[parentIndex];
+			if (distance[parentCell] <= value) {
+				break;
+			}
+			heap[index] = parentCell;
+			heapIndex[parentCell] = index;
+			index = parentIndex;
+		}
+		heap[index] = cell;
+		heapIndex[cell] = index;
+	}
+
+	private void siftDown(int index) {
+		int cell = heap[index];
+		float value = distance[cell];
+		int half = heapSize >> 1;
+		while (index < half) {
+			int child = 2 * index + 1;
+			int right = child + 1;
+			if (right < heapSize && distance[heap[right]] < distance[heap[child]]) {
+				child = right;
+			}
+			if (value <= distance[heap[child]]) {
+				break;
+			}
+			heap[index] = heap[child];
+			heapIndex[heap[index]] = index;
+			index = child;
+		}
+		heap[index] = cell;
+		heapIndex[cell] = index;
+	}
+}
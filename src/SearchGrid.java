@@ -0,0 +1,23 @@
+/**
+ * The view of the game board that the path planners search over.
+ * Cells are addressed by their x, y position; the planners never look outside of [0, width) x [0, height).
+ */
+public interface SearchGrid {
+	int getWidth();
+
+	int getHeight();
+
+	/**
+	 * @param x
+	 * @param y
+	 * @return True if a peasant is allowed to step onto the square
+	 */
+	boolean isPassable(int x, int y);
+
+	/**
+	 * @param x
+	 * @param y
+	 * @return The cost of stepping onto the square (the probability of getting hit there)
+	 */
+	float getCost(int x, int y);
+}
@@ -0,0 +1,218 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Plans the next turn while SEPIA is still simulating this one.
+ *
+ * Once the agent has handed over its actions, start() guesses what the next turn will bring: every peasant on the
+ * square it was ordered to, seen there and not hit. On a background thread it applies that to a copy of the board,
+ * then runs the A* search of every peasant that will be heading somewhere with a ParallelPathPlanner.
+ *
+ * On the next turn, after the real observations are in, commit() compares the grid that was searched with the real
+ * one square by square. A peasant's guessed step is used if its start and destination came out as guessed and its
+ * search never looked at a square that differs; every other peasant is searched again as usual, so the steps are
+ * exactly the ones sequential A* would take. If a peasant was hit, the guess is thrown away as a whole.
+ */
+public class SpeculativePlanner {
+	private final ParallelPathPlanner planner;
+	private final BeliefUpdater beliefUpdater;
+	private final ObstacleGrid guessedObstacles;
+	private final ObservationBatch observations = new ObservationBatch();
+	private final ExecutorService executor;
+
+	private int[] ids = new int[4];
+	private int[] starts = new int[4];
+	private int[] dests = new int[4];
+	private int count;
+
+	private Future<?> pending;
+	private CountDownLatch copied;
+
+	public SpeculativePlanner(int width, int height, int towerRange, float towerAccuracy) {
+		planner = new ParallelPathPlanner(width, height);
+		beliefUpdater = new BeliefUpdater(towerRange, towerAccuracy);
+		guessedObstacles = new ObstacleGrid(width, height);
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Speculative planner");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @return The planner that holds the guessed searches; moves made after commit() have to be recorded with it
+	 */
+	public ParallelPathPlanner getPlanner() {
+		return planner;
+	}
+
+	/**
+	 * Starts a new guess, after the last one has finished
+	 */
+	public void begin() {
+		await();
+		observations.clear();
+		count = 0;
+	}
+
+	/**
+	 * Adds a peasant that is expected to stand on the square next turn without being hit
+	 * @param x
+	 * @param y
+	 */
+	public void expectPeasant(int x, int y) {
+		observations.add(x, y, false);
+	}
+
+	/**
+	 * Adds a search to run for next turn
+	 * @param id The peasant
+	 * @param start Where it is expected to be, packed with Coord
+	 * @param dest Where it is expected to go, packed with Coord
+	 */
+	public void expectSearch(int id, int start, int dest) {
+		if (count == ids.length) {
+			ids = java.util.Arrays.copyOf(ids, 2 * count);
+			starts = java.util.Arrays.copyOf(starts, 2 * count);
+			dests = java.util.Arrays.copyOf(dests, 2 * count);
+		}
+		ids[count] = id;
+		starts[count] = start;
+		dests[count] = dest;
+		count++;
+	}
+
+	/**
+	 * Starts working out the guess in the background. Nothing may change the board, the field or the obstacles
+	 * until awaitCopy() returns.
+	 * @param board
+	 * @param hitField
+	 * @param obstacles The obstacles with the peasants on the squares they were ordered to
+	 */
+	public void start(final GameBoard board, final HitProbabilityField hitField, final ObstacleGrid obstacles) {
+		hitField.flush();
+		planner.setCancelled(false);
+		copied = new CountDownLatch(1);
+		pending = executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				GameBoard guess;
+				HitProbabilityField guessedField;
+				try {
+					guess = board.copy();
+					guessedField = hitField.copyFor(guess);
+					guessedObstacles.copyFrom(obstacles);
+				} finally {
+					copied.countDown();
+				}
+				for (int i = 0; i < observations.size(); i++) {
+					guess.incrementVisits(observations.getX(i), observations.getY(i));
+				}
+				beliefUpdater.apply(guess, observations);
+				guessedObstacles.rebuild(guess);
+				planner.plan(guessedObstacles, guessedField, starts, dests, count);
+			}
+		});
+	}
+
+	/**
+	 * Waits until the guess has its own copy of the board, so the real one can be changed again
+	 */
+	public void awaitCopy() {
+		if (copied == null) {
+			return;
+		}
+		boolean interrupted = false;
+		while (true) {
+			try {
+				copied.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Waits for the guess and compares it with what really happened
+	 * @param obstacles The real obstacles, rebuilt for this turn
+	 * @param hitField The real hit probabilities, after this turn's observations
+	 * @return True if there is a guess to take steps from
+	 */
+	public boolean commit(ObstacleGrid obstacles, HitProbabilityField hitField) {
+		if (pending == null || !await()) {
+			return false;
+		}
+		planner.compareWith(obstacles, hitField);
+		return true;
+	}
+
+	/**
+	 * Stops the guess, e.g. because a peasant was hit and the guess is of no use
+	 */
+	public void discard() {
+		planner.setCancelled(true);
+		await();
+		count = 0;
+	}
+
+	/**
+	 * @param id
+	 * @param start Where the peasant really is, packed with Coord
+	 * @param dest Where it really is going, packed with Coord
+	 * @return The index of the peasant's guessed search in the planner, or -1 if there is none for that start and
+	 * destination
+	 */
+	public int indexOf(int id, int start, int dest) {
+		for (int i = 0; i < count; i++) {
+			if (ids[i] == id) {
+				return starts[i] == start && dests[i] == dest ? i : -1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Lets the threads go once the planner is no longer needed
+	 */
+	public void shutdown() {
+		discard();
+		executor.shutdown();
+		planner.shutdown();
+	}
+
+	/**
+	 * Waits for the background work to finish
+	 * @return False if it failed
+	 */
+	private boolean await() {
+		if (pending == null) {
+			return true;
+		}
+		try {
+			pending.get();
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			count = 0;
+			return false;
+		} catch (ExecutionException e) {
+			System.err.println("Speculative planning failed");
+			e.printStackTrace();
+			count = 0;
+			return false;
+		} finally {
+			pending = null;
+		}
+	}
+}
@@ -0,0 +1,355 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Measures how long each phase of ProbAgent's turns takes.
+ *
+ * Every phase, search and whole turn goes into a log-bucketed latency histogram (16 buckets per power of two,
+ * so percentiles are within about 6%), along with counters for search work, belief updates and allocation.
+ * Each turn and each search is also emitted as a JDK Flight Recorder event, which costs nothing unless a
+ * recording is running. A disabled profiler returns from every call straight away.
+ */
+public class TurnProfiler {
+	/**
+	 * The parts of a turn. Searches happen while the actions are built, so their time is part of ACTIONS too.
+	 */
+	public enum Phase {
+		UNIT_SCAN("unit scan"),
+		VIEW_UPDATE("view update"),
+		BELIEF_UPDATE("belief update"),
+		SEARCH("path search"),
+		ACTIONS("action building"),
+		TURN("whole turn");
+
+		private final String label;
+
+		Phase(String label) {
+			this.label = label;
+		}
+	}
+
+	private static final Phase[] PHASES = Phase.values();
+
+	private final boolean enabled;
+	private final Histogram[] histograms = new Histogram[PHASES.length];
+	private final long[] started = new long[PHASES.length];
+	private final long[] turnNanos = new long[PHASES.length];
+	private com.sun.management.ThreadMXBean threads;
+
+	private TurnEvent turnEvent;
+	private SearchEvent searchEvent;
+	private int turn;
+	private long turnAllocationStart;
+
+	private long searches;
+	private long expanded;
+	private int openPeak;
+	private long cellsUpdated;
+	private long stateQueries;
+	private long allocatedBytes;
+
+	public TurnProfiler(boolean enabled) {
+		this.enabled = enabled;
+		if (enabled) {
+			for (int i = 0; i < PHASES.length; i++) {
+				histograms[i] = new Histogram();
+			}
+			if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+				threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+			}
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @param turn The agent's step number
+	 */
+	public void startTurn(int turn) {
+		if (!enabled) {
+			return;
+		}
+		this.turn = turn;
+		for (int i = 0; i < PHASES.length; i++) {
+			turnNanos[i] = 0;
+		}
+		turnAllocationStart = allocatedSoFar();
+		turnEvent = new TurnEvent();
+		turnEvent.begin();
+		start(Phase.TURN);
+	}
+
+	public void start(Phase phase) {
+		if (!enabled) {
+			return;
+		}
+		started[phase.ordinal()] = System.nanoTime();
+	}
+
+	public void end(Phase phase) {
+		if (!enabled) {
+			return;
+		}
+		long nanos = System.nanoTime() - started[phase.ordinal()];
+		histograms[phase.ordinal()].record(nanos);
+		turnNanos[phase.ordinal()] += nanos;
+	}
+
+	public void startSearch() {
+		if (!enabled) {
+			return;
+		}
+		searchEvent = new SearchEvent();
+		searchEvent.begin();
+		start(Phase.SEARCH);
+	}
+
+	/**
+	 * @param startX
+	 * @param startY
+	 * @param goalX
+	 * @param goalY
+	 * @param expandedNodes How many nodes the search expanded
+	 * @param openSetPeak The most nodes the search had in its open set at once, or 0 if unknown
+	 */
+	public void endSearch(int startX, int startY, int goalX, int goalY, int expandedNodes, int openSetPeak) {
+		if (!enabled) {
+			return;
+		}
+		end(Phase.SEARCH);
+		searches++;
+		expanded += expandedNodes;
+		openPeak = Math.max(openPeak, openSetPeak);
+
+		searchEvent.end();
+		if (searchEvent.shouldCommit()) {
+			searchEvent.turn = turn;
+			searchEvent.startX = startX;
+			searchEvent.startY = startY;
+			searchEvent.goalX = goalX;
+			searchEvent.goalY = goalY;
+			searchEvent.expanded = expandedNodes;
+			searchEvent.openPeak = openSetPeak;
+			searchEvent.commit();
+		}
+	}
+
+	/**
+	 * @param cells How many tower probabilities the belief update changed
+	 */
+	public void addCellsUpdated(long cells) {
+		if (!enabled) {
+			return;
+		}
+		cellsUpdated += cells;
+		if (turnEvent != null) {
+			turnEvent.cellsUpdated += cells;
+		}
+	}
+
+	/**
+	 * @param squares How many squares the view update looked up in the SEPIA state
+	 */
+	public void addStateQueries(long squares) {
+		if (!enabled) {
+			return;
+		}
+		stateQueries += squares;
+		if (turnEvent != null) {
+			turnEvent.stateQueries += squares;
+		}
+	}
+
+	/**
+	 * @param peasants How many peasants the agent had this turn
+	 * @param hits How many of them were hit
+	 */
+	public void endTurn(int peasants, int hits) {
+		if (!enabled) {
+			return;
+		}
+		end(Phase.TURN);
+		long allocated = allocatedSoFar() - turnAllocationStart;
+		allocatedBytes += allocated;
+
+		turnEvent.end();
+		if (turnEvent.shouldCommit()) {
+			turnEvent.turn = turn;
+			turnEvent.peasants = peasants;
+			turnEvent.hits = hits;
+			turnEvent.unitScan = turnNanos[Phase.UNIT_SCAN.ordinal()];
+			turnEvent.viewUpdate = turnNanos[Phase.VIEW_UPDATE.ordinal()];
+			turnEvent.beliefUpdate = turnNanos[Phase.BELIEF_UPDATE.ordinal()];
+			turnEvent.search = turnNanos[Phase.SEARCH.ordinal()];
+			turnEvent.actions = turnNanos[Phase.ACTIONS.ordinal()];
+			turnEvent.allocated = allocated;
+			turnEvent.commit();
+		}
+		turnEvent = null;
+	}
+
+	/**
+	 * Prints the latency percentiles of every phase and the counters
+	 * @param out
+	 */
+	public void printSummary(PrintStream out) {
+		if (!enabled) {
+			return;
+		}
+		long turns = histograms[Phase.TURN.ordinal()].getCount();
+		out.printf("%-16s %8s %10s %10s %10s %10s %10s%n", "Phase (us)", "count", "mean", "p50", "p90", "p99", "max");
+		for (Phase phase : PHASES) {
+			Histogram histogram = histograms[phase.ordinal()];
+			out.printf("%-16s %8d %10.1f %10.1f %10.1f %10.1f %10.1f%n", phase.label, histogram.getCount(),
+					histogram.getMean() / 1e3, histogram.getPercentile(50) / 1e3, histogram.getPercentile(90) / 1e3,
+					histogram.getPercentile(99) / 1e3, histogram.getMax() / 1e3);
+		}
+		out.printf("%d searches expanded %d nodes (%.1f per search), largest open set %d%n", searches, expanded,
+				searches == 0 ? 0.0 : (double)expanded / searches, openPeak);
+		out.printf("%d tower probabilities updated (%.1f per turn)%n", cellsUpdated, turns == 0 ? 0.0 : (double)cellsUpdated / turns);
+		out.printf("%d squares looked up in the game state (%.1f per turn)%n", stateQueries, turns == 0 ? 0.0 : (double)stateQueries / turns);
+		if (threads != null) {
+			out.printf("%d bytes allocated (%.0f per turn)%n", allocatedBytes, turns == 0 ? 0.0 : (double)allocatedBytes / turns);
+		}
+	}
+
+	private long allocatedSoFar() {
+		return threads == null ? 0 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Counts values in buckets whose width grows with the value: values below 16 get a bucket each, and every
+	 * power of two above that is split into 16 buckets.
+	 */
+	static class Histogram {
+		private static final int SUB_BUCKET_BITS = 4;
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+		private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+		private long count;
+		private long total;
+		private long max;
+
+		void record(long value) {
+			if (value < 0) {
+				value = 0;
+			}
+			counts[bucket(value)]++;
+			count++;
+			total += value;
+			if (value > max) {
+				max = value;
+			}
+		}
+
+		long getCount() {
+			return count;
+		}
+
+		double getMean() {
+			return count == 0 ? 0 : (double)total / count;
+		}
+
+		long getMax() {
+			return max;
+		}
+
+		/**
+		 * @param percent
+		 * @return The middle of the bucket holding the value below which percent of the values lie
+		 */
+		double getPercentile(double percent) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = (long)Math.ceil(percent / 100 * count);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= Math.max(rank, 1)) {
+					return Math.min((lowestValue(i) + lowestValue(i + 1) - 1) / 2.0, max);
+				}
+			}
+			return max;
+		}
+
+		private static int bucket(long value) {
+			if (value < SUB_BUCKETS) {
+				return (int)value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+			return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+		}
+
+		private static double lowestValue(int bucket) {
+			if (bucket < SUB_BUCKETS) {
+				return bucket;
+			}
+			int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+			int subBucket = bucket % SUB_BUCKETS;
+			return Math.scalb(1.0 + subBucket / (double)SUB_BUCKETS, exponent);
+		}
+	}
+
+	@Name("ProbAgent.Turn")
+	@Label("Agent Turn")
+	@Category("ProbAgent")
+	static class TurnEvent extends Event {
+		@Label("Turn")
+		int turn;
+		@Label("Peasants")
+		int peasants;
+		@Label("Hits")
+		int hits;
+		@Label("Unit Scan")
+		@Timespan
+		long unitScan;
+		@Label("View Update")
+		@Timespan
+		long viewUpdate;
+		@Label("Belief Update")
+		@Timespan
+		long beliefUpdate;
+		@Label("Path Search")
+		@Timespan
+		long search;
+		@Label("Action Building")
+		@Timespan
+		long actions;
+		@Label("Cells Updated")
+		long cellsUpdated;
+		@Label("Squares Looked Up")
+		long stateQueries;
+		@Label("Bytes Allocated")
+		long allocated;
+	}
+
+	@Name("ProbAgent.Search")
+	@Label("Path Search")
+	@Category("ProbAgent")
+	static class SearchEvent extends Event {
+		@Label("Turn")
+		int turn;
+		@Label("Start X")
+		int startX;
+		@Label("Start Y")
+		int startY;
+		@Label("Goal X")
+		int goalX;
+		@Label("Goal Y")
+		int goalY;
+		@Label("Nodes Expanded")
+		int expanded;
+		@Label("Open Set Peak")
+		int openPeak;
+	}
+}
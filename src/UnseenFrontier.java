@@ -0,0 +1,143 @@
+/**
+ * The squares no peasant has seen yet, ordered by how far they are from an anchor square, for picking where to
+ * look for the gold mine next.
+ *
+ * Squares are ordered by their Chebyshev distance to the anchor, then by x, then by y, which is the order the old
+ * ring-by-ring scan found them in. The queue is a binary heap that is built once; squares are not removed when they
+ * are seen, but skipped when they reach the top, so marking a square seen costs nothing here and picking the next
+ * unseen square is O(log n) amortized. Squares that can never be seen, such as one walled in by trees, are taken out
+ * the same way once they are discarded.
+ *
+ * A board kept from earlier games can have every square the peasants can get to seen, without saying where the gold
+ * mine was. A frontier of the squares not looked at in this game (GameBoard.isKnownStatic) is then searched instead.
+ */
+public class UnseenFrontier {
+	private final int width;
+	private final int height;
+	private final int anchorX;
+	private final int anchorY;
+	private final int[] heap;
+	private int heapSize;
+	private final long[] discarded; // squares skipped as if they had been seen
+	private final boolean thisGameOnly;
+
+	/**
+	 * @param board Squares already seen on it are left out
+	 * @param anchorX
+	 * @param anchorY
+	 */
+	public UnseenFrontier(GameBoard board, int anchorX, int anchorY) {
+		this(board, anchorX, anchorY, false);
+	}
+
+	/**
+	 * @param board
+	 * @param anchorX
+	 * @param anchorY
+	 * @param thisGameOnly True to count a square as seen only once it has been looked at in this game
+	 */
+	public UnseenFrontier(GameBoard board, int anchorX, int anchorY, boolean thisGameOnly) {
+		this.thisGameOnly = thisGameOnly;
+		width = board.getWidth();
+		height = board.getHeight();
+		this.anchorX = anchorX;
+		this.anchorY = anchorY;
+		heap = new int[width * height];
+		discarded = new long[(width * height + 63) >> 6];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				if (!isSeen(board, x, y)) {
+					heap[heapSize++] = x + y * width;
+				}
+			}
+		}
+		for (int i = (heapSize >> 1) - 1; i >= 0; i--) {
+			siftDown(i);
+		}
+	}
+
+	/**
+	 * @param board
+	 * @return The unseen square (x + y * width) closest to the anchor, or -1 if every square has been seen or discarded
+	 */
+	public int nearestUnseen(GameBoard board) {
+		while (heapSize > 0 && (isSeen(board, heap[0] % width, heap[0] / width) || isDiscarded(heap[0]))) {
+			heapSize--;
+			heap[0] = heap[heapSize];
+			siftDown(0);
+		}
+		return heapSize > 0 ? heap[0] : -1;
+	}
+
+	/**
+	 * Leaves a square out from now on, as if it had been seen
+	 * @param cell x + y * width
+	 */
+	public void discard(int cell) {
+		discarded[cell >> 6] |= 1L << cell;
+	}
+
+	/**
+	 * @param cell
+	 * @return True if the square was discarded
+	 */
+	public boolean isDiscarded(int cell) {
+		return (discarded[cell >> 6] & (1L << cell)) != 0;
+	}
+
+	/**
+	 * @return The number of squares left in the queue, including seen ones that have not been skipped yet
+	 */
+	public int size() {
+		return heapSize;
+	}
+
+	/**
+	 * @return True if this frontier only counts squares looked at in this game as seen
+	 */
+	public boolean isThisGameOnly() {
+		return thisGameOnly;
+	}
+
+	/**
+	 * @param board
+	 * @param x
+	 * @param y
+	 * @return True if the square counts as seen for this frontier
+	 */
+	public boolean isSeen(GameBoard board, int x, int y) {
+		// a tree seen in an earlier game is still a tree, and never the gold mine
+		return thisGameOnly ? board.isKnownStatic(x, y) || board.getHasTree(x, y) : board.getSeen(x, y);
+	}
+
+	private long order(int cell) {
+		int x = cell % width;
+		int y = cell / width;
+		long distance = Math.max(Math.abs(x - anchorX), Math.abs(y - anchorY));
+		return (distance * width + x) * height + y;
+	}
+
+	private void siftDown(int index) {
+		int cell = heap[index];
+		long value = order(cell);
+		int half = heapSize >> 1;
+		while (index < half) {
+			int child = 2 * index + 1;
+			int right = child + 1;
+			long childValue = order(heap[child]);
+			if (right < heapSize) {
+				long rightValue = order(heap[right]);
+				if (rightValue < childValue) {
+					child = right;
+					childValue = rightValue;
+				}
+			}
+			if (value <= childValue) {
+				break;
+			}
+			heap[index] = heap[child];
+			index = child;
+		}
+		heap[index] = cell;
+	}
+}
@@ -0,0 +1,69 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * RiskConvolution with the disk sums and the exponentials done a vector of squares at a time.
+ *
+ * Needs the incubating Vector API, so it has to be compiled and run with --add-modules jdk.incubator.vector
+ * (see buildBenchmarksVector.sh). RiskConvolution.create() picks it up when it is there.
+ */
+public class VectorRiskConvolution extends RiskConvolution {
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+	// as many floats as SPECIES has doubles, for storing the results
+	private static final VectorSpecies<Float> FLOAT_SPECIES = FloatVector.SPECIES_PREFERRED.withShape(VectorShape.forBitSize(SPECIES.vectorBitSize() / 2));
+
+	public VectorRiskConvolution(int width, int height, int towerRange, float towerAccuracy) {
+		super(width, height, towerRange, towerAccuracy);
+	}
+
+	@Override
+	public boolean isVectorized() {
+		return true;
+	}
+
+	@Override
+	public void compute(double[] logSurvival, float[] out) {
+		startPrefix(logSurvival);
+		int lanes = SPECIES.length();
+		int bound = SPECIES.loopBound(width);
+		for (int y = 0; y < height; y++) {
+			buildPrefix(logSurvival, y + range);
+			for (int x = 0; x < width; x++) {
+				rowSum[x] = 0;
+			}
+			// one pass over rowSum per row of the disk, so each pass is two loads, two adds and a store per vector
+			for (int dy = -range; dy <= range; dy++) {
+				int row = y + dy;
+				if (row < 0 || row >= height) {
+					continue;
+				}
+				int reach = halfWidth[dy + range];
+				int upper = (row % window) * stride + range + reach + 1;
+				int lower = (row % window) * stride + range - reach;
+				int x = 0;
+				for (; x < bound; x += lanes) {
+					DoubleVector sum = DoubleVector.fromArray(SPECIES, rowSum, x);
+					DoubleVector difference = DoubleVector.fromArray(SPECIES, prefix, upper + x)
+							.sub(DoubleVector.fromArray(SPECIES, prefix, lower + x));
+					sum.add(difference).intoArray(rowSum, x);
+				}
+				for (; x < width; x++) {
+					rowSum[x] += prefix[upper + x] - prefix[lower + x];
+				}
+			}
+
+			// accuracy * (1 - e^sum)
+			int x = 0;
+			for (; x < bound; x += lanes) {
+				DoubleVector risk = DoubleVector.fromArray(SPECIES, rowSum, x).lanewise(VectorOperators.EXP).neg().add(1).mul(accuracy);
+				((FloatVector)risk.convertShape(VectorOperators.D2F, FLOAT_SPECIES, 0)).intoArray(out, x + y * width);
+			}
+			for (; x < width; x++) {
+				out[x + y * width] = (float)(accuracy * (1 - Math.exp(rowSum[x])));
+			}
+		}
+	}
+}
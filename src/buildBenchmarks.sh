@@ -0,0 +1 @@
+cd .. && mvn -B verify -Pbenchmark -Dbenchmark="$*"
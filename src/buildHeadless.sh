@@ -0,0 +1,2 @@
+javac -cp "Sepia.jar" HeadlessSimulator.java MapFile.java ProbAgent.java GameBoard.java SearchGrid.java AStarSearch.java HitProbabilityField.java LogOddsBelief.java RiskConvolution.java BeliefUpdater.java ObservationBatch.java IncrementalPlanner.java RiskFlowField.java Coord.java ObstacleGrid.java Path.java BoardStore.java TurnProfiler.java AnytimePlanner.java HierarchicalPlanner.java CooperativePlanner.java UnseenFrontier.java ParallelPathPlanner.java SpeculativePlanner.java
+java -cp "Sepia.jar;." HeadlessSimulator prob_19x25_e1.xml 100 "$@"
@@ -0,0 +1,2 @@
+javac BoardMerger.java BoardStore.java GameBoard.java HitProbabilityField.java LogOddsBelief.java RiskConvolution.java
+java -cp "." BoardMerger "$@"
@@ -1,2 +1,2 @@
-javac -cp "Sepia.jar" ProbAgent.java GameBoard.java Node.java Pair.java
+javac -cp "Sepia.jar" ProbAgent.java ProbEpisodeRunner.java GameBoard.java SearchGrid.java AStarSearch.java HitProbabilityField.java LogOddsBelief.java RiskConvolution.java BeliefUpdater.java ObservationBatch.java IncrementalPlanner.java RiskFlowField.java Coord.java ObstacleGrid.java Path.java BoardStore.java TurnProfiler.java AnytimePlanner.java HierarchicalPlanner.java CooperativePlanner.java UnseenFrontier.java ParallelPathPlanner.java SpeculativePlanner.java
 java -cp "Sepia.jar;." edu.cwru.sepia.Main2 probConfig.xml
@@ -0,0 +1,42 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that ARA* ends with the cheapest path once the inflation is gone, on boards explored so far that most
+ * squares have almost no risk left, which is where a heuristic without a step cost under it overestimates
+ */
+public class AnytimePlannerTest {
+	@Test
+	public void finalPathIsTheCheapest() throws IOException {
+		Random random = new Random(391);
+		for (int trial = 0; trial < 10; trial++) {
+			BenchmarkScenario scenario = BenchmarkScenario.create("32@0.02");
+			GameBoard board = scenario.board;
+			for (int x = 0; x < board.getWidth(); x++) {
+				for (int y = 0; y < board.getHeight(); y++) {
+					if (!board.getHasTree(x, y) && board.getTowerProbability(x, y) != 1 && random.nextFloat() < 0.8f) {
+						board.setTowerProbability(x, y, random.nextFloat() * 0.0001f); // explored
+					}
+				}
+			}
+
+			AnytimePlanner planner = new AnytimePlanner(board.getWidth(), board.getHeight());
+			planner.update(scenario.grid, scenario.field, scenario.startX, scenario.startY, scenario.goalX, scenario.goalY,
+					Long.MAX_VALUE, 0);
+			// IncrementalPlannerTest checks this one against Dijkstra
+			IncrementalPlanner reference = new IncrementalPlanner(board.getWidth(), board.getHeight());
+			reference.nextStep(scenario.grid, scenario.field, scenario.startX, scenario.startY, scenario.goalX, scenario.goalY,
+					new int[0], 0);
+
+			String name = "trial " + trial;
+			assertEquals(name, 1, planner.getEpsilon(), 0);
+			assertTrue(name, planner.getBound() <= 1);
+			assertEquals(name, reference.getPathCost(), planner.getPathCost(), 1e-4f * reference.getPathCost());
+		}
+	}
+}
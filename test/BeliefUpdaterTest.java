@@ -0,0 +1,290 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks BeliefUpdater against the update the agent used to make one peasant at a time, which recomputed the
+ * product of every other cell's survival factor for each cell of the window (kept below as referenceUpdate).
+ */
+public class BeliefUpdaterTest {
+	private static final int TOWER_RANGE = 4;
+	private static final float TOWER_ACCURACY = 0.75f;
+	private static final float TOLERANCE = 1e-5f;
+
+	/**
+	 * One observation on boards with unseen cells at many probabilities, seen cells, trees and known towers
+	 */
+	@Test
+	public void matchesReferenceOnSeededWindows() {
+		Random random = new Random(391);
+		for (int trial = 0; trial < 500; trial++) {
+			GameBoard board = randomBoard(random, 16, 12);
+			int x = random.nextInt(board.getWidth());
+			int y = random.nextInt(board.getHeight());
+			boolean hit = random.nextInt(3) == 0;
+			assertSameUpdate(board, new int[] { x }, new int[] { y }, new boolean[] { hit }, "trial " + trial);
+		}
+	}
+
+	/**
+	 * A peasant walking along the board, hit now and then, one observation per turn
+	 */
+	@Test
+	public void matchesReferenceOverSequences() {
+		Random random = new Random(7);
+		for (int trial = 0; trial < 50; trial++) {
+			GameBoard board = randomBoard(random, 20, 20);
+			int turns = 30;
+			int[] xs = new int[turns];
+			int[] ys = new int[turns];
+			boolean[] hits = new boolean[turns];
+			int x = random.nextInt(20);
+			int y = random.nextInt(20);
+			for (int t = 0; t < turns; t++) {
+				x = Math.max(0, Math.min(19, x + random.nextInt(3) - 1));
+				y = Math.max(0, Math.min(19, y + random.nextInt(3) - 1));
+				xs[t] = x;
+				ys[t] = y;
+				hits[t] = random.nextInt(5) == 0;
+			}
+			assertSameUpdate(board, xs, ys, hits, "trial " + trial);
+		}
+	}
+
+	/**
+	 * Windows cut off by every edge and corner of the board
+	 */
+	@Test
+	public void matchesReferenceAtEdges() {
+		Random random = new Random(11);
+		int width = 9;
+		int height = 7;
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				for (boolean hit : new boolean[] { false, true }) {
+					GameBoard board = randomBoard(random, width, height);
+					assertSameUpdate(board, new int[] { x }, new int[] { y }, new boolean[] { hit }, x + "," + y);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A window where every other cell is known to be empty, so the reference's update of a cell is 0 / 0
+	 */
+	@Test
+	public void leavesCellsAloneWhenTheReferenceHasNoAnswer() {
+		GameBoard board = new GameBoard(9, 9, 0);
+		for (int x = 0; x < 9; x++) {
+			for (int y = 0; y < 9; y++) {
+				board.setTowerProbability(x, y, 0);
+			}
+		}
+		assertSameUpdate(board, new int[] { 4 }, new int[] { 4 }, new boolean[] { true }, "empty window");
+	}
+
+	/**
+	 * A cell passed far more often than a float probability can record: every miss still moves its log-odds by the
+	 * same amount after the probability has rounded to 0
+	 */
+	@Test
+	public void missesKeepMovingAfterTheProbabilityUnderflows() {
+		GameBoard board = new GameBoard(9, 9, 0.01f);
+		// everything but the corner is seen and empty, so each miss is worth exactly log(1 - accuracy)
+		for (int x = 0; x < 9; x++) {
+			for (int y = 0; y < 9; y++) {
+				if (x != 0 || y != 0) {
+					board.setTowerProbability(x, y, 0);
+					board.setSeen(x, y, true);
+				}
+			}
+		}
+		BeliefUpdater updater = new BeliefUpdater(TOWER_RANGE, TOWER_ACCURACY);
+		ObservationBatch batch = new ObservationBatch();
+		double expected = Math.log(0.01f) - Math.log1p(-0.01f);
+		for (int i = 0; i < 300; i++) {
+			batch.clear();
+			batch.add(4, 4, false);
+			updater.apply(board, batch);
+			expected += Math.log(1 - TOWER_ACCURACY);
+			assertEquals("miss " + i, expected, board.getTowerLogOdds(0, 0), 1e-9 * -expected);
+		}
+		assertEquals(0, board.getTowerProbability(0, 0), 0);
+	}
+
+	/**
+	 * Turns where several peasants see overlapping windows, so that their observations are fused into groups: the
+	 * board has to come out the same whatever order the peasants were scanned in
+	 */
+	@Test
+	public void fusedBatchesDoNotDependOnOrder() {
+		Random random = new Random(23);
+		BeliefUpdater updater = new BeliefUpdater(TOWER_RANGE, TOWER_ACCURACY);
+		ObservationBatch batch = new ObservationBatch();
+		for (int trial = 0; trial < 200; trial++) {
+			GameBoard board = randomBoard(random, 30, 20);
+			// a crowd whose windows overlap, and a few peasants that may or may not be near it
+			int count = 3 + random.nextInt(6);
+			int[] xs = new int[count];
+			int[] ys = new int[count];
+			boolean[] hits = new boolean[count];
+			int crowdX = random.nextInt(30);
+			int crowdY = random.nextInt(20);
+			for (int i = 0; i < count; i++) {
+				if (i < count - 2) {
+					xs[i] = Math.max(0, Math.min(29, crowdX + random.nextInt(7) - 3));
+					ys[i] = Math.max(0, Math.min(19, crowdY + random.nextInt(7) - 3));
+				} else {
+					xs[i] = random.nextInt(30);
+					ys[i] = random.nextInt(20);
+				}
+				hits[i] = random.nextInt(3) == 0;
+			}
+
+			GameBoard expected = board.copy();
+			batch.clear();
+			for (int i = 0; i < count; i++) {
+				batch.add(xs[i], ys[i], hits[i]);
+			}
+			updater.apply(expected, batch);
+
+			for (int shuffle = 0; shuffle < 5; shuffle++) {
+				int[] order = new int[count];
+				for (int i = 0; i < count; i++) {
+					int j = random.nextInt(i + 1);
+					order[i] = order[j];
+					order[j] = i;
+				}
+				GameBoard actual = board.copy();
+				batch.clear();
+				for (int i : order) {
+					batch.add(xs[i], ys[i], hits[i]);
+				}
+				updater.apply(actual, batch);
+
+				for (int x = 0; x < board.getWidth(); x++) {
+					for (int y = 0; y < board.getHeight(); y++) {
+						String where = "trial " + trial + ", shuffle " + shuffle + " at " + x + "," + y;
+						assertEquals(where, expected.getTowerProbability(x, y), actual.getTowerProbability(x, y), 0);
+						assertEquals(where, expected.getTowerLogOdds(x, y), actual.getTowerLogOdds(x, y), 0);
+					}
+				}
+			}
+		}
+	}
+
+	private void assertSameUpdate(GameBoard board, int[] xs, int[] ys, boolean[] hits, String name) {
+		GameBoard expected = board.copy();
+		GameBoard actual = board.copy();
+		BeliefUpdater updater = new BeliefUpdater(TOWER_RANGE, TOWER_ACCURACY);
+		ObservationBatch batch = new ObservationBatch();
+		for (int i = 0; i < xs.length; i++) {
+			GameBoard before = expected.copy();
+			referenceUpdate(expected, xs[i], ys[i], hits[i]);
+			batch.clear();
+			batch.add(xs[i], ys[i], hits[i]);
+			updater.apply(actual, batch);
+
+			for (int x = 0; x < board.getWidth(); x++) {
+				for (int y = 0; y < board.getHeight(); y++) {
+					float want = expected.getTowerProbability(x, y);
+					float got = actual.getTowerProbability(x, y);
+					if (Float.isNaN(want)) {
+						// the reference divides 0 by 0; the updater learns nothing there
+						assertEquals(name + " at " + x + "," + y, before.getTowerProbability(x, y), got, 0);
+						expected.setTowerProbability(x, y, got);
+					} else {
+						assertEquals(name + ", observation " + i + " at " + x + "," + y, want, got, TOLERANCE);
+					}
+					assertTrue(got >= 0 && got <= 1);
+				}
+			}
+		}
+	}
+
+	private static GameBoard randomBoard(Random random, int width, int height) {
+		GameBoard board = new GameBoard(width, height, 0.01f);
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				float roll = random.nextFloat();
+				if (roll < 0.02f) {
+					board.setTowerProbability(x, y, 1); // a tower that has been seen
+					board.setSeen(x, y, true);
+				} else if (roll < 0.1f) {
+					board.setHasTree(x, y, true);
+					board.setTowerProbability(x, y, 0);
+					board.setSeen(x, y, true);
+				} else if (roll < 0.3f) {
+					board.setTowerProbability(x, y, 0);
+					board.setSeen(x, y, true);
+				} else {
+					board.setTowerProbability(x, y, random.nextFloat() * random.nextFloat() * 0.5f);
+				}
+			}
+		}
+		return board;
+	}
+
+	/**
+	 * The update as the agent made it before BeliefUpdater: for every out-of-view cell, the product of every other
+	 * cell's survival factor in the window is recomputed from a copy of the old probabilities.
+	 */
+	private static void referenceUpdate(GameBoard board, int x, int y, boolean hit) {
+		float[][] old = new float[board.getWidth()][board.getHeight()];
+		for (int r = 0; r < board.getWidth(); r++) {
+			for (int c = 0; c < board.getHeight(); c++) {
+				old[r][c] = board.getTowerProbability(r, c);
+			}
+		}
+		int fromX = Math.max(x - TOWER_RANGE, 0);
+		int toX   = Math.min(old.length, x + TOWER_RANGE);
+		int fromY = Math.max(y - TOWER_RANGE, 0);
+		int toY   = Math.min(old[0].length, y + TOWER_RANGE);
+		for (int r = fromX; r < toX; r++) {
+			for (int c = fromY; c < toY; c++) {
+				if (board.getSeen(r, c) // Only need to update out-of-view cells.
+						|| Math.sqrt((x - r) * (x - r) + (y - c) * (y - c)) <= TOWER_RANGE) { // tower has circular range
+					continue;
+				}
+
+				float phn, pht;
+				if (hit) {
+					// P(H|N) = 1 - P(S|N)
+					phn = 1;
+					for (int rr = fromX; rr < toX; rr++) {
+						for (int cc = fromY; cc < toY; cc++) {
+							if (rr == r && cc == c) continue;
+							// P(S) = P(N)+(P(T)*(1-P(H)))
+							phn *= (1f - old[rr][cc]) + (old[rr][cc] * (1f - TOWER_ACCURACY));
+						}
+					}
+					phn = 1f - phn;
+
+					// P(H|T): same as above, but without skipping r, c
+					// Simplifies to 1-((1-P(H|N))*P(M)) since tower existing is given.
+					pht = 1f - ((1f - phn) * (1f - TOWER_ACCURACY));
+				} else {
+					// P(S|N) = P(S)
+					phn = 1;
+					for (int rr = fromX; rr < toX; rr++) {
+						for (int cc = fromY; cc < toY; cc++) {
+							if (rr == r && cc == c) continue;
+							// P(S) = P(N)+(P(T)*(1-P(H)))
+							phn *= (1f - old[rr][cc]) + (old[rr][cc] * (1f - TOWER_ACCURACY));
+						}
+					}
+
+					// P(S|T): same as above, but without skipping r, c
+					// Simplifies to P(H|N))*P(M) since tower existing is given.
+					pht = phn * (1f - TOWER_ACCURACY);
+				}
+
+				// P(T|H) = P(H|T)*P(T)/(P(H|T)*P(T)+P(H|N)*P(N))
+				board.setTowerProbability(r, c, pht * old[r][c] / (pht * old[r][c] + phn * (1 - old[r][c])));
+			}
+		}
+	}
+}
@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.util.Random;
+
+import benchmarks.Kernel;
+
+/**
+ * The kernels measured by the benchmarks in the benchmarks package. Every call to create builds a new scenario, so
+ * each trial starts from the same board whatever ran before it.
+ */
+public class BenchmarkKernels {
+	private BenchmarkKernels() {
+	}
+
+	/**
+	 * @param kernel The kernel's name
+	 * @param board The scenario's name, see BenchmarkScenario.create
+	 * @return The kernel on a new board
+	 * @throws IOException If the scenario's map cannot be read
+	 */
+	public static Kernel create(String kernel, String board) throws IOException {
+		final BenchmarkScenario scenario = BenchmarkScenario.create(board);
+		final Random random = new Random(7);
+		final int width = scenario.board.getWidth();
+		final int height = scenario.board.getHeight();
+		final int range = BenchmarkScenario.TOWER_RANGE;
+
+		if (kernel.equals("getBestPath")) {
+			final AStarSearch search = new AStarSearch(width, height);
+			return new Kernel() {
+				@Override
+				public long run() {
+					return search.search(scenario.grid, scenario.startX, scenario.startY, scenario.goalX, scenario.goalY);
+				}
+			};
+		} else if (kernel.equals("hierarchicalStep")) {
+			final HierarchicalPlanner hierarchy = new HierarchicalPlanner(width, height);
+			return new Kernel() {
+				@Override
+				public long run() {
+					scenario.perturb(random);
+					hierarchy.update(scenario.grid, scenario.field, scenario.goalX, scenario.goalY);
+					return hierarchy.nextStep(scenario.grid, scenario.startX, scenario.startY);
+				}
+			};
+		} else if (kernel.equals("getHitProbability")) {
+			return new Kernel() {
+				@Override
+				public long run() {
+					int x = random.nextInt(width);
+					int y = random.nextInt(height);
+					GameBoard board = scenario.board;
+					float old = board.getTowerProbability(x, y);
+					board.setTowerProbability(x, y, old == 1 ? 1 : old * 0.5f + 0.001f);
+					float sum = 0;
+					for (int i = -range; i <= range; i++) {
+						for (int j = -range; j <= range; j++) {
+							if (x + i >= 0 && x + i < width && y + j >= 0 && y + j < height) {
+								sum += scenario.field.get(x + i, y + j);
+							}
+						}
+					}
+					return Float.floatToIntBits(sum);
+				}
+			};
+		} else if (kernel.equals("riskField")) {
+			final LogOddsBelief belief = LogOddsBelief.fromBoard(scenario.board);
+			final RiskConvolution convolution = RiskConvolution.create(width, height, range, BenchmarkScenario.TOWER_ACCURACY);
+			final float[] risk = new float[width * height];
+			return new Kernel() {
+				@Override
+				public long run() {
+					convolution.compute(belief.getLogSurvival(), risk);
+					return Float.floatToIntBits(risk[random.nextInt(risk.length)]);
+				}
+			};
+		} else if (kernel.equals("updateFromHit")) {
+			final BeliefUpdater updater = new BeliefUpdater(range, BenchmarkScenario.TOWER_ACCURACY);
+			final ObservationBatch batch = new ObservationBatch();
+			return new Kernel() {
+				@Override
+				public long run() {
+					batch.clear();
+					for (int i = 0; i < 4; i++) {
+						batch.add(random.nextInt(width), random.nextInt(height), random.nextInt(20) == 0);
+					}
+					updater.apply(scenario.board, batch);
+					return scenario.board.getVersion();
+				}
+			};
+		} else if (kernel.equals("boardReadWindow")) {
+			final int side = 2 * range + 1;
+			final float[] window = new float[side * side];
+			return new Kernel() {
+				@Override
+				public long run() {
+					int x = random.nextInt(width - side);
+					int y = random.nextInt(height - side);
+					scenario.board.readWindow(x, y, x + side, y + side, window);
+					return Float.floatToIntBits(window[0]);
+				}
+			};
+		} else if (kernel.equals("boardSnapshot")) {
+			return new Kernel() {
+				@Override
+				public long run() {
+					scenario.perturb(random);
+					return scenario.board.snapshot().getVersion();
+				}
+			};
+		}
+		throw new IllegalArgumentException("Unknown kernel " + kernel);
+	}
+}
@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * A board with its hit field, and a long start / goal pair to search between, for the kernel benchmarks.
+ *
+ * Boards are seeded from the two scenario maps (trees and towers as if they had been found) or are synthetic square
+ * boards at a given tower density. Every benchmark builds its own, so no benchmark sees a board that another one
+ * has changed.
+ */
+public class BenchmarkScenario {
+	public static final int TOWER_RANGE = 4;
+	public static final float TOWER_ACCURACY = 0.75f;
+	public static final float INITIAL_TOWER_DENSITY = 0.01f;
+	private static final long SYNTHETIC_SEED = 391;
+
+	final GameBoard board;
+	final HitProbabilityField field;
+	final SearchGrid grid;
+	final int startX, startY, goalX, goalY;
+
+	private BenchmarkScenario(GameBoard board) {
+		this.board = board;
+		this.field = new HitProbabilityField(board, TOWER_RANGE, TOWER_ACCURACY);
+		this.grid = new SearchGrid() {
+			@Override
+			public int getWidth() {
+				return BenchmarkScenario.this.board.getWidth();
+			}
+
+			@Override
+			public int getHeight() {
+				return BenchmarkScenario.this.board.getHeight();
+			}
+
+			@Override
+			public boolean isPassable(int x, int y) {
+				return !BenchmarkScenario.this.board.getHasTree(x, y) && BenchmarkScenario.this.board.getTowerProbability(x, y) != 1;
+			}
+
+			@Override
+			public float getCost(int x, int y) {
+				return field.get(x, y);
+			}
+		};
+		// bottom left to top right, like the trip from the townhall to the gold mine
+		startX = 0;
+		startY = board.getHeight() - 1;
+		goalX = board.getWidth() - 1;
+		goalY = 0;
+		clear(startX, startY);
+		clear(goalX, goalY);
+	}
+
+	/**
+	 * @param name "19x25" or "32x32" for the maps, or "size@density" (e.g. "128@0.01") for a synthetic board
+	 * @return A new scenario
+	 */
+	public static BenchmarkScenario create(String name) throws IOException {
+		if (name.equals("19x25")) {
+			return fromMap("prob_19x25_e1.xml");
+		} else if (name.equals("32x32")) {
+			return fromMap("prob_32x32_e1.xml");
+		}
+		int at = name.indexOf('@');
+		return synthetic(Integer.parseInt(name.substring(0, at)), Float.parseFloat(name.substring(at + 1)));
+	}
+
+	/**
+	 * Changes one tower probability that is not a tree or a known tower, like a belief update would
+	 * @param random
+	 */
+	void perturb(Random random) {
+		int x = random.nextInt(board.getWidth());
+		int y = random.nextInt(board.getHeight());
+		if (!board.getHasTree(x, y) && board.getTowerProbability(x, y) != 1) {
+			board.setTowerProbability(x, y, random.nextFloat() * 2 * INITIAL_TOWER_DENSITY);
+		}
+	}
+
+	private void clear(int x, int y) {
+		board.setHasTree(x, y, false);
+		board.setTowerProbability(x, y, 0);
+	}
+
+	private static BenchmarkScenario fromMap(String fileName) throws IOException {
+		MapFile map = MapFile.load(fileName);
+		GameBoard board = new GameBoard(map.getWidth(), map.getHeight(), INITIAL_TOWER_DENSITY);
+		for (MapFile.ResourceEntry resource : map.getResources()) {
+			if (resource.type.equals("TREE")) {
+				board.setHasTree(resource.x, resource.y, true);
+				board.setTowerProbability(resource.x, resource.y, 0);
+			}
+		}
+		for (MapFile.UnitEntry unit : map.getUnits()) {
+			if (unit.templateName.equalsIgnoreCase("ScoutTower")) {
+				board.setTowerProbability(unit.x, unit.y, 1);
+			}
+		}
+		return new BenchmarkScenario(board);
+	}
+
+	private static BenchmarkScenario synthetic(int size, float towerDensity) {
+		Random random = new Random(SYNTHETIC_SEED);
+		GameBoard board = new GameBoard(size, size, INITIAL_TOWER_DENSITY);
+		for (int x = 0; x < size; x++) {
+			for (int y = 0; y < size; y++) {
+				float roll = random.nextFloat();
+				if (roll < towerDensity) {
+					board.setTowerProbability(x, y, 1);
+				} else if (roll < towerDensity + 0.1f) {
+					board.setHasTree(x, y, true);
+					board.setTowerProbability(x, y, 0);
+				} else {
+					board.setTowerProbability(x, y, random.nextFloat() * 2 * INITIAL_TOWER_DENSITY);
+				}
+			}
+		}
+		return new BenchmarkScenario(board);
+	}
+}
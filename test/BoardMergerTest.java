@@ -0,0 +1,97 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that merging in batches gives the same board as merging everything at once, and that the inputs are left
+ * as they were
+ */
+public class BoardMergerTest {
+	private static final int BOARDS = 11;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void batchesMergeLikeOnePass() throws IOException {
+		File inputs = folder.newFolder("boards");
+		Random random = new Random(391);
+		int visits = 0;
+		for (int i = 0; i < BOARDS; i++) {
+			GameBoard board = randomBoard(random, i % 4 == 0 ? 0.02f : 0.01f);
+			visits += board.getVisits(3, 4);
+			BoardStore.write(board, new File(inputs, "board" + i));
+		}
+		// one of them was still being played, and has a journal that ends in the middle of a record
+		BoardStore store = new BoardStore(inputs, "board0");
+		GameBoard board = store.load();
+		board.trackChanges();
+		for (int turn = 0; turn < 2; turn++) {
+			board.incrementVisits(3, 4);
+			store.appendTurn(board);
+		}
+		store.close();
+		visits++;
+		File journal = new File(inputs, "board0.journal");
+		RandomAccessFile file = new RandomAccessFile(journal, "rw");
+		try {
+			file.setLength(file.length() - 3);
+		} finally {
+			file.close();
+		}
+		byte[] journalBefore = Files.readAllBytes(journal.toPath());
+
+		File whole = new File(folder.getRoot(), "whole");
+		BoardMerger merger = new BoardMerger();
+		merger.add(inputs);
+		assertEquals(BOARDS, merger.merge(whole));
+
+		for (int batchSize : new int[] { 1, 3, 5 }) {
+			File batched = new File(folder.getRoot(), "batched" + batchSize);
+			merger = new BoardMerger();
+			merger.add(inputs);
+			merger.setBatchSize(batchSize);
+			merger.merge(batched);
+			assertArrayEquals("batches of " + batchSize, Files.readAllBytes(whole.toPath()), Files.readAllBytes(batched.toPath()));
+		}
+
+		assertArrayEquals(journalBefore, Files.readAllBytes(journal.toPath()));
+		assertEquals(visits, BoardStore.read(whole).getVisits(3, 4));
+	}
+
+	private static GameBoard randomBoard(Random random, float prior) {
+		GameBoard board = new GameBoard(40, 24, prior);
+		for (int i = 0; i < 150; i++) {
+			int x = random.nextInt(20 + random.nextInt(20));
+			int y = random.nextInt(24);
+			float roll = random.nextFloat();
+			if (roll < 0.05f) {
+				board.setTowerProbability(x, y, 1);
+				board.setSeen(x, y, true);
+			} else if (roll < 0.15f) {
+				board.setHasTree(x, y, true);
+				board.setTowerProbability(x, y, 0);
+				board.setSeen(x, y, true);
+			} else if (roll < 0.3f) {
+				board.setTowerProbability(x, y, 0);
+				board.setSeen(x, y, true);
+			} else {
+				board.setTowerProbability(x, y, random.nextFloat() * 0.2f);
+			}
+			if (random.nextBoolean()) {
+				board.incrementVisits(x, y);
+			}
+		}
+		board.incrementVisits(3, 4);
+		return board;
+	}
+}
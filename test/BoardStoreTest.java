@@ -0,0 +1,86 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that loading a saved board never loses data it cannot replay, and that a board that was just read can be
+ * compacted over
+ */
+public class BoardStoreTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void journalWithoutBoardIsLeftAlone() throws IOException {
+		File directory = folder.getRoot();
+		BoardStore store = journaledStore(directory);
+		File boardFile = new File(directory, "board");
+		File journalFile = new File(directory, "board.journal");
+		byte[] journal = Files.readAllBytes(journalFile.toPath());
+		Files.delete(boardFile.toPath());
+
+		assertNull(store.load());
+		assertArrayEquals(journal, Files.readAllBytes(journalFile.toPath()));
+	}
+
+	@Test
+	public void readOnlyLoadKeepsAnUnfinishedRecord() throws IOException {
+		File directory = folder.getRoot();
+		journaledStore(directory);
+		File journalFile = new File(directory, "board.journal");
+		RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+		try {
+			file.setLength(file.length() - 3); // the process died while writing the last record
+		} finally {
+			file.close();
+		}
+		long length = journalFile.length();
+
+		GameBoard board = new BoardStore(directory, "board").loadReadOnly();
+		assertEquals(1, board.getVisits(2, 3)); // the first turn, but not the cut-off second one
+		assertEquals(length, journalFile.length());
+
+		// both records hold one cell, so a repaired journal is half as long as the whole one was
+		new BoardStore(directory, "board").load();
+		assertEquals((length + 3) / 2, journalFile.length());
+	}
+
+	@Test
+	public void boardThatWasReadCanBeCompactedOver() throws IOException {
+		File directory = folder.getRoot();
+		journaledStore(directory);
+		BoardStore store = new BoardStore(directory, "board");
+		GameBoard board = store.load();
+		board.incrementVisits(5, 5);
+		store.compact(board);
+
+		GameBoard loaded = new BoardStore(directory, "board").load();
+		assertEquals(1, loaded.getVisits(5, 5));
+		assertEquals(2, loaded.getVisits(2, 3));
+	}
+
+	/**
+	 * A board file plus a journal of two turns, each visiting (2, 3)
+	 */
+	private static BoardStore journaledStore(File directory) throws IOException {
+		BoardStore store = new BoardStore(directory, "board");
+		GameBoard board = new GameBoard(8, 8, 0.01f);
+		board.trackChanges();
+		store.appendTurn(board); // writes the board file
+		for (int turn = 0; turn < 2; turn++) {
+			board.incrementVisits(2, 3);
+			store.appendTurn(board);
+		}
+		store.close();
+		return store;
+	}
+}
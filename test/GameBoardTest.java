@@ -0,0 +1,57 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the per-tile summaries that let whole-board passes skip tiles
+ */
+public class GameBoardTest {
+	@Test
+	public void tileReturnsToThePrior() {
+		int size = 2 * GameBoard.TILE_SIZE;
+		GameBoard board = new GameBoard(size, size, 0.01f);
+		assertTrue(board.isTileAtPrior(1, 0));
+
+		board.setSeen(40, 3, true);
+		board.setTowerProbability(41, 3, 0.5f);
+		board.setHasTree(42, 3, true);
+		assertFalse(board.isTileAtPrior(1, 0));
+		assertTrue(board.isTileAtPrior(0, 0));
+
+		board.setSeen(40, 3, false);
+		board.setTowerProbability(41, 3, 0.01f);
+		assertFalse(board.isTileAtPrior(1, 0)); // the tree is still there
+		board.setHasTree(42, 3, false);
+		assertTrue(board.isTileAtPrior(1, 0));
+		assertFalse(board.isTileUntouched(1, 0));
+		assertTrue(board.copy().isTileAtPrior(1, 0));
+	}
+
+	@Test
+	public void hitFieldSkipsTilesBackAtThePrior() {
+		int size = 4 * GameBoard.TILE_SIZE;
+		GameBoard board = new GameBoard(size, size, 0.01f);
+		GameBoard fresh = board.copy();
+		fresh.setTowerProbability(100, 100, 0.3f);
+		board.setTowerProbability(100, 100, 0.3f);
+		for (int x = 0; x < size; x += 7) {
+			board.setTowerProbability(x, 20, 0.5f);
+			board.setTowerProbability(x, 20, 0.01f);
+		}
+
+		// the field of the board that was written to has to come out the same as that of one that never was
+		float[] expected = new float[size * size];
+		float[] actual = new float[size * size];
+		HitProbabilityField freshField = new HitProbabilityField(fresh, 4, 0.75f);
+		HitProbabilityField field = new HitProbabilityField(board, 4, 0.75f);
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				expected[x + y * size] = freshField.get(x, y);
+				actual[x + y * size] = field.get(x, y);
+			}
+		}
+		assertArrayEquals(expected, actual, 0);
+	}
+}
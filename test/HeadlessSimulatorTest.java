@@ -0,0 +1,76 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Plays a few short seeded episodes on the small map, so that a change that stops the agent or the simulator from
+ * finishing an episode shows up in the build
+ */
+public class HeadlessSimulatorTest {
+	private static final String MAP = "prob_19x25_e1.xml";
+	private static final int EPISODES = 3;
+	private static final int TURN_LIMIT = 2000;
+
+	private PrintStream out;
+
+	@Before
+	public void silence() {
+		// the agent narrates every turn
+		out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		}));
+	}
+
+	@After
+	public void restore() {
+		System.setOut(out);
+	}
+
+	@Test
+	public void episodesEndWithAValidOutcome() throws IOException {
+		int completed = 0;
+		for (long seed : new long[] { 391, 3 }) {
+			HeadlessSimulator simulator = new HeadlessSimulator(MapFile.load(MAP), seed);
+			simulator.setTurnLimit(TURN_LIMIT);
+			for (int episode = 0; episode < EPISODES; episode++) {
+				HeadlessSimulator.Result result = simulator.runEpisode(new ProbAgent(0, new String[0]));
+				String name = "seed " + seed + ", episode " + episode + ": " + result.outcome + " after " + result.turns + " turns";
+				assertTrue(name, result.turns > 0 && result.turns <= TURN_LIMIT);
+				assertTrue(name, result.deaths <= result.hits);
+				switch (result.outcome) {
+				case COMPLETED:
+					assertTrue(name, result.gold >= 2000);
+					completed++;
+					break;
+				case DEAD:
+					assertTrue(name, result.deaths > 0);
+					break;
+				case TIMED_OUT:
+					assertEquals(name, TURN_LIMIT, result.turns);
+					break;
+				}
+			}
+		}
+		// the agent completes nearly every episode on this map
+		assertTrue(completed + " completed", completed >= EPISODES);
+	}
+
+	@Test
+	public void episodesStopAtTheTurnLimit() throws IOException {
+		HeadlessSimulator simulator = new HeadlessSimulator(MapFile.load(MAP), 391);
+		simulator.setTurnLimit(50);
+		HeadlessSimulator.Result result = simulator.runEpisode(new ProbAgent(0, new String[0]));
+		assertEquals(HeadlessSimulator.Outcome.TIMED_OUT, result.outcome);
+		assertEquals(50, result.turns);
+	}
+}
@@ -0,0 +1,228 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the paths D* Lite repairs from turn to turn against a fresh search of the same board, while tower
+ * probabilities change, trees are found, other peasants move and the peasant itself walks its path.
+ */
+public class IncrementalPlannerTest {
+	private static final int WIDTH = 24;
+	private static final int HEIGHT = 20;
+	private static final int TOWER_RANGE = 4;
+	private static final float TOWER_ACCURACY = 0.75f;
+	private static final float STEP_COST = AStarSearch.HEURISTIC_STEP_COST;
+
+	@Test
+	public void repairedPathsMatchAFreshSearch() {
+		Random random = new Random(391);
+		int turns = 0;
+		for (int trial = 0; trial < 30; trial++) {
+			TestGrid grid = new TestGrid(randomBoard(random), 3);
+			int start = grid.randomFreeCell(random);
+			int goal = start;
+			IncrementalPlanner planner = new IncrementalPlanner(WIDTH, HEIGHT);
+
+			for (int turn = 0; turn < 40; turn++, turns++) {
+				while (start == goal) {
+					goal = grid.randomFreeCell(random); // a new destination starts a new search
+				}
+				grid.change(random, start, goal);
+				String name = "trial " + trial + ", turn " + turn;
+				int next = planner.nextStep(grid, grid.field, start % WIDTH, start / WIDTH, goal % WIDTH, goal / WIDTH,
+						grid.occupied, grid.occupied.length);
+
+				float[] distance = distancesTo(grid, goal);
+				IncrementalPlanner fresh = new IncrementalPlanner(WIDTH, HEIGHT);
+				int freshNext = fresh.nextStep(grid, grid.field, start % WIDTH, start / WIDTH, goal % WIDTH, goal / WIDTH,
+						grid.occupied, grid.occupied.length);
+				float best = bestThroughNeighbor(grid, distance, start);
+				if (best == Float.POSITIVE_INFINITY) {
+					assertEquals(name, -1, next);
+					assertEquals(name, -1, freshNext);
+					start = grid.randomFreeCell(random);
+					continue;
+				}
+				float tolerance = 1e-4f * Math.max(1, best);
+				assertEquals(name, best, planner.getPathCost(), tolerance);
+				assertEquals(name, fresh.getPathCost(), planner.getPathCost(), tolerance);
+				// the step has to be on a cheapest path, though not necessarily the one the fresh search picked
+				assertTrue(name, next >= 0);
+				assertEquals(name, best, grid.stepCost(next) + distance[next], tolerance);
+				start = next;
+			}
+		}
+		assertEquals(30 * 40, turns);
+	}
+
+	/**
+	 * @return The cheapest cost of reaching the goal from the start, over every first step
+	 */
+	private static float bestThroughNeighbor(TestGrid grid, float[] distance, int start) {
+		float best = Float.POSITIVE_INFINITY;
+		for (int neighbor : neighbors(start)) {
+			best = Math.min(best, grid.stepCost(neighbor) + distance[neighbor]);
+		}
+		return best;
+	}
+
+	/**
+	 * Dijkstra backwards from the goal, with the planner's edge costs: moving onto a square costs its hit
+	 * probability plus the step cost
+	 */
+	private static float[] distancesTo(TestGrid grid, int goal) {
+		float[] distance = new float[WIDTH * HEIGHT];
+		boolean[] done = new boolean[WIDTH * HEIGHT];
+		Arrays.fill(distance, Float.POSITIVE_INFINITY);
+		distance[goal] = 0;
+		while (true) {
+			int current = -1;
+			for (int cell = 0; cell < distance.length; cell++) {
+				if (!done[cell] && distance[cell] < Float.POSITIVE_INFINITY && (current < 0 || distance[cell] < distance[current])) {
+					current = cell;
+				}
+			}
+			if (current < 0) {
+				return distance;
+			}
+			done[current] = true;
+			float viaCurrent = grid.stepCost(current) + distance[current];
+			for (int neighbor : neighbors(current)) {
+				if (viaCurrent < distance[neighbor]) {
+					distance[neighbor] = viaCurrent;
+				}
+			}
+		}
+	}
+
+	private static int[] neighbors(int cell) {
+		int[] result = new int[8];
+		int count = 0;
+		int cx = cell % WIDTH;
+		int cy = cell / WIDTH;
+		for (int i = -1; i <= 1; i++) {
+			for (int j = -1; j <= 1; j++) {
+				int x = cx + i;
+				int y = cy + j;
+				if ((i != 0 || j != 0) && x >= 0 && x < WIDTH && y >= 0 && y < HEIGHT) {
+					result[count++] = x + y * WIDTH;
+				}
+			}
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	private static GameBoard randomBoard(Random random) {
+		GameBoard board = new GameBoard(WIDTH, HEIGHT, 0.01f);
+		for (int x = 0; x < WIDTH; x++) {
+			for (int y = 0; y < HEIGHT; y++) {
+				float roll = random.nextFloat();
+				if (roll < 0.12f) {
+					board.setHasTree(x, y, true);
+					board.setTowerProbability(x, y, 0);
+				} else if (roll < 0.14f) {
+					board.setTowerProbability(x, y, 1);
+				} else {
+					board.setTowerProbability(x, y, random.nextFloat() * 0.05f);
+				}
+			}
+		}
+		return board;
+	}
+
+	/**
+	 * The board as the agent's grid sees it: trees, known towers and other peasants block a square, and a square
+	 * costs its hit probability
+	 */
+	private static class TestGrid implements SearchGrid {
+		final GameBoard board;
+		final HitProbabilityField field;
+		final int[] occupied; // the other peasants
+
+		TestGrid(GameBoard board, int peasants) {
+			this.board = board;
+			this.field = new HitProbabilityField(board, TOWER_RANGE, TOWER_ACCURACY);
+			this.occupied = new int[peasants];
+			Arrays.fill(occupied, -1);
+		}
+
+		/**
+		 * What a turn of the game changes: beliefs move, a tree or tower turns up now and then, and the other
+		 * peasants step to a neighboring square
+		 */
+		void change(Random random, int start, int goal) {
+			for (int i = 0; i < 4; i++) {
+				int cell = random.nextInt(WIDTH * HEIGHT);
+				if (!board.getHasTree(cell % WIDTH, cell / WIDTH) && board.getTowerProbability(cell % WIDTH, cell / WIDTH) != 1) {
+					board.setTowerProbability(cell % WIDTH, cell / WIDTH, random.nextFloat() * 0.2f);
+				}
+			}
+			if (random.nextInt(4) == 0) {
+				int cell = randomFreeCell(random);
+				if (cell != start && cell != goal) {
+					board.setHasTree(cell % WIDTH, cell / WIDTH, true);
+					board.setTowerProbability(cell % WIDTH, cell / WIDTH, 0);
+				}
+			}
+			for (int i = 0; i < occupied.length; i++) {
+				int[] around = occupied[i] < 0 ? new int[] { randomFreeCell(random) } : neighbors(occupied[i]);
+				int to = around[random.nextInt(around.length)];
+				if (to != start && to != goal && isFree(to)) {
+					occupied[i] = to;
+				} else if (occupied[i] < 0) {
+					occupied[i] = start; // parked on the peasant's own square, which the planner never steps onto
+				}
+			}
+		}
+
+		int randomFreeCell(Random random) {
+			while (true) {
+				int cell = random.nextInt(WIDTH * HEIGHT);
+				if (isFree(cell)) {
+					return cell;
+				}
+			}
+		}
+
+		boolean isFree(int cell) {
+			return isPassable(cell % WIDTH, cell / WIDTH);
+		}
+
+		/**
+		 * @return The planner's cost of moving onto the square
+		 */
+		float stepCost(int cell) {
+			return isFree(cell) ? getCost(cell % WIDTH, cell / WIDTH) + STEP_COST : Float.POSITIVE_INFINITY;
+		}
+
+		@Override
+		public int getWidth() {
+			return WIDTH;
+		}
+
+		@Override
+		public int getHeight() {
+			return HEIGHT;
+		}
+
+		@Override
+		public boolean isPassable(int x, int y) {
+			int cell = x + y * WIDTH;
+			for (int peasant : occupied) {
+				if (peasant == cell) {
+					return false;
+				}
+			}
+			return !board.getHasTree(x, y) && board.getTowerProbability(x, y) != 1;
+		}
+
+		@Override
+		public float getCost(int x, int y) {
+			return field.get(x, y);
+		}
+	}
+}
@@ -0,0 +1,44 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+/**
+ * Checks that episodes started from the pooled board keep completing when several threads pool at once, instead of
+ * idling until the turn limit on a square left over from earlier episodes
+ */
+public class ParallelEpisodeRunnerTest {
+	private static final int EPISODES = 40;
+	private static final int THREADS = 4;
+
+	@Test
+	public void pooledEpisodesConverge() throws Exception {
+		for (long seed : new long[] { 391, 7 }) {
+			ParallelEpisodeRunner runner = new ParallelEpisodeRunner(MapFile.load("prob_32x32_e1.xml"), new String[0]);
+			PrintStream silent = new PrintStream(new OutputStream() {
+				@Override
+				public void write(int b) {
+				}
+			});
+			runner.setOutput(silent);
+
+			// the agents narrate every turn
+			PrintStream out = System.out;
+			System.setOut(silent);
+			try {
+				runner.run(EPISODES, THREADS, seed);
+			} finally {
+				System.setOut(out);
+			}
+
+			String name = "seed " + seed + ": " + runner.getCompleted() + " completed";
+			assertEquals(name, EPISODES, runner.getPooledEpisodes());
+			assertEquals(name, 0, runner.getTimedOut());
+			// peasants still die while the towers are being found, but the later episodes have to get the gold
+			assertTrue(name, runner.getCompleted() >= EPISODES / 4);
+		}
+	}
+}
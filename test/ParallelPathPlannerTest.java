@@ -0,0 +1,123 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that taking the parallel searches' results in order, with every move recorded, gives each peasant the
+ * step a sequential A* on the live grid would give it
+ */
+public class ParallelPathPlannerTest {
+	private static final int PEASANTS = 6;
+
+	@Test
+	public void matchesSequentialSearches() throws IOException {
+		Random random = new Random(391);
+		int valid = 0;
+		int searchedAgain = 0;
+		for (String name : new String[] { "19x25", "32x32", "64@0.03" }) {
+			BenchmarkScenario scenario = BenchmarkScenario.create(name);
+			GameBoard board = scenario.board;
+			int width = board.getWidth();
+			int height = board.getHeight();
+			ParallelPathPlanner planner = new ParallelPathPlanner(width, height);
+			AStarSearch sequential = new AStarSearch(width, height);
+			try {
+				for (int trial = 0; trial < 20; trial++) {
+					for (int i = 0; i < 10; i++) {
+						scenario.perturb(random);
+					}
+					ObstacleGrid obstacles = new ObstacleGrid(width, height);
+					obstacles.rebuild(board);
+
+					// crowded together, so that the moves of the first ones get in the way of the searches of the rest
+					int[] starts = new int[PEASANTS];
+					int[] dests = new int[PEASANTS];
+					int cornerX = random.nextInt(width - 6);
+					int cornerY = random.nextInt(height - 6);
+					int common = freeSquare(random, obstacles, 0, 0, width, height);
+					for (int p = 0; p < PEASANTS; p++) {
+						starts[p] = freeSquare(random, obstacles, cornerX, cornerY, 6, 6);
+						obstacles.setPeasant(Coord.getX(starts[p]), Coord.getY(starts[p]));
+						dests[p] = random.nextBoolean() ? common : freeSquare(random, obstacles, 0, 0, width, height);
+					}
+
+					for (int turn = 0; turn < 5; turn++) {
+						planner.plan(obstacles, scenario.field, starts, dests, PEASANTS);
+						for (int p = 0; p < PEASANTS; p++) {
+							int expected = sequentialStep(sequential, obstacles, scenario.field, starts[p], dests[p]);
+							String where = name + ", trial " + trial + ", turn " + turn + ", peasant " + p;
+							if (planner.isValid(p)) {
+								assertEquals(where, expected, planner.getStep(p));
+								valid++;
+							} else {
+								searchedAgain++;
+							}
+							if (expected != Coord.NONE && expected != starts[p]) {
+								obstacles.unsetPeasant(Coord.getX(starts[p]), Coord.getY(starts[p]));
+								obstacles.setPeasant(Coord.getX(expected), Coord.getY(expected));
+								planner.moved(starts[p], expected);
+								starts[p] = expected;
+							}
+						}
+					}
+				}
+			} finally {
+				planner.shutdown();
+			}
+		}
+		// both ways of getting a step have to be exercised
+		assertTrue("valid " + valid, valid > 100);
+		assertTrue("searched again " + searchedAgain, searchedAgain > 100);
+	}
+
+	/**
+	 * @return The step the agent takes when it searches one peasant at a time on the live grid
+	 */
+	static int sequentialStep(AStarSearch search, final ObstacleGrid obstacles, final HitProbabilityField field,
+			int start, int dest) {
+		final int destX = Coord.getX(dest);
+		final int destY = Coord.getY(dest);
+		SearchGrid grid = new SearchGrid() {
+			@Override
+			public int getWidth() {
+				return obstacles.getWidth();
+			}
+
+			@Override
+			public int getHeight() {
+				return obstacles.getHeight();
+			}
+
+			@Override
+			public boolean isPassable(int x, int y) {
+				return obstacles.isPassable(x, y, false, destX, destY);
+			}
+
+			@Override
+			public float getCost(int x, int y) {
+				return field.get(x, y);
+			}
+		};
+		int length = search.search(grid, Coord.getX(start), Coord.getY(start), destX, destY);
+		if (length < 0) {
+			return Coord.NONE;
+		} else if (length == 0) {
+			return start;
+		}
+		return Coord.pack(search.getPathX(0), search.getPathY(0));
+	}
+
+	static int freeSquare(Random random, ObstacleGrid obstacles, int fromX, int fromY, int columns, int rows) {
+		while (true) {
+			int x = fromX + random.nextInt(columns);
+			int y = fromY + random.nextInt(rows);
+			if (obstacles.get(x, y) == 0) {
+				return Coord.pack(x, y);
+			}
+		}
+	}
+}
@@ -0,0 +1,127 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Plays turns the way ProbAgent does with speculation on: the guess for the next turn is started once the moves are
+ * ordered, the real observations come in, and the guessed steps are taken where commit() and the planner accept
+ * them. Every step has to be the one sequential A* takes on the real grid, whether the guess came true or not.
+ */
+public class SpeculativePlannerTest {
+	private static final int TOWER_RANGE = BenchmarkScenario.TOWER_RANGE;
+	private static final float TOWER_ACCURACY = BenchmarkScenario.TOWER_ACCURACY;
+	private static final int PEASANTS = 5;
+
+	@Test
+	public void committedStepsMatchSequentialSearches() throws IOException {
+		Random random = new Random(391);
+		int rightGuesses = 0;
+		int wrongGuesses = 0;
+		for (String name : new String[] { "19x25", "32x32" }) {
+			BenchmarkScenario scenario = BenchmarkScenario.create(name);
+			GameBoard board = scenario.board;
+			int width = board.getWidth();
+			int height = board.getHeight();
+			BeliefUpdater updater = new BeliefUpdater(TOWER_RANGE, TOWER_ACCURACY);
+			SpeculativePlanner speculation = new SpeculativePlanner(width, height, TOWER_RANGE, TOWER_ACCURACY);
+			AStarSearch sequential = new AStarSearch(width, height);
+			try {
+				for (int trial = 0; trial < 30; trial++) {
+					ObstacleGrid obstacles = new ObstacleGrid(width, height);
+					obstacles.rebuild(board);
+					int[] starts = new int[PEASANTS];
+					int[] dests = new int[PEASANTS];
+					int cornerX = random.nextInt(width - 6);
+					int cornerY = random.nextInt(height - 6);
+					int common = ParallelPathPlannerTest.freeSquare(random, obstacles, 0, 0, width, height);
+					for (int p = 0; p < PEASANTS; p++) {
+						starts[p] = ParallelPathPlannerTest.freeSquare(random, obstacles, cornerX, cornerY, 6, 6);
+						obstacles.setPeasant(Coord.getX(starts[p]), Coord.getY(starts[p]));
+						dests[p] = random.nextBoolean() ? common : ParallelPathPlannerTest.freeSquare(random, obstacles, 0, 0, width, height);
+					}
+
+					// this turn's moves, then the guess that every peasant gets where it was ordered to without a hit
+					int[] ordered = new int[PEASANTS];
+					for (int p = 0; p < PEASANTS; p++) {
+						ordered[p] = move(obstacles, null, starts[p],
+								ParallelPathPlannerTest.sequentialStep(sequential, obstacles, scenario.field, starts[p], dests[p]));
+					}
+					speculation.begin();
+					for (int p = 0; p < PEASANTS; p++) {
+						speculation.expectPeasant(Coord.getX(ordered[p]), Coord.getY(ordered[p]));
+						speculation.expectSearch(p, ordered[p], dests[p]);
+					}
+					speculation.start(board, scenario.field, obstacles);
+					speculation.awaitCopy();
+
+					// what really happens: on odd trials the first peasant's move fails and a tree turns up by the peasants
+					boolean wrong = trial % 2 == 1 && ordered[0] != starts[0];
+					int[] actual = ordered.clone();
+					if (wrong) {
+						actual[0] = starts[0];
+						int tree = ParallelPathPlannerTest.freeSquare(random, obstacles, cornerX, cornerY, 6, 6);
+						board.setHasTree(Coord.getX(tree), Coord.getY(tree), true);
+						board.setTowerProbability(Coord.getX(tree), Coord.getY(tree), 0);
+					}
+					ObservationBatch batch = new ObservationBatch();
+					for (int p = 0; p < PEASANTS; p++) {
+						board.incrementVisits(Coord.getX(actual[p]), Coord.getY(actual[p]));
+						batch.add(Coord.getX(actual[p]), Coord.getY(actual[p]), false);
+					}
+					updater.apply(board, batch);
+					obstacles.rebuild(board);
+					obstacles.clearPeasants();
+					for (int p = 0; p < PEASANTS; p++) {
+						obstacles.setPeasant(Coord.getX(actual[p]), Coord.getY(actual[p]));
+					}
+
+					assertTrue(speculation.commit(obstacles, scenario.field));
+					ParallelPathPlanner planner = speculation.getPlanner();
+					for (int p = 0; p < PEASANTS; p++) {
+						int expected = ParallelPathPlannerTest.sequentialStep(sequential, obstacles, scenario.field, actual[p], dests[p]);
+						int index = speculation.indexOf(p, actual[p], dests[p]);
+						boolean used = index >= 0 && planner.isValid(index);
+						String where = name + ", trial " + trial + ", peasant " + p;
+						if (used) {
+							assertEquals(where, expected, planner.getStep(index));
+						}
+						if (p == 0) {
+							// the first peasant's search is untouched by any move this turn
+							assertEquals(where, !wrong, used);
+						}
+						move(obstacles, planner, actual[p], expected);
+					}
+					if (wrong) {
+						wrongGuesses++;
+					} else {
+						rightGuesses++;
+					}
+				}
+			} finally {
+				speculation.shutdown();
+			}
+		}
+		assertTrue(rightGuesses > 10);
+		assertTrue(wrongGuesses > 10);
+	}
+
+	/**
+	 * Moves a peasant on the obstacles, recording the move with the planner if there is one
+	 * @return Where the peasant ends up
+	 */
+	private static int move(ObstacleGrid obstacles, ParallelPathPlanner planner, int from, int to) {
+		if (to == Coord.NONE || to == from) {
+			return from;
+		}
+		obstacles.unsetPeasant(Coord.getX(from), Coord.getY(from));
+		obstacles.setPeasant(Coord.getX(to), Coord.getY(to));
+		if (planner != null) {
+			planner.moved(from, to);
+		}
+		return to;
+	}
+}
@@ -0,0 +1,55 @@
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks that UnseenFrontier moves on from squares that are seen or discarded
+ */
+public class UnseenFrontierTest {
+	@Test
+	public void skipsDiscardedSquares() {
+		GameBoard board = new GameBoard(8, 8, 0.01f);
+		UnseenFrontier frontier = new UnseenFrontier(board, 6, 1);
+		assertEquals(6 + 1 * 8, frontier.nearestUnseen(board));
+
+		// a square walled in by trees is never seen, so without discarding it the search would stay here
+		frontier.discard(6 + 1 * 8);
+		int next = frontier.nearestUnseen(board);
+		assertEquals(5 + 0 * 8, next);
+		board.setSeen(5, 0, true);
+		assertEquals(5 + 1 * 8, frontier.nearestUnseen(board));
+	}
+
+	@Test
+	public void runsOutWhenEverythingIsSeenOrDiscarded() {
+		GameBoard board = new GameBoard(4, 4, 0.01f);
+		for (int x = 0; x < 4; x++) {
+			for (int y = 0; y < 4; y++) {
+				if (x != 2 || y != 2) {
+					board.setSeen(x, y, true);
+				}
+			}
+		}
+		UnseenFrontier frontier = new UnseenFrontier(board, 0, 0);
+		assertEquals(2 + 2 * 4, frontier.nearestUnseen(board));
+		frontier.discard(2 + 2 * 4);
+		assertEquals(-1, frontier.nearestUnseen(board));
+	}
+
+	@Test
+	public void thisGameOnlyIgnoresSquaresSeenInEarlierGames() {
+		GameBoard board = new GameBoard(4, 4, 0.01f);
+		for (int x = 0; x < 4; x++) {
+			for (int y = 0; y < 4; y++) {
+				board.setSeen(x, y, true);
+			}
+		}
+		board.setHasTree(1, 0, true);
+		board.setKnownStatic(0, 0);
+
+		assertEquals(-1, new UnseenFrontier(board, 0, 0).nearestUnseen(board));
+		UnseenFrontier frontier = new UnseenFrontier(board, 0, 0, true);
+		// (0,0) was looked at in this game and (1,0) is a tree
+		assertEquals(0 + 1 * 4, frontier.nearestUnseen(board));
+	}
+}
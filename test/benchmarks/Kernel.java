@@ -0,0 +1,15 @@
+package benchmarks;
+
+/**
+ * One operation of the agent's code to benchmark, on a board of its own.
+ *
+ * JMH only generates benchmarks for classes in a package, and the agent's classes are in the default package, which
+ * cannot be imported from one. The kernels are therefore written next to the agent's classes (see BenchmarkKernels)
+ * and reached through this interface.
+ */
+public interface Kernel {
+	/**
+	 * @return Something that depends on the work done, so that it cannot be optimized away
+	 */
+	long run();
+}
@@ -0,0 +1,53 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Every kernel on every board, as operations per microsecond and as microseconds per operation.
+ *
+ * getBestPath: one A* search from the bottom left of the board to the top right
+ * hierarchicalStep: one cell changes, so the clusters around it are rebuilt before the next step is picked
+ * getHitProbability: one cell changes, then a neighborhood of squares is read back, like a search would
+ * riskField: the hit probability of every square, with the Vector API under the vector profile
+ * updateFromHit: one turn of belief updates, four peasants, each hit one time in twenty
+ * boardReadWindow: copies the tower probabilities of one tower's reach out of the board
+ * boardSnapshot: changes one probability, so that the snapshot has to be taken again
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 1, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KernelBenchmark {
+	@Param({ "getBestPath", "hierarchicalStep", "getHitProbability", "riskField", "updateFromHit", "boardReadWindow", "boardSnapshot" })
+	public String kernel;
+
+	@Param({ "19x25", "32x32", "128@0.001", "128@0.01", "128@0.05", "512@0.001", "512@0.01", "512@0.05" })
+	public String board;
+
+	private Kernel operation;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		operation = Kernels.create(kernel, board);
+	}
+
+	@Benchmark
+	public long run() {
+		return operation.run();
+	}
+}
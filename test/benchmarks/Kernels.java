@@ -0,0 +1,18 @@
+package benchmarks;
+
+/**
+ * Makes kernels with BenchmarkKernels in the default package
+ */
+public class Kernels {
+	private Kernels() {
+	}
+
+	/**
+	 * @param kernel The kernel's name, e.g. "getBestPath"
+	 * @param board The scenario to build for it, see BenchmarkScenario
+	 * @return A kernel on a new board
+	 */
+	public static Kernel create(String kernel, String board) throws Exception {
+		return (Kernel)Class.forName("BenchmarkKernels").getMethod("create", String.class, String.class).invoke(null, kernel, board);
+	}
+}